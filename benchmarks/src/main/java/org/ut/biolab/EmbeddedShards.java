@@ -0,0 +1,73 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * In-memory H2 database in MySQL mode standing in for the sharded database, so
+ * the database-bound benchmarks run offline. Holds a variant table and its
+ * shards, rows are placed by variant_id modulo the number of shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class EmbeddedShards {
+    public static final String TABLE = "variant";
+    private static final String[] BASES = { "A", "C", "G", "T" };
+
+    private static boolean initialized = false;
+
+    /**
+     * Points ConnectionManager to the embedded database. H2 rejects the
+     * negative fetch size MySQL streams with, so a positive one is used.
+     * 
+     * @param connectionNo
+     */
+    public static synchronized void init(int connectionNo) {
+        if (!initialized) {
+            ConnectionManager.getInstance().init("org.h2.Driver", "jdbc:h2:mem:shards;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "", connectionNo);
+            QueryExecutor.setFetchSize(1000);
+            initialized = true;
+        }
+    }
+
+    /**
+     * (Re)creates the variant table and its shards.
+     * 
+     * @param rows
+     * @param shards
+     * @throws SQLException
+     */
+    public static void create(long rows, int shards) throws SQLException {
+        Connection c = ConnectionManager.getInstance().getConnection();
+        try {
+            Statement s = c.createStatement();
+            s.execute("DROP TABLE IF EXISTS " + TABLE);
+            s.execute("CREATE TABLE " + TABLE + " (variant_id BIGINT PRIMARY KEY, chrom VARCHAR(8), position BIGINT, ref VARCHAR(16), alt VARCHAR(16))");
+            PreparedStatement p = c.prepareStatement("INSERT INTO " + TABLE + " VALUES (?, ?, ?, ?, ?)");
+            for (long i = 0; i < rows; i++) {
+                p.setLong(1, i);
+                p.setString(2, "chr" + (1 + i % 22));
+                p.setLong(3, i * 100);
+                p.setString(4, BASES[(int) (i % 4)] + BASES[(int) (i / 4 % 4)] + BASES[(int) (i / 16 % 4)] + BASES[(int) (i / 64 % 4)]);
+                p.setString(5, BASES[(int) (i / 3 % 4)]);
+                p.addBatch();
+                if (i % ShardManager.INSERT_BATCH_SIZE == 0) {
+                    p.executeBatch();
+                }
+            }
+            p.executeBatch();
+            p.close();
+            for (int i = 0; i < shards; i++) {
+                String shard = ShardManager.getShardName(TABLE, i);
+                s.execute("DROP TABLE IF EXISTS " + shard);
+                s.execute("CREATE TABLE " + shard + " AS SELECT * FROM " + TABLE + " WHERE MOD(variant_id, " + shards + ") = " + i);
+            }
+            s.close();
+        } finally {
+            c.close();
+        }
+    }
+}
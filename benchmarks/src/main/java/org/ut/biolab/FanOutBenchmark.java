@@ -0,0 +1,63 @@
+package org.ut.biolab;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Full fan-out of a query over the shards of the embedded database: submitting
+ * the shard queries, decoding, merging and collecting the results. The empty
+ * query isolates the overhead of the fan-out and the result collection.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FanOutBenchmark {
+    public static final int ROWS = 100000;
+    public static final String EMPTY_TEMPLATE = "SELECT variant_id FROM %s WHERE 1=0";
+
+    @Param({ "1", "8", "32" })
+    public int shards;
+
+    @Param({ EMPTY_TEMPLATE, Sharder.COUNT_STAR_TEMPLATE, Sharder.SINGLE_MATCH_WHERE_TEMPLATE, Sharder.INTERVAL_TEMPLATE })
+    public String template;
+
+    @Param({ "POOLED", "BOUNDED" })
+    public QueryExecutorManager.ExecutionMode mode;
+
+    private QueryExecutorManager qeManager = null;
+    private MergeStrategy strategy = null;
+
+    @Setup
+    public void setUp() throws SQLException {
+        EmbeddedShards.init(64);
+        EmbeddedShards.create(ROWS, shards);
+        qeManager = new QueryExecutorManager(shards, shards, mode);
+        qeManager.setVerbose(false);
+        qeManager.warmUp();
+        strategy = template.equals(Sharder.COUNT_STAR_TEMPLATE) ? MergeStrategy.COUNT_SUM : MergeStrategy.CONCATENATION;
+    }
+
+    @TearDown
+    public void tearDown() {
+        qeManager.shutdown();
+    }
+
+    @Benchmark
+    public List<Integer> execute() {
+        return qeManager.execute(template, EmbeddedShards.TABLE, strategy.newMerger(template));
+    }
+}
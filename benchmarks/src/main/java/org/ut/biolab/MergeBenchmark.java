@@ -0,0 +1,54 @@
+package org.ut.biolab;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of the cross-shard merge operators fed with decoded rows, as the
+ * shard threads do while streaming.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MergeBenchmark {
+    public static final int ROWS = 100000;
+    public static final int SHARDS = 8;
+
+    @Param({ "COUNT_SUM", "CONCATENATION", "DISTINCT", "MIN_MAX" })
+    public MergeStrategy strategy;
+
+    private Object[][] rows = new Object[ROWS][];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            // single numeric column, as returned by aggregates and key scans
+            rows[i] = new Object[] { (long) random.nextInt(ROWS) };
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object merge() {
+        // none of the strategies merged here depends on the query
+        ResultMerger merger = strategy.newMerger(null);
+        for (int i = 0; i < ROWS; i++) {
+            merger.merge(i % SHARDS, rows[i]);
+        }
+        return merger.getResult();
+    }
+}
@@ -0,0 +1,32 @@
+package org.ut.biolab;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of instantiating a query template for a shard.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryInstantiationBenchmark {
+    @Param({ Sharder.COUNT_STAR_TEMPLATE, Sharder.INTERVAL_TEMPLATE, Sharder.PATTERN_TEMPLATE })
+    public String template;
+
+    private String shard = ShardManager.getShardName(EmbeddedShards.TABLE, 7);
+
+    @Benchmark
+    public String instantiate() {
+        return QueryExecutorManager.instantiateQueryFromTemplate(template, shard);
+    }
+}
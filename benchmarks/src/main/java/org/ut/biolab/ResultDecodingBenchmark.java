@@ -0,0 +1,60 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of decoding the rows of a shard into the arrays handed over to the
+ * mergers, on the embedded database.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResultDecodingBenchmark {
+    public static final int ROWS = 10000;
+
+    private Connection c = null;
+    private PreparedStatement p = null;
+
+    @Setup
+    public void setUp() throws SQLException {
+        EmbeddedShards.init(4);
+        EmbeddedShards.create(ROWS, 1);
+        c = ConnectionManager.getInstance().getConnection();
+        p = QueryExecutor.prepareStreaming(c, "SELECT * FROM " + ShardManager.getShardName(EmbeddedShards.TABLE, 0));
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        p.close();
+        c.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void decode(Blackhole bh) throws SQLException {
+        ResultSet r = p.executeQuery();
+        int columns = r.getMetaData().getColumnCount();
+        while (r.next()) {
+            bh.consume(QueryExecutor.decodeRow(r, columns));
+        }
+        r.close();
+    }
+}
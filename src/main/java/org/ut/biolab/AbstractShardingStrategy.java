@@ -0,0 +1,31 @@
+package org.ut.biolab;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Base for sharding strategies keeping the number of shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public abstract class AbstractShardingStrategy implements ShardingStrategy {
+    protected int shards = 0;
+
+    public int getShardCount() {
+        return shards;
+    }
+
+    /**
+     * Obtains the set of all the shards.
+     * 
+     * @return
+     */
+    protected Set<Integer> allShards() {
+        Set<Integer> res = new TreeSet<Integer>();
+        for (int i = 0; i < shards; i++) {
+            res.add(i);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,344 @@
+package org.ut.biolab;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merger combining partial aggregates computed by the shards, see
+ * AggregateQuery. The query is rewritten before it is sent to the shards, and
+ * the partial rows are folded into a hash aggregation keyed by their groups:
+ * a single integer grouping expression is looked up in an open addressing
+ * table of primitive longs, other keys through a map of their values. Every
+ * group gets a slot, and the aggregates of all the groups are kept in
+ * primitive arrays indexed by the slot, so folding a partial row allocates
+ * nothing unless it starts a new group.
+ * 
+ * Integer sums are kept exactly in longs, other sums in doubles.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class AggregateMerger extends ResultMerger {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private AggregateQuery query = null;
+    private int groupCount = 0;
+    private Accumulator[] accumulators = null;
+
+    private LongSlotMap integerKeys = new LongSlotMap();
+    private Map<Object, Integer> otherKeys = new HashMap<Object, Integer>();
+    private int nullSlot = -1;
+    private List<Object[]> groups = new ArrayList<Object[]>();
+    private long groupBytes = 0;
+
+    /**
+     * Aggregate of all the groups, the values of a group are at its slot.
+     */
+    private static class Accumulator {
+        private AggregateQuery.Function function;
+        private long[] exact = new long[INITIAL_CAPACITY];
+        private double[] approximate = null;
+        private long[] counts = null;
+        private Object[] extremes = null;
+        private boolean floating = false;
+
+        public Accumulator(AggregateQuery.Function function) {
+            this.function = function;
+            if (function == AggregateQuery.Function.SUM || function == AggregateQuery.Function.AVG) {
+                approximate = new double[INITIAL_CAPACITY];
+                counts = new long[INITIAL_CAPACITY];
+            } else if (function == AggregateQuery.Function.MIN || function == AggregateQuery.Function.MAX) {
+                extremes = new Object[INITIAL_CAPACITY];
+            }
+        }
+
+        public void ensureCapacity(int slots) {
+            if (slots <= exact.length) {
+                return;
+            }
+            int capacity = Math.max(slots, exact.length * 2);
+            exact = Arrays.copyOf(exact, capacity);
+            if (approximate != null) {
+                approximate = Arrays.copyOf(approximate, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            if (extremes != null) {
+                extremes = Arrays.copyOf(extremes, capacity);
+            }
+        }
+
+        /**
+         * Folds the partials of a row in.
+         * 
+         * @param slot
+         * @param row
+         * @param column
+         *            first partial column of the aggregate
+         * @return number of partial columns consumed
+         */
+        @SuppressWarnings("unchecked")
+        public int fold(int slot, Object[] row, int column) {
+            Object v = row[column];
+            switch (function) {
+            case COUNT:
+                exact[slot] += v == null ? 0 : ((Number) v).longValue();
+                return 1;
+            case SUM:
+                add(slot, v);
+                counts[slot] += v == null ? 0 : 1;
+                return 1;
+            case AVG:
+                add(slot, v);
+                Object n = row[column + 1];
+                counts[slot] += n == null ? 0 : ((Number) n).longValue();
+                return 2;
+            default:
+                if (v != null) {
+                    Comparable<Object> old = (Comparable<Object>) extremes[slot];
+                    int c = old == null ? 0 : old.compareTo(v);
+                    if (old == null || (function == AggregateQuery.Function.MIN ? c > 0 : c < 0)) {
+                        extremes[slot] = v;
+                    }
+                }
+                return 1;
+            }
+        }
+
+        private void add(int slot, Object v) {
+            if (v == null) {
+                return;
+            }
+            if (isIntegral(v)) {
+                exact[slot] += ((Number) v).longValue();
+            } else {
+                approximate[slot] += ((Number) v).doubleValue();
+                floating = true;
+            }
+        }
+
+        public Object getValue(int slot) {
+            switch (function) {
+            case COUNT:
+                return exact[slot];
+            case SUM:
+                if (counts[slot] == 0) {
+                    return null;
+                }
+                return floating ? (Object) (exact[slot] + approximate[slot]) : (Object) exact[slot];
+            case AVG:
+                return counts[slot] == 0 ? null : (exact[slot] + approximate[slot]) / counts[slot];
+            default:
+                return extremes[slot];
+            }
+        }
+
+        public long getSize() {
+            return 8L * exact.length + (approximate == null ? 0 : 16L * approximate.length) + (extremes == null ? 0 : 8L * extremes.length);
+        }
+    }
+
+    /**
+     * Open addressing map from long keys to slots.
+     */
+    private static class LongSlotMap {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        // slot + 1, 0 for a free entry
+        private int[] slots = new int[INITIAL_CAPACITY];
+        private int size = 0;
+
+        private static int hash(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+
+        /**
+         * Obtains the slot of a key.
+         * 
+         * @param key
+         * @param next
+         *            slot to assign if the key is new
+         * @return
+         */
+        public int getOrAssign(long key, int next) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+                if (slots[i] == 0) {
+                    keys[i] = key;
+                    slots[i] = next + 1;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                    }
+                    return next;
+                }
+                if (keys[i] == key) {
+                    return slots[i] - 1;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new long[oldKeys.length * 2];
+            slots = new int[oldSlots.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldSlots[j] != 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    slots[i] = oldSlots[j];
+                }
+            }
+        }
+
+        public long getSize() {
+            return 12L * keys.length;
+        }
+    }
+
+    /**
+     * @param query
+     *            aggregate query the partial rows come from
+     */
+    public AggregateMerger(AggregateQuery query) {
+        this.query = query;
+        this.groupCount = query.getGroupCount();
+        accumulators = new Accumulator[query.getFunctions().size()];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i] = new Accumulator(query.getFunctions().get(i));
+        }
+    }
+
+    /**
+     * Creates a merger for an aggregate query template.
+     * 
+     * @param template
+     * @return
+     */
+    public static AggregateMerger forQuery(String template) {
+        return new AggregateMerger(AggregateQuery.parse(template));
+    }
+
+    private static boolean isIntegral(Object v) {
+        if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            return true;
+        }
+        if (v instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal) v;
+            return (d.scale() <= 0 || d.stripTrailingZeros().scale() <= 0) && d.abs().compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0;
+        }
+        return v instanceof BigInteger && ((BigInteger) v).bitLength() < 64;
+    }
+
+    @Override
+    public String rewrite(String query) {
+        return this.query.getPartialQuery();
+    }
+
+    /**
+     * Finds the slot of the group of a partial row, assigning a new one to a
+     * new group.
+     * 
+     * @param row
+     * @return
+     */
+    private int getSlot(Object[] row) {
+        if (groupCount == 0) {
+            return groups.isEmpty() ? newSlot(row) : 0;
+        }
+        if (groupCount == 1) {
+            Object v = row[0];
+            if (v == null) {
+                if (nullSlot < 0) {
+                    nullSlot = newSlot(row);
+                }
+                return nullSlot;
+            }
+            if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+                int slot = integerKeys.getOrAssign(((Number) v).longValue(), groups.size());
+                return slot == groups.size() ? newSlot(row) : slot;
+            }
+        }
+        Object key = groupCount == 1 ? row[0] : Arrays.asList(Arrays.copyOf(row, groupCount));
+        Integer slot = otherKeys.get(key);
+        if (slot == null) {
+            slot = newSlot(row);
+            otherKeys.put(key, slot);
+            // entry and key of the map
+            groupBytes += 48 + (groupCount == 1 ? 0 : 24 + 8 * groupCount);
+        }
+        return slot;
+    }
+
+    private int newSlot(Object[] row) {
+        Object[] group = Arrays.copyOf(row, groupCount);
+        groups.add(group);
+        groupBytes += ShardResultCache.estimateSize(group);
+        for (Accumulator a : accumulators) {
+            a.ensureCapacity(groups.size());
+        }
+        return groups.size() - 1;
+    }
+
+    @Override
+    protected void consume(int shard, Object[] row) {
+        int slot = getSlot(row);
+        int column = groupCount;
+        for (Accumulator a : accumulators) {
+            column += a.fold(slot, row, column);
+        }
+    }
+
+    /**
+     * Obtains the combined rows, one per group, with the items of the
+     * original select list. Without GROUP BY there is a single row even if no
+     * shard returned one, e.g. when they were all pruned, as in SQL.
+     */
+    @Override
+    public synchronized Object getResult() {
+        // the accumulators start out empty, COUNT 0 and NULL otherwise
+        int slots = groupCount == 0 ? Math.max(1, groups.size()) : groups.size();
+        List<Object[]> res = new ArrayList<Object[]>(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            Object[] row = new Object[query.getItemCount()];
+            for (int i = 0; i < row.length; i++) {
+                int item = query.getItem(i);
+                row[i] = item >= 0 ? groups.get(slot)[item] : accumulators[-1 - item].getValue(slot);
+            }
+            res.add(row);
+        }
+        return res;
+    }
+
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Estimates the memory taken by the groups and their aggregates (bytes).
+     * 
+     * @return
+     */
+    public synchronized long getMemoryFootprint() {
+        long res = integerKeys.getSize() + groupBytes + 16L * groups.size();
+        for (Accumulator a : accumulators) {
+            res += a.getSize();
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        return String.format("groups %d from %d partial rows, memory %.1f KB", groups.size(), getRowCount(), getMemoryFootprint() / 1024.0);
+    }
+}
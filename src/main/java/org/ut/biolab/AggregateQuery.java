@@ -0,0 +1,196 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregate query template split into partial aggregates computed by every
+ * shard and the way of combining them on the client. The select list may
+ * hold grouping expressions and COUNT, SUM, AVG, MIN and MAX; the shards
+ * compute the same groups and COUNT, SUM, MIN and MAX of them, AVG is sent as
+ * SUM and COUNT of its argument and divided only once the partials of all the
+ * shards are combined.
+ * 
+ * Supported shape: SELECT items FROM ... [WHERE ...] [GROUP BY ...], where
+ * an item is either a grouping expression or a single aggregate call with an
+ * optional alias. HAVING, ORDER BY, LIMIT, COUNT(DISTINCT ...) and
+ * expressions over aggregates, e.g. SUM(a) / COUNT(b), cannot be combined
+ * from partials.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class AggregateQuery {
+    private static final Pattern SELECT = Pattern.compile("^\\s*SELECT\\s+(.*?)\\s+FROM\\s+(.*)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern AGGREGATE = Pattern.compile("^(COUNT|SUM|AVG|MIN|MAX)\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ANY_AGGREGATE = Pattern.compile("\\b(COUNT|SUM|AVG|MIN|MAX)\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ALIAS = Pattern.compile("^(?:\\s+(?:AS\\s+)?\\w+)?\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNSUPPORTED = Pattern.compile("\\b(HAVING|ORDER\\s+BY|LIMIT)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DISTINCT = Pattern.compile("^\\s*DISTINCT\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Aggregate functions.
+     */
+    public enum Function {
+        COUNT, SUM, AVG, MIN, MAX
+    }
+
+    // grouping expressions of the select list
+    private List<String> groups = new ArrayList<String>();
+    // aggregates of the select list in order
+    private List<Function> functions = new ArrayList<Function>();
+    // position of every item of the select list: group index, or -1 - the
+    // index of the aggregate
+    private List<Integer> items = new ArrayList<Integer>();
+    private String partialQuery = null;
+
+    private AggregateQuery() {
+    }
+
+    /**
+     * Splits an aggregate query template into partial aggregates.
+     * 
+     * @param template
+     * @return
+     */
+    public static AggregateQuery parse(String template) {
+        Matcher m = SELECT.matcher(template);
+        if (!m.find()) {
+            throw new IllegalArgumentException("Not a SELECT: " + template);
+        }
+        String rest = m.group(2);
+        if (UNSUPPORTED.matcher(rest).find()) {
+            throw new IllegalArgumentException("HAVING, ORDER BY and LIMIT cannot be combined from partial aggregates: " + template);
+        }
+
+        AggregateQuery res = new AggregateQuery();
+        List<String> partials = new ArrayList<String>();
+        List<String> aggregates = new ArrayList<String>();
+        for (String item : splitList(m.group(1))) {
+            Matcher a = AGGREGATE.matcher(item);
+            int end = a.find() ? findClosingParenthesis(item, a.end() - 1) : -1;
+            if (end < 0 || !ALIAS.matcher(item.substring(end + 1)).find()) {
+                if (ANY_AGGREGATE.matcher(item).find()) {
+                    throw new IllegalArgumentException("Only single aggregate calls can be combined from partial aggregates: " + item);
+                }
+                res.items.add(res.groups.size());
+                res.groups.add(item);
+                continue;
+            }
+            Function f = Function.valueOf(a.group(1).toUpperCase());
+            String arg = item.substring(a.end(), end).trim();
+            if (DISTINCT.matcher(arg).find()) {
+                throw new IllegalArgumentException("Distinct aggregates cannot be combined from partial aggregates: " + item);
+            }
+            res.items.add(-1 - res.functions.size());
+            res.functions.add(f);
+            if (f == Function.AVG) {
+                aggregates.add("SUM(" + arg + ")");
+                aggregates.add("COUNT(" + arg + ")");
+            } else {
+                aggregates.add(f + "(" + arg + ")");
+            }
+        }
+        if (res.functions.isEmpty()) {
+            throw new IllegalArgumentException("No aggregates in: " + template);
+        }
+
+        // grouping expressions first, so that the key of a partial row is its
+        // prefix
+        partials.addAll(res.groups);
+        partials.addAll(aggregates);
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (int i = 0; i < partials.size(); i++) {
+            select.append(i > 0 ? ", " : "").append(partials.get(i));
+        }
+        res.partialQuery = select.append(" FROM ").append(rest).toString();
+        return res;
+    }
+
+    /**
+     * Splits a select list at the commas outside parentheses and quotes.
+     * 
+     * @param list
+     * @return
+     */
+    private static List<String> splitList(String list) {
+        List<String> res = new ArrayList<String>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                res.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        res.add(list.substring(start).trim());
+        return res;
+    }
+
+    /**
+     * Finds the parenthesis closing an opening one, outside quotes.
+     * 
+     * @param s
+     * @param open
+     *            position of the opening parenthesis
+     * @return position of the closing parenthesis, -1 if it is missing
+     */
+    private static int findClosingParenthesis(String s, int open) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = open; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Template computing the partial aggregates on a shard: the grouping
+     * expressions followed by the partials of the aggregates in order.
+     * 
+     * @return
+     */
+    public String getPartialQuery() {
+        return partialQuery;
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public List<Function> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Determines what an item of the original select list is.
+     * 
+     * @param item
+     *            position in the select list
+     * @return index of the grouping expression, or -1 - index of the aggregate
+     */
+    public int getItem(int item) {
+        return items.get(item);
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+}
@@ -0,0 +1,400 @@
+package org.ut.biolab;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exporter writing tables into files on the client, so the files do not have
+ * to be on the filesystem of the database server. Rows are streamed from the
+ * server and written through a buffered channel, optionally compressed, in the
+ * tab-separated format of SELECT ... INTO OUTFILE.
+ * 
+ * Several tables are exported at the same time. Tables with a numeric primary
+ * key larger than the chunk size are split into key ranges exported in
+ * parallel, every chunk into a file of its own.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ClientExporter {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Compression {
+        NONE(""), GZIP(".gz");
+
+        private String suffix;
+
+        private Compression(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    private int parallelism = 1;
+    private Compression compression = Compression.NONE;
+    private long chunkRows = 0;
+
+    /**
+     * Statistics of exporting a single chunk of a table.
+     */
+    public static class ExportStats {
+        private String table = null;
+        private String file = null;
+        private long rows = 0;
+        private long bytes = 0;
+        private long written = 0;
+        private long time = 0;
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return size of the exported data before compression
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return size of the file
+         */
+        public long getWritten() {
+            return written;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            double s = time * 0.000000001;
+            double mb = bytes / (1024.0 * 1024.0);
+            return String.format("%s: %d rows, %.2f MB (%.2f MB on disk), %.3f s (%.0f rows/s, %.2f MB/s)", file, rows, mb, written / (1024.0 * 1024.0), s,
+                    s > 0 ? rows / s : 0, s > 0 ? mb / s : 0);
+        }
+    }
+
+    /**
+     * @param parallelism
+     *            number of chunks exported at the same time
+     * @param compression
+     * @param chunkRows
+     *            maximum number of rows of a chunk, 0 exports every table as a
+     *            whole
+     */
+    public ClientExporter(int parallelism, Compression compression, long chunkRows) {
+        this.parallelism = parallelism;
+        this.compression = compression;
+        this.chunkRows = chunkRows;
+    }
+
+    /**
+     * Constructs the file to store a chunk of a table in.
+     * 
+     * @param dir
+     * @param table
+     * @param chunk
+     *            index of the chunk, negative for the whole table
+     * @return
+     */
+    public String getFile(String dir, String table, int chunk) {
+        return new File(dir, table + ".out" + (chunk < 0 ? "" : "." + chunk) + compression.getSuffix()).getPath();
+    }
+
+    /**
+     * Exports tables into a directory.
+     * 
+     * @param tables
+     * @param dir
+     * @return statistics of the individual chunks
+     */
+    public List<ExportStats> export(List<String> tables, String dir) {
+        ExecutorService exporters = Executors.newFixedThreadPool(parallelism);
+        List<Future<ExportStats>> futures = new ArrayList<Future<ExportStats>>();
+
+        QueryTimer totalTimer = new QueryTimer();
+        totalTimer.start();
+        for (final String table : tables) {
+            List<String> selections = getChunkSelections(table);
+            for (int i = 0; i < selections.size(); i++) {
+                final String selection = selections.get(i);
+                final String file = getFile(dir, table, selections.size() > 1 ? i : -1);
+                futures.add(exporters.submit(new Callable<ExportStats>() {
+                    public ExportStats call() throws SQLException, IOException {
+                        ExportStats stats = exportChunk(table, selection, file);
+                        System.out.println(stats);
+                        return stats;
+                    }
+                }));
+            }
+        }
+
+        List<ExportStats> res = new ArrayList<ExportStats>();
+        long rows = 0;
+        long bytes = 0;
+        for (Future<ExportStats> f : futures) {
+            try {
+                ExportStats stats = f.get();
+                rows += stats.rows;
+                bytes += stats.bytes;
+                res.add(stats);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        totalTimer.stop();
+        exporters.shutdown();
+
+        double s = totalTimer.getDurationInS();
+        System.out.println(String.format("Exported %d tables in %d chunks, %d rows (%.2f MB) in %.3f s (%.2f MB/s) using %d threads", tables.size(),
+                futures.size(), rows, bytes / (1024.0 * 1024.0), s, s > 0 ? bytes / (1024.0 * 1024.0) / s : 0, parallelism));
+        return res;
+    }
+
+    /**
+     * Determines the primary key of a table if it consists of a single column.
+     * 
+     * @param c
+     * @param table
+     * @return column name, null if there is none
+     * @throws SQLException
+     */
+    private static String getPrimaryKey(Connection c, String table) throws SQLException {
+        ResultSet r = c.getMetaData().getPrimaryKeys(c.getCatalog(), null, table);
+        try {
+            String key = null;
+            int columns = 0;
+            while (r.next()) {
+                key = r.getString("COLUMN_NAME");
+                columns++;
+            }
+            return columns == 1 ? key : null;
+        } finally {
+            try {
+                r.close();
+            } catch (SQLException e) {
+                System.err.println("Resultset could not be closed.");
+            }
+        }
+    }
+
+    /**
+     * Splits a table into chunks by ranges of its primary key.
+     * 
+     * @param table
+     * @return clauses selecting the rows of the chunks
+     */
+    private List<String> getChunkSelections(String table) {
+        List<String> res = new ArrayList<String>();
+        if (chunkRows <= 0) {
+            res.add("");
+            return res;
+        }
+
+        Connection c = ConnectionManager.getInstance().getConnection();
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            String key = getPrimaryKey(c, table);
+            if (key != null) {
+                p = c.prepareStatement("SELECT MIN(" + key + "), MAX(" + key + "), COUNT(*) FROM " + table);
+                r = p.executeQuery();
+                // only integer keys can be cut into ranges
+                if (r.next() && r.getObject(1) instanceof Number && !(r.getObject(1) instanceof Double) && !(r.getObject(1) instanceof Float)) {
+                    long min = r.getLong(1);
+                    long max = r.getLong(2);
+                    long chunks = (r.getLong(3) + chunkRows - 1) / chunkRows;
+                    long step = chunks > 0 ? (max - min) / chunks + 1 : 0;
+                    for (long i = 0; i < chunks; i++) {
+                        long lo = min + i * step;
+                        if (lo > max) {
+                            break;
+                        }
+                        res.add(" WHERE " + key + " >= " + lo + " AND " + key + " < " + (lo + step));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to split table '" + table + "' into chunks.");
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            try {
+                c.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close database connection.");
+            }
+        }
+
+        if (res.isEmpty()) {
+            res.add("");
+        }
+        return res;
+    }
+
+    private ExportStats exportChunk(String table, String selection, String file) throws SQLException, IOException {
+        ExportStats stats = new ExportStats();
+        stats.table = table;
+        stats.file = file;
+
+        QueryTimer qt = new QueryTimer();
+        qt.start();
+        // the file is opened first so that an unwritable file does not hold
+        // a pooled connection
+        FileOutputStream fos = new FileOutputStream(file);
+        FileChannel fc = fos.getChannel();
+        WritableByteChannel out = fc;
+        Connection c = null;
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            if (compression == Compression.GZIP) {
+                out = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(fc), BUFFER_SIZE));
+            }
+            c = ConnectionManager.getInstance().getConnection();
+            p = QueryExecutor.prepareStreaming(c, "SELECT * FROM " + table + selection);
+            r = p.executeQuery();
+
+            int columns = r.getMetaData().getColumnCount();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            StringBuilder line = new StringBuilder();
+            while (r.next()) {
+                line.setLength(0);
+                for (int i = 1; i <= columns; i++) {
+                    if (i > 1) {
+                        line.append('\t');
+                    }
+                    appendField(line, r.getString(i));
+                }
+                line.append('\n');
+
+                byte[] bytes = line.toString().getBytes(UTF8);
+                stats.bytes += bytes.length;
+                stats.rows++;
+                for (int offset = 0; offset < bytes.length;) {
+                    if (!buffer.hasRemaining()) {
+                        drain(buffer, out);
+                    }
+                    int n = Math.min(buffer.remaining(), bytes.length - offset);
+                    buffer.put(bytes, offset, n);
+                    offset += n;
+                }
+            }
+            drain(buffer, out);
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    System.err.println("Could not close database connection.");
+                }
+            }
+            out.close();
+            fos.close();
+        }
+        qt.stop();
+        stats.time = qt.getDuration();
+        stats.written = new File(file).length();
+        return stats;
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Appends a value escaped the way SELECT ... INTO OUTFILE does by default.
+     * 
+     * @param line
+     * @param value
+     */
+    static void appendField(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("\\N");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+            case '\\':
+                line.append("\\\\");
+                break;
+            case '\t':
+                line.append("\\t");
+                break;
+            case '\n':
+                line.append("\\n");
+                break;
+            case '\0':
+                line.append("\\0");
+                break;
+            default:
+                line.append(ch);
+            }
+        }
+    }
+}
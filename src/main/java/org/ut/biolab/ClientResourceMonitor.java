@@ -0,0 +1,90 @@
+package org.ut.biolab;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Measurer of the resources used by this client while running queries: CPU
+ * time of the process and the number of threads. Used to tell the overhead of
+ * the client apart from the time spent in the database.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ClientResourceMonitor {
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private long startCpu = 0;
+    private long endCpu = 0;
+    private long startWall = 0;
+    private long endWall = 0;
+    private long startThreads = 0;
+    private long endThreads = 0;
+    private int peakThreads = 0;
+
+    /**
+     * Obtains the CPU time used by the process so far (nanoseconds). Relies on
+     * the extended OS bean of HotSpot-based JVMs, -1 if not available.
+     * 
+     * @return
+     */
+    public static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            Class<?> extended = Class.forName("com.sun.management.OperatingSystemMXBean");
+            if (extended.isInstance(os)) {
+                Method m = extended.getMethod("getProcessCpuTime");
+                return (Long) m.invoke(os);
+            }
+        } catch (Exception e) {
+            System.err.println("Unable to obtain CPU time.");
+        }
+        return -1;
+    }
+
+    public void start() {
+        threads.resetPeakThreadCount();
+        startThreads = threads.getTotalStartedThreadCount();
+        startCpu = getProcessCpuTime();
+        startWall = System.nanoTime();
+    }
+
+    public void stop() {
+        endWall = System.nanoTime();
+        endCpu = getProcessCpuTime();
+        endThreads = threads.getTotalStartedThreadCount();
+        peakThreads = threads.getPeakThreadCount();
+    }
+
+    /**
+     * CPU time used between start and stop (nanoseconds).
+     * 
+     * @return
+     */
+    public long getCpuTime() {
+        return endCpu - startCpu;
+    }
+
+    public int getPeakThreads() {
+        return peakThreads;
+    }
+
+    public long getStartedThreads() {
+        return endThreads - startThreads;
+    }
+
+    /**
+     * Summarizes the used resources.
+     * 
+     * @param queries
+     *            number of queries run in the measured period
+     * @return
+     */
+    public String getSummary(long queries) {
+        double cpu = getCpuTime() * 0.000000001;
+        double wall = (endWall - startWall) * 0.000000001;
+        return String.format("client CPU %.3f s (%.1f%% of one core, %.3f ms per query), threads peak %d, started %d", cpu, wall > 0 ? 100 * cpu / wall : 0,
+                queries > 0 ? 1000 * cpu / queries : 0, peakThreads, getStartedThreads());
+    }
+}
@@ -0,0 +1,206 @@
+package org.ut.biolab;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Engine running the sample query templates over columnar snapshots of the
+ * shards in this process. Every segment of every snapshot is scanned by a task
+ * of its own and matching rows (variant_id, position, ref) are handed over to
+ * the merger of the query, the same way the rows streamed from the shards are.
+ * 
+ * Only the shapes of the sample templates are understood: COUNT(*), equality
+ * and BETWEEN on variant_id, LIKE on ref, and scans without a WHERE clause.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ColumnarScanEngine {
+    private static final Pattern COUNT = Pattern.compile("SELECT\\s+COUNT\\(\\*\\)\\s+FROM\\s+%s\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EQUALITY = Pattern.compile("WHERE\\s+variant_id\\s*=\\s*(-?\\d+)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BETWEEN = Pattern.compile("WHERE\\s+variant_id\\s+BETWEEN\\s+(-?\\d+)\\s+AND\\s+(-?\\d+)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIKE = Pattern.compile("WHERE\\s+ref\\s+LIKE\\s+'%%([^%']*)%%'\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SCAN = Pattern.compile("FROM\\s+%s\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private List<ColumnarSnapshot> snapshots = null;
+    private ExecutorService executor = null;
+
+    /**
+     * Query over the snapshots.
+     */
+    public static class ScanQuery {
+        public enum Kind {
+            COUNT, SCAN, RANGE, PATTERN
+        }
+
+        private Kind kind;
+        private long lo = Long.MIN_VALUE;
+        private long hi = Long.MAX_VALUE;
+        private String pattern = null;
+
+        private ScanQuery(Kind kind) {
+            this.kind = kind;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+            case RANGE:
+                return kind + " [" + lo + ", " + hi + "]";
+            case PATTERN:
+                return kind + " '" + pattern + "'";
+            default:
+                return kind.toString();
+            }
+        }
+    }
+
+    /**
+     * @param snapshots
+     *            snapshots of the shards
+     * @param parallelism
+     *            number of segments scanned at the same time
+     */
+    public ColumnarScanEngine(List<ColumnarSnapshot> snapshots, int parallelism) {
+        this.snapshots = snapshots;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Translates a query template into a scan.
+     * 
+     * @param template
+     * @return scan, null if the template is not supported
+     */
+    public static ScanQuery parse(String template) {
+        String t = template.trim();
+        Matcher m;
+        if (COUNT.matcher(t).find()) {
+            return new ScanQuery(ScanQuery.Kind.COUNT);
+        }
+        if ((m = EQUALITY.matcher(t)).find()) {
+            ScanQuery q = new ScanQuery(ScanQuery.Kind.RANGE);
+            q.lo = q.hi = Long.parseLong(m.group(1));
+            return q;
+        }
+        if ((m = BETWEEN.matcher(t)).find()) {
+            ScanQuery q = new ScanQuery(ScanQuery.Kind.RANGE);
+            q.lo = Long.parseLong(m.group(1));
+            q.hi = Long.parseLong(m.group(2));
+            return q;
+        }
+        if ((m = LIKE.matcher(t)).find()) {
+            ScanQuery q = new ScanQuery(ScanQuery.Kind.PATTERN);
+            q.pattern = m.group(1);
+            return q;
+        }
+        if (SCAN.matcher(t).find()) {
+            return new ScanQuery(ScanQuery.Kind.SCAN);
+        }
+        return null;
+    }
+
+    /**
+     * Runs a scan over all the snapshots.
+     * 
+     * @param query
+     * @param merger
+     *            merger of the matching rows, for COUNT a single row with the
+     *            count per segment
+     * @return number of rows matched
+     */
+    public long execute(final ScanQuery query, final ResultMerger merger) {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < snapshots.size(); i++) {
+            final int shard = i;
+            final ColumnarSnapshot snapshot = snapshots.get(i);
+            // patterns are evaluated once per distinct value
+            final boolean[] matching = query.kind == ScanQuery.Kind.PATTERN ? match(snapshot.getDictionary(), query.pattern) : null;
+            for (int j = 0; j < snapshot.getSegmentCount(); j++) {
+                final int segment = j;
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        return scan(query, shard, snapshot, segment, matching, merger);
+                    }
+                }));
+            }
+        }
+
+        long res = 0;
+        for (Future<Long> f : futures) {
+            try {
+                res += f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return res;
+    }
+
+    private static boolean[] match(String[] dictionary, String pattern) {
+        boolean[] res = new boolean[dictionary.length];
+        for (int i = 0; i < dictionary.length; i++) {
+            res[i] = dictionary[i].contains(pattern);
+        }
+        return res;
+    }
+
+    private static long scan(ScanQuery query, int shard, ColumnarSnapshot snapshot, int segment, boolean[] matching, ResultMerger merger) {
+        LongBuffer ids = snapshot.getVariantIds(segment);
+        int n = ids.remaining();
+        if (query.kind == ScanQuery.Kind.COUNT) {
+            merger.merge(shard, new Object[] { (long) n });
+            return n;
+        }
+
+        LongBuffer positions = snapshot.getPositions(segment);
+        IntBuffer refs = snapshot.getRefs(segment);
+        String[] dictionary = snapshot.getDictionary();
+        long res = 0;
+        for (int i = 0; i < n; i++) {
+            boolean hit;
+            switch (query.kind) {
+            case RANGE:
+                long id = ids.get(i);
+                hit = id != ColumnarSnapshot.NULL_LONG && id >= query.lo && id <= query.hi;
+                break;
+            case PATTERN:
+                int code = refs.get(i);
+                hit = code != ColumnarSnapshot.NULL_CODE && matching[code];
+                break;
+            default:
+                hit = true;
+            }
+            if (hit) {
+                merger.merge(shard, decode(ids.get(i), positions.get(i), refs.get(i), dictionary));
+                res++;
+            }
+        }
+        return res;
+    }
+
+    private static Object[] decode(long id, long position, int ref, String[] dictionary) {
+        return new Object[] { id == ColumnarSnapshot.NULL_LONG ? null : id, position == ColumnarSnapshot.NULL_LONG ? null : position,
+                ref == ColumnarSnapshot.NULL_CODE ? null : dictionary[ref] };
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
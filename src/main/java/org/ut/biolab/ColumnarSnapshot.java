@@ -0,0 +1,215 @@
+package org.ut.biolab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of a table (or a shard) in a compact columnar format, scanned via
+ * memory-mapped files. Every column is stored in a file of its own:
+ * <code>variant_id</code> and <code>position</code> as fixed-width longs,
+ * <code>ref</code> as int codes into a dictionary of distinct values. NULLs are
+ * stored as NULL_LONG and NULL_CODE respectively.
+ * 
+ * Columns are mapped in segments of SEGMENT_ROWS rows, so snapshots larger than
+ * a single mapping can be scanned and segments can be scanned in parallel.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ColumnarSnapshot {
+    public static final int SEGMENT_ROWS = 1 << 20;
+    public static final long NULL_LONG = Long.MIN_VALUE;
+    public static final int NULL_CODE = -1;
+
+    private String name = null;
+    private long rows = 0;
+    private String[] dictionary = null;
+    private List<LongBuffer> variantIds = new ArrayList<LongBuffer>();
+    private List<LongBuffer> positions = new ArrayList<LongBuffer>();
+    private List<IntBuffer> refs = new ArrayList<IntBuffer>();
+
+    private ColumnarSnapshot(String name) {
+        this.name = name;
+    }
+
+    private static String getColumnFile(String dir, String table, String column) {
+        return new File(dir, table + "." + column).getPath();
+    }
+
+    /**
+     * Writes a table into a snapshot.
+     * 
+     * @param c
+     * @param table
+     * @param dir
+     *            directory holding the snapshots
+     * @return number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long write(Connection c, String table, String dir) throws SQLException, IOException {
+        new File(dir).mkdirs();
+        DataOutputStream ids = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getColumnFile(dir, table, "variant_id")), 1 << 16));
+        DataOutputStream pos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getColumnFile(dir, table, "position")), 1 << 16));
+        DataOutputStream codes = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getColumnFile(dir, table, "ref")), 1 << 16));
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> values = new ArrayList<String>();
+        long rows = 0;
+
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            p = QueryExecutor.prepareStreaming(c, "SELECT variant_id, position, ref FROM " + table);
+            r = p.executeQuery();
+            while (r.next()) {
+                long id = r.getLong(1);
+                ids.writeLong(r.wasNull() ? NULL_LONG : id);
+                long position = r.getLong(2);
+                pos.writeLong(r.wasNull() ? NULL_LONG : position);
+                String ref = r.getString(3);
+                int code = NULL_CODE;
+                if (ref != null) {
+                    Integer known = dictionary.get(ref);
+                    if (known == null) {
+                        known = values.size();
+                        dictionary.put(ref, known);
+                        values.add(ref);
+                    }
+                    code = known;
+                }
+                codes.writeInt(code);
+                rows++;
+            }
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            ids.close();
+            pos.close();
+            codes.close();
+        }
+
+        DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getColumnFile(dir, table, "ref.dict"))));
+        try {
+            dict.writeInt(values.size());
+            for (String v : values) {
+                dict.writeUTF(v);
+            }
+        } finally {
+            dict.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Maps a snapshot into memory.
+     * 
+     * @param table
+     * @param dir
+     *            directory holding the snapshots
+     * @return
+     * @throws IOException
+     */
+    public static ColumnarSnapshot open(String table, String dir) throws IOException {
+        ColumnarSnapshot res = new ColumnarSnapshot(table);
+        DataInputStream dict = new DataInputStream(new BufferedInputStream(new FileInputStream(getColumnFile(dir, table, "ref.dict"))));
+        try {
+            res.dictionary = new String[dict.readInt()];
+            for (int i = 0; i < res.dictionary.length; i++) {
+                res.dictionary[i] = dict.readUTF();
+            }
+        } finally {
+            dict.close();
+        }
+
+        RandomAccessFile ids = new RandomAccessFile(getColumnFile(dir, table, "variant_id"), "r");
+        RandomAccessFile pos = new RandomAccessFile(getColumnFile(dir, table, "position"), "r");
+        RandomAccessFile codes = new RandomAccessFile(getColumnFile(dir, table, "ref"), "r");
+        try {
+            res.rows = ids.length() / 8;
+            // the mappings stay valid after the files are closed
+            for (long start = 0; start < res.rows; start += SEGMENT_ROWS) {
+                long n = Math.min(SEGMENT_ROWS, res.rows - start);
+                res.variantIds.add(ids.getChannel().map(FileChannel.MapMode.READ_ONLY, start * 8, n * 8).order(ByteOrder.BIG_ENDIAN).asLongBuffer());
+                res.positions.add(pos.getChannel().map(FileChannel.MapMode.READ_ONLY, start * 8, n * 8).order(ByteOrder.BIG_ENDIAN).asLongBuffer());
+                res.refs.add(codes.getChannel().map(FileChannel.MapMode.READ_ONLY, start * 4, n * 4).order(ByteOrder.BIG_ENDIAN).asIntBuffer());
+            }
+        } finally {
+            ids.close();
+            pos.close();
+            codes.close();
+        }
+        return res;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRowCount() {
+        return rows;
+    }
+
+    public int getSegmentCount() {
+        return variantIds.size();
+    }
+
+    public String[] getDictionary() {
+        return dictionary;
+    }
+
+    public LongBuffer getVariantIds(int segment) {
+        return variantIds.get(segment).duplicate();
+    }
+
+    public LongBuffer getPositions(int segment) {
+        return positions.get(segment).duplicate();
+    }
+
+    public IntBuffer getRefs(int segment) {
+        return refs.get(segment).duplicate();
+    }
+
+    /**
+     * Approximate size of the snapshot on disk (bytes).
+     * 
+     * @return
+     */
+    public long getSize() {
+        long res = rows * 20;
+        for (String v : dictionary) {
+            res += v.length() + 2;
+        }
+        return res;
+    }
+}
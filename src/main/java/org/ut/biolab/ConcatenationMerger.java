@@ -0,0 +1,43 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merger concatenating the rows from all the shards. Only the first
+ * <code>limit</code> rows are kept in memory, the rest are counted but
+ * discarded so that full table scans do not exhaust the heap.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ConcatenationMerger extends ResultMerger {
+    public static final int DEFAULT_LIMIT = 1000000;
+
+    private int limit = DEFAULT_LIMIT;
+    private List<Object[]> rows = new ArrayList<Object[]>();
+
+    public ConcatenationMerger() {
+    }
+
+    public ConcatenationMerger(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    protected void consume(int shard, Object[] row) {
+        if (rows.size() < limit) {
+            rows.add(row);
+        }
+    }
+
+    @Override
+    public synchronized Object getResult() {
+        return rows;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        return "rows " + getRowCount() + " (" + rows.size() + " retained)";
+    }
+}
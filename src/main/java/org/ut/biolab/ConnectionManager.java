@@ -3,6 +3,10 @@ package org.ut.biolab;
 import java.beans.PropertyVetoException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
@@ -10,12 +14,19 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  * Database connection manager. Connection pool is needed as each thread has to
  * have a separate connection to the database to ensure effectiveness.
  * 
+ * With a shard topology, shards live on separate nodes and every node has a
+ * pool of its own. The default pool connects to the database holding the
+ * original table.
+ * 
  * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
  * 
  */
 public class ConnectionManager {
     private static ConnectionManager instance = null;
     private ComboPooledDataSource cpds = null;
+    private ShardTopology topology = null;
+    private List<ComboPooledDataSource> nodePools = new ArrayList<ComboPooledDataSource>();
+    private Map<ComboPooledDataSource, PoolStats> poolStats = new IdentityHashMap<ComboPooledDataSource, PoolStats>();
 
     protected ConnectionManager() {
         // exists only to defeat instantiation.
@@ -28,6 +39,30 @@ public class ConnectionManager {
         return instance;
     }
 
+    private ComboPooledDataSource createDataSource(String host, Integer port, String database, String user, String password, int connectionNo) {
+        // batches of INSERTs are sent as multi-row INSERTs
+        return createDataSource("com.mysql.jdbc.Driver", "jdbc:mysql://" + host + ":" + port + "/" + database + "?rewriteBatchedStatements=true", user,
+                password, connectionNo);
+    }
+
+    private ComboPooledDataSource createDataSource(String driver, String url, String user, String password, int connectionNo) {
+        ComboPooledDataSource ds = new ComboPooledDataSource();
+        try {
+            ds.setDriverClass(driver);
+        } catch (PropertyVetoException e) {
+            System.err.println("Invalid DB driver.");
+        }
+        ds.setJdbcUrl(url);
+        ds.setUser(user);
+        ds.setPassword(password);
+
+        // the settings below are optional -- c3p0 can work with defaults
+        ds.setMinPoolSize(3);
+        ds.setAcquireIncrement(5);
+        ds.setMaxPoolSize(connectionNo);
+        return ds;
+    }
+
     /**
      * Initialized the datasource. Call before running queries.
      * 
@@ -39,20 +74,100 @@ public class ConnectionManager {
      * @param connectionNo
      */
     public void init(String host, Integer port, String database, String user, String password, int connectionNo) {
-        cpds = new ComboPooledDataSource();
-        try {
-            cpds.setDriverClass("com.mysql.jdbc.Driver");
-        } catch (PropertyVetoException e) {
-            System.err.println("Invalid DB driver.");
+        cpds = createDataSource(host, port, database, user, password, connectionNo);
+        poolStats.put(cpds, new PoolStats("default", cpds));
+    }
+
+    /**
+     * Initializes the datasource for a database other than MySQL, e.g. an
+     * embedded one.
+     * 
+     * @param driver
+     *            class name of the JDBC driver
+     * @param url
+     * @param user
+     * @param password
+     * @param connectionNo
+     */
+    public void init(String driver, String url, String user, String password, int connectionNo) {
+        cpds = createDataSource(driver, url, user, password, connectionNo);
+        poolStats.put(cpds, new PoolStats("default", cpds));
+    }
+
+    /**
+     * Initializes a pool for every node of a topology. Call after init, shards
+     * are then accessed via getConnection(shard).
+     * 
+     * @param topology
+     * @param user
+     * @param password
+     * @param connectionNo
+     *            maximum number of connections per node
+     */
+    public void initTopology(ShardTopology topology, String user, String password, int connectionNo) {
+        this.topology = topology;
+        nodePools.clear();
+        for (ShardTopology.Node n : topology.getNodes()) {
+            System.out.println("Shard node: " + n);
+            ComboPooledDataSource ds = createDataSource(n.getHost(), n.getPort(), n.getDatabase(), user, password, connectionNo);
+            nodePools.add(ds);
+            poolStats.put(ds, new PoolStats(n.toString(), ds));
         }
-        cpds.setJdbcUrl("jdbc:mysql://" + host + ":" + port + "/" + database);
-        cpds.setUser(user);
-        cpds.setPassword(password);
+    }
 
-        // the settings below are optional -- c3p0 can work with defaults
-        cpds.setMinPoolSize(3);
-        cpds.setAcquireIncrement(5);
-        cpds.setMaxPoolSize(connectionNo);
+    /**
+     * Determines whether shards live on separate nodes.
+     * 
+     * @return
+     */
+    public boolean hasTopology() {
+        return topology != null;
+    }
+
+    public ShardTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * Determines the index of the pool serving a shard, 0 for the default pool
+     * without a topology.
+     * 
+     * @param shard
+     * @return
+     */
+    public int getNodeIndex(int shard) {
+        return topology == null ? 0 : topology.getNodeIndex(shard);
+    }
+
+    /**
+     * Opens connections in all the pools in advance, so that queries do not
+     * wait for them to be established.
+     * 
+     * @param connectionNo
+     *            number of connections to open per pool
+     */
+    public void warmUp(int connectionNo) {
+        List<ComboPooledDataSource> pools = new ArrayList<ComboPooledDataSource>(nodePools);
+        pools.add(cpds);
+        QueryTimer qt = new QueryTimer();
+        qt.start();
+        for (ComboPooledDataSource ds : pools) {
+            List<Connection> opened = new ArrayList<Connection>();
+            for (int i = 0; i < connectionNo; i++) {
+                opened.add(getConnection(ds));
+            }
+            for (Connection c : opened) {
+                try {
+                    if (c != null) {
+                        c.close();
+                    }
+                } catch (SQLException e) {
+                    System.err.println("Could not close database connection.");
+                }
+            }
+        }
+        qt.stop();
+        System.out.println("Connection pools warmed up - connections, duration (s): " + connectionNo + ", " + qt.getDurationInS());
     }
 
     /**
@@ -61,16 +176,54 @@ public class ConnectionManager {
      * @return
      */
     public Connection getConnection() {
+        return getConnection(cpds);
+    }
+
+    /**
+     * Retrieves an available connection to the node holding a shard.
+     * 
+     * @param shard
+     * @return
+     */
+    public Connection getConnection(int shard) {
+        if (topology == null) {
+            return getConnection();
+        }
+        return getConnection(nodePools.get(topology.getNodeIndex(shard)));
+    }
+
+    private Connection getConnection(ComboPooledDataSource ds) {
         Connection c = null;
+        long start = System.nanoTime();
         try {
-            c = cpds.getConnection();
+            c = ds.getConnection();
         } catch (SQLException e) {
             System.err.println("Database access error.");
         }
+        PoolStats stats = poolStats.get(ds);
+        if (stats != null) {
+            stats.recordCheckout(System.nanoTime() - start);
+        }
 
         return c;
     }
 
+    /**
+     * Obtains the statistics of the pools, the default pool first.
+     * 
+     * @return
+     */
+    public List<PoolStats> getPoolStats() {
+        List<PoolStats> res = new ArrayList<PoolStats>();
+        if (cpds != null) {
+            res.add(poolStats.get(cpds));
+        }
+        for (ComboPooledDataSource ds : nodePools) {
+            res.add(poolStats.get(ds));
+        }
+        return res;
+    }
+
     /**
      * Obtains connection-related stats.
      * 
@@ -79,17 +232,27 @@ public class ConnectionManager {
     public String getStatus() {
         StringBuffer res = new StringBuffer();
         if (cpds != null) {
-            try {
-                res.append("connections: ");
-                res.append(cpds.getNumConnectionsDefaultUser());
-                res.append("\nbusy connections: ");
-                res.append(cpds.getNumBusyConnectionsDefaultUser());
-                res.append("\nidle connections: ");
-                res.append(cpds.getNumIdleConnectionsDefaultUser());
-            } catch (SQLException e) {
-                System.err.println("Unable to obtain stats.");
-            }
+            appendStatus(res, cpds);
+        }
+        for (int i = 0; i < nodePools.size(); i++) {
+            res.append("\nnode ");
+            res.append(topology.getNodes().get(i));
+            res.append(":\n");
+            appendStatus(res, nodePools.get(i));
         }
         return res.toString();
     }
+
+    private void appendStatus(StringBuffer res, ComboPooledDataSource ds) {
+        try {
+            res.append("connections: ");
+            res.append(ds.getNumConnectionsDefaultUser());
+            res.append("\nbusy connections: ");
+            res.append(ds.getNumBusyConnectionsDefaultUser());
+            res.append("\nidle connections: ");
+            res.append(ds.getNumIdleConnectionsDefaultUser());
+        } catch (SQLException e) {
+            System.err.println("Unable to obtain stats.");
+        }
+    }
 }
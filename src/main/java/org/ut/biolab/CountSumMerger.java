@@ -0,0 +1,28 @@
+package org.ut.biolab;
+
+/**
+ * Merger adding up the first column of the rows, e.g. per-shard counts.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class CountSumMerger extends ResultMerger {
+    private long sum = 0;
+
+    @Override
+    protected void consume(int shard, Object[] row) {
+        if (row[0] != null) {
+            sum += ((Number) row[0]).longValue();
+        }
+    }
+
+    @Override
+    public synchronized Object getResult() {
+        return sum;
+    }
+
+    @Override
+    public String getSummary() {
+        return "sum " + getResult();
+    }
+}
@@ -127,4 +127,22 @@ public class DatabaseManager {
             exportTable(c, s);
         }
     }
+
+    /**
+     * Exports all the tables in the database to files on the client, several
+     * tables and chunks of tables at the same time.
+     * 
+     * @param c
+     *            connection
+     * @param exporter
+     *            exporter writing the files
+     * @param dir
+     *            directory to store the files in
+     */
+    public void exportDb(Connection c, ClientExporter exporter, String dir) {
+        List<String> tables = getTables(c);
+
+        System.out.println("Exporting " + tables.size() + " tables into directory '" + dir + "'.");
+        exporter.export(tables, dir);
+    }
 }
@@ -0,0 +1,35 @@
+package org.ut.biolab;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Merger eliminating duplicate rows across shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class DistinctMerger extends ResultMerger {
+    private Set<Object> rows = new HashSet<Object>();
+
+    @Override
+    protected void consume(int shard, Object[] row) {
+        // single columns are stored directly to save memory
+        if (row.length == 1) {
+            rows.add(row[0]);
+        } else {
+            rows.add(Arrays.asList(row));
+        }
+    }
+
+    @Override
+    public synchronized Object getResult() {
+        return rows;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        return "distinct rows " + rows.size();
+    }
+}
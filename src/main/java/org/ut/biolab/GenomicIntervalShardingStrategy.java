@@ -0,0 +1,237 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Strategy placing variants by genomic locus. The genome is cut into bins of a
+ * fixed width per chromosome and consecutive bins are assigned to shards so
+ * that the shards hold (roughly) the same number of rows. Every shard covers a
+ * few contiguous intervals, so interval queries touch only neighbouring shards.
+ * Rows without a locus go to the first shard.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class GenomicIntervalShardingStrategy extends AbstractShardingStrategy {
+    public static final long DEFAULT_BIN_SIZE = 1000000;
+
+    private String chromColumn = null;
+    private String positionColumn = null;
+    private long binSize = DEFAULT_BIN_SIZE;
+    private List<List<Interval>> intervals = new ArrayList<List<Interval>>();
+    // chromosome -> interval start -> interval
+    private Map<String, TreeMap<Long, Interval>> index = new HashMap<String, TreeMap<Long, Interval>>();
+
+    /**
+     * Interval of positions on a chromosome [start, end) assigned to a shard.
+     */
+    public static class Interval {
+        private String chrom;
+        private long start;
+        private long end;
+        private int shard;
+
+        public Interval(String chrom, long start, long end, int shard) {
+            this.chrom = chrom;
+            this.start = start;
+            this.end = end;
+            this.shard = shard;
+        }
+
+        public String getChrom() {
+            return chrom;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        @Override
+        public String toString() {
+            return chrom + ":" + start + "-" + end;
+        }
+    }
+
+    public GenomicIntervalShardingStrategy(String chromColumn, String positionColumn, long binSize) {
+        this.chromColumn = chromColumn;
+        this.positionColumn = positionColumn;
+        this.binSize = binSize;
+    }
+
+    public void init(Connection c, String table, int shards) {
+        this.shards = shards;
+        intervals.clear();
+        index.clear();
+        for (int i = 0; i < shards; i++) {
+            intervals.add(new ArrayList<Interval>());
+        }
+
+        // row counts per bin in genomic order
+        List<String> chroms = new ArrayList<String>();
+        List<Long> bins = new ArrayList<Long>();
+        List<Long> counts = new ArrayList<Long>();
+        long total = 0;
+        PreparedStatement s = null;
+        ResultSet r = null;
+        try {
+            s = c.prepareStatement("SELECT " + chromColumn + ", FLOOR(" + positionColumn + " / " + binSize + ") AS bin, COUNT(*) FROM " + table + " WHERE "
+                    + chromColumn + " IS NOT NULL AND " + positionColumn + " IS NOT NULL GROUP BY " + chromColumn + ", bin ORDER BY " + chromColumn + ", bin");
+            r = s.executeQuery();
+            while (r.next()) {
+                chroms.add(r.getString(1));
+                bins.add(r.getLong(2));
+                counts.add(r.getLong(3));
+                total += r.getLong(3);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        // assign consecutive bins to shards, merging neighbouring bins of the
+        // same shard into a single interval
+        long seen = 0;
+        Interval current = null;
+        for (int i = 0; i < bins.size(); i++) {
+            int shard = (int) Math.min(shards - 1, seen * shards / Math.max(total, 1));
+            seen += counts.get(i);
+            String chrom = chroms.get(i);
+            long start = bins.get(i) * binSize;
+            if (current != null && current.shard == shard && current.chrom.equals(chrom)) {
+                current.end = start + binSize;
+            } else {
+                current = new Interval(chrom, start, start + binSize, shard);
+                intervals.get(shard).add(current);
+                if (!index.containsKey(chrom)) {
+                    index.put(chrom, new TreeMap<Long, Interval>());
+                }
+                index.get(chrom).put(start, current);
+            }
+        }
+
+        for (int i = 0; i < shards; i++) {
+            System.out.println("Shard " + i + " intervals: " + intervals.get(i));
+        }
+    }
+
+    public List<Interval> getIntervals(int shard) {
+        return intervals.get(shard);
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    public String getSelection(int shard) {
+        List<String> conditions = new ArrayList<String>();
+        for (Interval i : intervals.get(shard)) {
+            conditions.add("(" + chromColumn + " = " + quote(i.chrom) + " AND " + positionColumn + " >= " + i.start + " AND " + positionColumn + " < " + i.end
+                    + ")");
+        }
+        if (shard == 0) {
+            conditions.add("(" + chromColumn + " IS NULL OR " + positionColumn + " IS NULL)");
+        }
+        if (conditions.isEmpty()) {
+            return " WHERE 1=0";
+        }
+
+        StringBuilder res = new StringBuilder(" WHERE ").append(conditions.get(0));
+        for (int i = 1; i < conditions.size(); i++) {
+            res.append(" OR ").append(conditions.get(i));
+        }
+        return res.toString();
+    }
+
+    /**
+     * Determines the shard holding a locus. Loci outside of the planned
+     * intervals go to the shard of the closest preceding interval.
+     * 
+     * @param chrom
+     * @param position
+     * @return
+     */
+    public int getShard(String chrom, long position) {
+        TreeMap<Long, Interval> chromIntervals = index.get(chrom);
+        if (chrom == null || chromIntervals == null) {
+            return 0;
+        }
+        Map.Entry<Long, Interval> e = chromIntervals.floorEntry(position);
+        return e == null ? chromIntervals.firstEntry().getValue().shard : e.getValue().shard;
+    }
+
+    public int getShard(Object[] key) {
+        if (key.length != 2) {
+            throw new IllegalArgumentException("Expected a key of chromosome and position, got " + key.length + " values.");
+        }
+        // rows without a locus live in the first shard
+        if (key[0] == null || key[1] == null) {
+            return 0;
+        }
+        return getShard((String) key[0], ((Number) key[1]).longValue());
+    }
+
+    /**
+     * Determines the shards which may hold rows in a region of a chromosome.
+     * 
+     * @param chrom
+     * @param lo
+     * @param hi
+     * @return
+     */
+    public Set<Integer> getShardsInRegion(String chrom, long lo, long hi) {
+        Set<Integer> res = new TreeSet<Integer>();
+        TreeMap<Long, Interval> chromIntervals = index.get(chrom);
+        if (chromIntervals != null && lo <= hi) {
+            res.add(getShard(chrom, lo));
+            for (Interval i : chromIntervals.subMap(lo, false, hi, true).values()) {
+                res.add(i.shard);
+            }
+        }
+        return res;
+    }
+
+    public Set<Integer> getShards(String column, long lo, long hi) {
+        if (!positionColumn.equalsIgnoreCase(column)) {
+            return allShards();
+        }
+
+        // the chromosome is not known, check all of them
+        Set<Integer> res = new TreeSet<Integer>();
+        for (String chrom : index.keySet()) {
+            res.addAll(getShardsInRegion(chrom, lo, hi));
+        }
+        return res;
+    }
+}
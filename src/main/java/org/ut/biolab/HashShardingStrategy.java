@@ -0,0 +1,63 @@
+package org.ut.biolab;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Strategy placing rows by a hash of a key. The hash is CRC32 of the textual
+ * value of the key, so the server (MySQL CRC32) and the client compute the
+ * same placement. Spreads hot key ranges over all the shards, but only point
+ * lookups can be routed to a single shard. Rows with a NULL key go to the first
+ * shard.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class HashShardingStrategy extends AbstractShardingStrategy {
+    // ranges up to this many values are resolved value by value
+    public static final int MAX_ENUMERATED_RANGE = 1024;
+
+    private String key = null;
+
+    public HashShardingStrategy(String key) {
+        this.key = key;
+    }
+
+    public void init(Connection c, String table, int shards) {
+        this.shards = shards;
+    }
+
+    public String getSelection(int shard) {
+        String res = " WHERE CRC32(" + key + ") % " + shards + " = " + shard;
+        // CRC32(NULL) is NULL, such rows would not be selected by any shard
+        return shard == 0 ? res + " OR " + key + " IS NULL" : res;
+    }
+
+    public int getShard(Object[] key) {
+        if (key[0] == null) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(String.valueOf(key[0]).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return (int) (crc.getValue() % shards);
+    }
+
+    public Set<Integer> getShards(String column, long lo, long hi) {
+        if (!key.equalsIgnoreCase(column) || hi - lo >= MAX_ENUMERATED_RANGE) {
+            return allShards();
+        }
+
+        Set<Integer> res = new TreeSet<Integer>();
+        for (long v = lo; v <= hi && res.size() < shards; v++) {
+            res.add(getShard(new Object[] { v }));
+        }
+        return res;
+    }
+}
@@ -0,0 +1,87 @@
+package org.ut.biolab;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collection of latency histograms grouped by query template. Every group holds
+ * the end-to-end latencies of the template and the latencies of the individual
+ * shards. Recording can be switched off to exclude warmup iterations.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class LatencyRecorder {
+    public static final String END_TO_END = "end-to-end";
+
+    private Map<String, Map<String, LatencyHistogram>> groups = new LinkedHashMap<String, Map<String, LatencyHistogram>>();
+    private volatile boolean recording = true;
+
+    public static String getShardLabel(int shard) {
+        return "shard " + shard;
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Obtains a histogram, creating it if it does not exist.
+     * 
+     * @param group
+     *            e.g. query template
+     * @param name
+     *            e.g. shard label
+     * @return
+     */
+    public synchronized LatencyHistogram getHistogram(String group, String name) {
+        Map<String, LatencyHistogram> g = groups.get(group);
+        if (g == null) {
+            g = new LinkedHashMap<String, LatencyHistogram>();
+            groups.put(group, g);
+        }
+        LatencyHistogram h = g.get(name);
+        if (h == null) {
+            h = new LatencyHistogram();
+            g.put(name, h);
+        }
+        return h;
+    }
+
+    /**
+     * Records a latency unless recording is switched off.
+     * 
+     * @param group
+     * @param name
+     * @param nanos
+     */
+    public void record(String group, String name, long nanos) {
+        if (recording) {
+            getHistogram(group, name).record(nanos);
+        }
+    }
+
+    public synchronized Map<String, Map<String, LatencyHistogram>> getGroups() {
+        return groups;
+    }
+
+    public synchronized void reset() {
+        groups.clear();
+    }
+
+    /**
+     * Prints the percentiles of all the histograms.
+     */
+    public synchronized void report() {
+        for (Map.Entry<String, Map<String, LatencyHistogram>> g : groups.entrySet()) {
+            System.out.println("Latencies of: " + g.getKey());
+            for (Map.Entry<String, LatencyHistogram> h : g.getValue().entrySet()) {
+                System.out.println("  " + h.getKey() + ": " + h.getValue().getSummary());
+            }
+        }
+    }
+}
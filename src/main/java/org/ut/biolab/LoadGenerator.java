@@ -0,0 +1,236 @@
+package org.ut.biolab;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generator of sustained load on a sharded table. Queries of a workload are
+ * issued in turns for a given duration, either at a fixed arrival rate (open
+ * loop) or by a fixed number of clients issuing queries back to back (closed
+ * loop).
+ * 
+ * Whenever a target rate is given, every query has an intended start time and
+ * its latency is measured from that time rather than from the moment it was
+ * actually sent. Queries delayed by a stalled system are therefore charged with
+ * the time they waited, which corrects for coordinated omission.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class LoadGenerator {
+
+    public enum Mode {
+        // fixed arrival rate, queries queue up when the system falls behind
+        OPEN,
+        // fixed number of clients, optionally paced to a target rate
+        CLOSED
+    }
+
+    private QueryExecutorManager qeManager = null;
+    private String table = null;
+    private Workload workload = null;
+    private Mode mode = Mode.OPEN;
+    private int clients = 1;
+    private double rate = 0;
+
+    private LatencyHistogram total = new LatencyHistogram();
+    private LatencyHistogram window = new LatencyHistogram();
+    private long windowStart = 0;
+    private int windowNo = 0;
+    private double throughput = 0;
+    private LatencyRecorder recorder = null;
+    private volatile String stage = null;
+
+    /**
+     * @param qeManager
+     *            executor of the queries on the shards
+     * @param table
+     *            sharded table
+     * @param workload
+     *            mix of queries to run
+     * @param mode
+     * @param clients
+     *            maximum number of queries in flight
+     * @param rate
+     *            target number of queries per second, 0 for as fast as
+     *            possible (closed loop only)
+     */
+    public LoadGenerator(QueryExecutorManager qeManager, String table, Workload workload, Mode mode, int clients, double rate) {
+        this.qeManager = qeManager;
+        this.table = table;
+        this.workload = workload;
+        this.mode = mode;
+        this.clients = clients;
+        this.rate = rate;
+        if (mode == Mode.OPEN && rate <= 0) {
+            throw new IllegalArgumentException("Open loop needs a positive target rate.");
+        }
+    }
+
+    /**
+     * Sets the recorder to break the latencies down by the stage of the run,
+     * e.g. before, during and after a change of the shards.
+     * 
+     * @param recorder
+     */
+    public void setRecorder(LatencyRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets the stage the following queries are recorded under.
+     * 
+     * @param stage
+     */
+    public void setStage(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Generates load for a given time, reporting throughput and latency
+     * periodically.
+     * 
+     * @param durationInS
+     *            duration of the run
+     * @param windowInS
+     *            length of the reporting window
+     * @return latencies over the whole run
+     */
+    public LatencyHistogram run(long durationInS, long windowInS) {
+        qeManager.setVerbose(false);
+        System.out.println("Generating load - mode, clients, target rate (q/s), duration (s): " + mode + ", " + clients + ", " + rate + ", " + durationInS);
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        long start = System.nanoTime();
+        windowStart = start;
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                reportWindow();
+            }
+        }, windowInS, windowInS, TimeUnit.SECONDS);
+
+        long end = start + TimeUnit.SECONDS.toNanos(durationInS);
+        if (mode == Mode.OPEN) {
+            runOpen(start, end);
+        } else {
+            runClosed(start, end);
+        }
+
+        reporter.shutdown();
+        try {
+            reporter.awaitTermination(windowInS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reportWindow();
+        double elapsed = (System.nanoTime() - start) * 0.000000001;
+        throughput = total.getTotalCount() / elapsed;
+        System.out.println(String.format("Total - queries, throughput (q/s): %d, %.2f", total.getTotalCount(), throughput));
+        System.out.println("Total latency: " + total.getSummary());
+        qeManager.setVerbose(true);
+
+        return total;
+    }
+
+    /**
+     * Queries per second achieved over the last run.
+     * 
+     * @return
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    private void runOpen(long start, long end) {
+        ExecutorService workers = Executors.newFixedThreadPool(clients);
+        long interval = (long) (1000000000L / rate);
+        for (long i = 0;; i++) {
+            final long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            sleepUntil(intended);
+            final long op = i;
+            workers.execute(new Runnable() {
+                public void run() {
+                    runQuery(op, intended);
+                }
+            });
+        }
+        awaitWorkers(workers);
+    }
+
+    private void runClosed(final long start, final long end) {
+        ExecutorService workers = Executors.newFixedThreadPool(clients);
+        // every client is paced to its share of the target rate
+        final long interval = rate > 0 ? (long) (1000000000L * clients / rate) : 0;
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            workers.execute(new Runnable() {
+                public void run() {
+                    // spread the clients over the interval
+                    long intended = start + interval * client / clients;
+                    for (long i = client;; i += clients) {
+                        if (interval > 0) {
+                            sleepUntil(intended);
+                        } else {
+                            intended = System.nanoTime();
+                        }
+                        if (intended >= end) {
+                            break;
+                        }
+                        runQuery(i, intended);
+                        intended += interval;
+                    }
+                }
+            });
+        }
+        awaitWorkers(workers);
+    }
+
+    private void runQuery(long op, long intended) {
+        Workload.Template template = workload.getTemplate(op);
+        ResultMerger merger = template.getMerge().newMerger(template.getQuery());
+        qeManager.execute(template.getQuery(), template.getParams(op), table, merger);
+        merger.getResult();
+        record(System.nanoTime() - intended);
+    }
+
+    private synchronized void record(long latency) {
+        window.record(latency);
+        total.record(latency);
+        if (recorder != null && stage != null) {
+            recorder.record(stage, LatencyRecorder.END_TO_END, latency);
+        }
+    }
+
+    private synchronized void reportWindow() {
+        long now = System.nanoTime();
+        double elapsed = (now - windowStart) * 0.000000001;
+        System.out.println(String.format("Window %d - queries, throughput (q/s): %d, %.2f; latency: %s", windowNo++, window.getTotalCount(),
+                elapsed > 0 ? window.getTotalCount() / elapsed : 0, window.getSummary()));
+        window = new LatencyHistogram();
+        windowStart = now;
+    }
+
+    private static void sleepUntil(long time) {
+        long now;
+        while ((now = System.nanoTime()) < time) {
+            LockSupport.parkNanos(time - now);
+        }
+    }
+
+    private static void awaitWorkers(ExecutorService workers) {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // queries still in flight
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.ut.biolab;
+
+/**
+ * Ways of merging results of a query coming from multiple shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public enum MergeStrategy {
+    COUNT_SUM {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return new CountSumMerger();
+        }
+    },
+    CONCATENATION {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return new ConcatenationMerger();
+        }
+    },
+    DISTINCT {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return new DistinctMerger();
+        }
+    },
+    MIN_MAX {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return new MinMaxMerger();
+        }
+    },
+    TOP_K {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return TopKMerger.forQuery(query);
+        }
+    },
+    AGGREGATE {
+        @Override
+        public ResultMerger newMerger(String query) {
+            return AggregateMerger.forQuery(query);
+        }
+    };
+
+    /**
+     * Creates a fresh merger for a single execution of a query. Only some
+     * mergers depend on the query (e.g. its ORDER BY and LIMIT, or its
+     * aggregates), the others ignore it.
+     * 
+     * @param query
+     *            query template
+     * @return
+     */
+    public abstract ResultMerger newMerger(String query);
+}
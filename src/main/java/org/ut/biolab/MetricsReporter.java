@@ -0,0 +1,168 @@
+package org.ut.biolab;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+/**
+ * Periodic reporter of the live metrics of a run. Registers the statistics
+ * of the queries, the shards and the connection pools as MBeans, so that they
+ * can be watched in JConsole or VisualVM while the run goes on, and ends a
+ * reporting period every given number of seconds. The numbers of every period
+ * are optionally appended to CSV files as well: file.shards.csv with a line
+ * per shard and one for all the shards, file.pools.csv with a line per pool.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class MetricsReporter {
+    private ShardMetrics metrics = null;
+    private List<PoolStats> pools = null;
+    private long period = 0;
+    private String file = null;
+    private ScheduledExecutorService scheduler = null;
+    private PrintWriter shardsOut = null;
+    private PrintWriter poolsOut = null;
+    private long start = 0;
+    private long last = 0;
+
+    /**
+     * @param metrics
+     * @param pools
+     *            statistics of the connection pools
+     * @param period
+     *            length of a reporting period (s)
+     * @param file
+     *            base name of the CSV files, null or empty for none
+     */
+    public MetricsReporter(ShardMetrics metrics, List<PoolStats> pools, long period, String file) {
+        this.metrics = metrics;
+        this.pools = pools;
+        this.period = period;
+        this.file = file;
+    }
+
+    /**
+     * Registers the MBeans and starts reporting.
+     */
+    public void start() {
+        metrics.register();
+        for (PoolStats p : pools) {
+            metrics.register(p, "type=Pool,name=" + ObjectName.quote(p.getName()));
+        }
+        if (file != null && !file.isEmpty()) {
+            try {
+                shardsOut = new PrintWriter(new FileWriter(file + ".shards.csv"));
+                shardsOut.println("time_s,shard,queries,queries_per_s,errors,rows,bytes,in_flight,p50_ms,p95_ms,p99_ms,max_ms");
+                poolsOut = new PrintWriter(new FileWriter(file + ".pools.csv"));
+                poolsOut.println("time_s,pool,connections,busy,idle,utilization,awaiting,checkouts,wait_mean_ms,wait_max_ms");
+            } catch (IOException e) {
+                System.err.println("Metrics could not be written into '" + file + "'.");
+                close();
+            }
+        }
+        start = System.nanoTime();
+        last = start;
+        // must not keep the process alive if the run ends abruptly
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, period, period, TimeUnit.SECONDS);
+        System.out.println("Metrics exposed via JMX under " + ShardMetrics.DOMAIN + ", period (s): " + period
+                + (shardsOut != null ? ", written into " + file + ".*.csv" : ""));
+    }
+
+    /**
+     * Ends the current period and writes its numbers.
+     */
+    private synchronized void report() {
+        long now = System.nanoTime();
+        metrics.roll(now - last);
+        last = now;
+        if (shardsOut == null) {
+            return;
+        }
+
+        double time = (now - start) * 0.000000001;
+        LatencyHistogram all = new LatencyHistogram();
+        long queries = 0;
+        long errors = 0;
+        long rows = 0;
+        long bytes = 0;
+        int inFlight = 0;
+        double rate = 0;
+        for (ShardStats s : metrics.getAllStats()) {
+            LatencyHistogram latency = s.getRecentLatency();
+            writeShardLine(time, String.valueOf(s.getShard()), s.getRecentQueries(), s.getQueryRate(), s.getRecentErrors(), s.getRecentRows(),
+                    s.getRecentBytes(), s.getQueriesInFlight(), latency);
+            all.add(latency);
+            queries += s.getRecentQueries();
+            errors += s.getRecentErrors();
+            rows += s.getRecentRows();
+            bytes += s.getRecentBytes();
+            inFlight += s.getQueriesInFlight();
+            rate += s.getQueryRate();
+        }
+        writeShardLine(time, "all", queries, rate, errors, rows, bytes, inFlight, all);
+        shardsOut.flush();
+
+        for (PoolStats p : pools) {
+            poolsOut.println(String.format(Locale.ROOT, "%.3f,%s,%d,%d,%d,%.3f,%d,%d,%.3f,%.3f", time, p.getName(), p.getConnections(),
+                    p.getBusyConnections(), p.getIdleConnections(), p.getUtilization(), p.getThreadsAwaiting(), p.getCheckoutCount(), p.getWaitMeanMs(),
+                    p.getWaitMaxMs()));
+        }
+        poolsOut.flush();
+    }
+
+    private void writeShardLine(double time, String shard, long queries, double rate, long errors, long rows, long bytes, int inFlight,
+            LatencyHistogram latency) {
+        shardsOut.println(String.format(Locale.ROOT, "%.3f,%s,%d,%.2f,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f", time, shard, queries, rate, errors, rows, bytes,
+                inFlight, latency.getValueAtPercentile(50) * 0.000001, latency.getValueAtPercentile(95) * 0.000001,
+                latency.getValueAtPercentile(99) * 0.000001, latency.getMax() * 0.000001));
+    }
+
+    /**
+     * Reports the last, partial period, stops reporting and removes the
+     * MBeans.
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(period, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            report();
+        }
+        metrics.unregister();
+        close();
+    }
+
+    private synchronized void close() {
+        if (shardsOut != null) {
+            shardsOut.close();
+            shardsOut = null;
+        }
+        if (poolsOut != null) {
+            poolsOut.close();
+            poolsOut = null;
+        }
+    }
+}
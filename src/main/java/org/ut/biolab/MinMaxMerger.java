@@ -0,0 +1,45 @@
+package org.ut.biolab;
+
+/**
+ * Merger tracking the minimum and maximum of the first column.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class MinMaxMerger extends ResultMerger {
+    private Comparable<Object> min = null;
+    private Comparable<Object> max = null;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void consume(int shard, Object[] row) {
+        Comparable<Object> value = (Comparable<Object>) row[0];
+        if (value == null) {
+            return;
+        }
+        if (min == null || value.compareTo(min) < 0) {
+            min = value;
+        }
+        if (max == null || value.compareTo(max) > 0) {
+            max = value;
+        }
+    }
+
+    @Override
+    public synchronized Object getResult() {
+        return new Object[] { min, max };
+    }
+
+    public synchronized Object getMin() {
+        return min;
+    }
+
+    public synchronized Object getMax() {
+        return max;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        return "min " + min + ", max " + max;
+    }
+}
@@ -0,0 +1,184 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query path answering LIKE patterns through the n-gram indexes of the shards.
+ * For a query restricting the indexed column by LIKE patterns, the candidate
+ * keys of every shard are looked up in its index, and the query sent to the
+ * shard is restricted to them by an IN list ahead of the original predicates,
+ * which the shard still checks. Shards without candidates are not queried at
+ * all. Shards with more candidates than the limit are scanned as before, a
+ * long IN list would cost more than it saves.
+ * 
+ * Queries with disjunctions or negations, patterns with escapes and patterns
+ * without a literal run of three characters are sent unchanged.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class NgramSearch {
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNSAFE = Pattern.compile("\\b(OR|NOT)\\b|\\|\\|", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIKE = Pattern.compile("(\\w+)\\s+LIKE\\s+'((?:[^']|'')*)'", Pattern.CASE_INSENSITIVE);
+
+    private String table = null;
+    private int maxCandidates = 0;
+    private long queries = 0;
+    private long restricted = 0;
+    private long skipped = 0;
+    private long scanned = 0;
+    private long candidates = 0;
+
+    /**
+     * @param table
+     *            sharded table, the indexes are taken from its current
+     *            metadata
+     * @param maxCandidates
+     *            largest number of keys a shard query is restricted to
+     */
+    public NgramSearch(String table, int maxCandidates) {
+        this.table = table;
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * Extracts the LIKE patterns a query restricts a column by.
+     * 
+     * @param query
+     * @param column
+     * @return patterns, empty if the query cannot be restricted safely
+     */
+    public static List<String> extractPatterns(String query, String column) {
+        List<String> res = new ArrayList<String>();
+        Matcher w = WHERE.matcher(query);
+        if (!w.find()) {
+            return res;
+        }
+        String where = query.substring(w.end());
+        if (UNSAFE.matcher(where).find()) {
+            return res;
+        }
+        Matcher m = LIKE.matcher(where);
+        while (m.find()) {
+            if (m.group(1).equalsIgnoreCase(column)) {
+                res.add(m.group(2).replace("''", "'"));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Determines whether the indexes can restrict a query.
+     * 
+     * @param query
+     * @return
+     */
+    public boolean isApplicable(String query) {
+        ShardMetadata meta = ShardManager.getInstance().getMetadata(table);
+        if (meta == null || meta.getNgramColumn() == null) {
+            return false;
+        }
+        for (String pattern : extractPatterns(query, meta.getNgramColumn())) {
+            if (ShardNgramIndex.getGrams(pattern) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restricts a query sent to a shard to the candidate keys of its index.
+     * 
+     * @param query
+     *            query instantiated for the shard
+     * @param shard
+     * @return query to send, null if no row of the shard can match
+     */
+    public String restrict(String query, int shard) {
+        ShardMetadata meta = ShardManager.getInstance().getMetadata(table);
+        if (meta == null || meta.getNgramColumn() == null || shard >= meta.getShardCount() || meta.getNgramIndex(shard) == null) {
+            return query;
+        }
+        long[] keys = null;
+        for (String pattern : extractPatterns(query, meta.getNgramColumn())) {
+            long[] c = meta.getNgramIndex(shard).getCandidates(pattern);
+            if (c != null) {
+                keys = keys == null ? c : intersect(keys, c);
+            }
+        }
+        if (keys == null) {
+            return query;
+        }
+
+        synchronized (this) {
+            queries++;
+            if (keys.length == 0) {
+                skipped++;
+            } else if (keys.length > maxCandidates) {
+                scanned++;
+            } else {
+                restricted++;
+                candidates += keys.length;
+            }
+        }
+        if (keys.length == 0) {
+            return null;
+        }
+        if (keys.length > maxCandidates) {
+            return query;
+        }
+        Matcher w = WHERE.matcher(query);
+        w.find();
+        StringBuilder res = new StringBuilder(query.length() + 8 * keys.length + 32);
+        res.append(query, 0, w.end()).append(' ').append(meta.getColumn()).append(" IN (");
+        for (int i = 0; i < keys.length; i++) {
+            res.append(i > 0 ? "," : "").append(keys[i]);
+        }
+        return res.append(") AND").append(query, w.end(), query.length()).toString();
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] res = new long[Math.min(a.length, b.length)];
+        int found = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                res[found++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(res, found);
+    }
+
+    /**
+     * Number of shard queries the indexes were consulted for.
+     * 
+     * @return
+     */
+    public synchronized long getQueryCount() {
+        return queries;
+    }
+
+    /**
+     * Number of shard queries not sent since the index had no candidates.
+     * 
+     * @return
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    public synchronized String getSummary() {
+        return String.format("shard queries restricted %d (%.1f keys on average), skipped %d, scanned over %d candidates %d", restricted,
+                restricted > 0 ? (double) candidates / restricted : 0, skipped, maxCandidates, scanned);
+    }
+}
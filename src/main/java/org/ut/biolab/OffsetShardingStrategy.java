@@ -0,0 +1,48 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.util.Set;
+
+/**
+ * Strategy slicing the table into pieces of equal size by LIMIT/OFFSET. Every
+ * slice makes the server scan the table from the start, and the placement is
+ * unrelated to any key, so every lookup touches all the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class OffsetShardingStrategy extends AbstractShardingStrategy {
+    private String orderBy = null;
+    private int piece = 0;
+
+    public OffsetShardingStrategy() {
+    }
+
+    /**
+     * @param orderBy
+     *            column to order the table by before slicing it
+     */
+    public OffsetShardingStrategy(String orderBy) {
+        this.orderBy = orderBy;
+    }
+
+    public void init(Connection c, String table, int shards) {
+        this.shards = shards;
+        int totalRecords = ShardManager.getInstance().countRecords(c, table);
+        piece = (totalRecords + 1) / shards;
+        System.out.println("Total number of records: " + totalRecords);
+        System.out.println("Shard size: " + piece);
+    }
+
+    public String getSelection(int shard) {
+        return (orderBy == null ? "" : " ORDER BY " + orderBy) + " LIMIT " + piece + " OFFSET " + piece * shard;
+    }
+
+    public int getShard(Object[] key) {
+        return -1;
+    }
+
+    public Set<Integer> getShards(String column, long lo, long hi) {
+        return allShards();
+    }
+}
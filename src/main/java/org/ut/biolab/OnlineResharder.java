@@ -0,0 +1,211 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Migration of a sharded table to a new number of shards while queries keep
+ * running. The rows are moved in batches of consecutive keys, in key order,
+ * from the current shards into the shards of the new layout. The keys below
+ * the watermark live in the new layout, the rest in the current one, so a
+ * query sent to the shards of both layouts sees every row exactly once. Rows
+ * sharing a key move in the same batch, and rows with a NULL key move with
+ * the last one.
+ * 
+ * Queries hold the read lock of the layout while they run and batches are
+ * moved under the write lock, so no query sees a batch half moved. The lock
+ * is fair: a batch waits for the queries in flight and queries arriving
+ * meanwhile wait for the batch, which bounds the stall by the batch size.
+ * Between batches the migration sleeps so that it holds the layout for at
+ * most the given fraction of the time. Once all the rows are moved, the new
+ * shards replace the current ones.
+ * 
+ * Only strategies placing rows by a single key (RANGE, HASH) can be migrated
+ * to, and the shards have to live next to the original table.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class OnlineResharder {
+    private String table = null;
+    private String key = null;
+    private int shards = 0;
+    private ShardingStrategy target = null;
+    private long batchRows = 0;
+    private double budget = 1;
+
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // guarded by the lock
+    private boolean migrating = false;
+    private boolean complete = false;
+    private Long watermark = null;
+
+    private long batches = 0;
+    private long rowsMoved = 0;
+    private long lockedTime = 0;
+    private long maxLockedTime = 0;
+
+    /**
+     * @param table
+     *            sharded table
+     * @param key
+     *            integer column the rows are moved in the order of
+     * @param shards
+     *            current number of shards
+     * @param target
+     *            initialized strategy of the new layout
+     * @param batchRows
+     *            number of rows moved at once
+     * @param budget
+     *            fraction of the time the layout may be locked for moving (0-1]
+     */
+    public OnlineResharder(String table, String key, int shards, ShardingStrategy target, long batchRows, double budget) {
+        if (budget <= 0 || budget > 1) {
+            throw new IllegalArgumentException("Resharding budget must be in (0, 1].");
+        }
+        this.table = table;
+        this.key = key;
+        this.shards = shards;
+        this.target = target;
+        this.batchRows = batchRows;
+        this.budget = budget;
+    }
+
+    /**
+     * Lock to hold while a query runs on the shards of the layout.
+     * 
+     * @return
+     */
+    public Lock getReadLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * Obtains the number of shards a query has to be sent to. Call with the
+     * read lock held.
+     * 
+     * @return current shards followed by the shards of the new layout while
+     *         migrating, the shards of the layout in place otherwise
+     */
+    public int getShardCount() {
+        if (complete) {
+            return target.getShardCount();
+        }
+        return migrating ? shards + target.getShardCount() : shards;
+    }
+
+    /**
+     * Obtains the name of a shard a query is sent to. Call with the read lock
+     * held.
+     * 
+     * @param index
+     *            index below getShardCount
+     * @return
+     */
+    public String getShardName(int index) {
+        if (complete || index < shards) {
+            return ShardManager.getShardName(table, index);
+        }
+        return ShardManager.getStagingShardName(table, index - shards);
+    }
+
+    /**
+     * Largest number of shards a query may be sent to.
+     * 
+     * @return
+     */
+    public int getMaxShardCount() {
+        return shards + target.getShardCount();
+    }
+
+    public boolean isComplete() {
+        lock.readLock().lock();
+        try {
+            return complete;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves all the rows into the new layout and puts it in place of the
+     * current one. Blocks until done.
+     * 
+     * @param c
+     *            connection to the database with the original table, not used
+     *            by the queries
+     * @return whether the migration completed
+     */
+    public boolean run(Connection c) {
+        ShardManager sManager = ShardManager.getInstance();
+        System.out.println("Resharding started - shards, new shards, batch (rows), budget: " + shards + ", " + target.getShardCount() + ", "
+                + batchRows + ", " + budget);
+        QueryTimer total = new QueryTimer();
+        total.start();
+        sManager.createStagingShards(c, table, target.getShardCount());
+        lock.writeLock().lock();
+        migrating = true;
+        lock.writeLock().unlock();
+
+        boolean last = false;
+        while (!last) {
+            // the end of the batch is looked up without blocking the queries
+            Long next = sManager.getKeyAfter(c, table, key, watermark, batchRows);
+            if (next != null && watermark != null && next <= watermark) {
+                System.err.println("Resharding stopped at " + key + " " + watermark + ", no key found after it.");
+                return false;
+            }
+            last = next == null;
+
+            long start = System.nanoTime();
+            long rows;
+            lock.writeLock().lock();
+            long locked = System.nanoTime();
+            try {
+                rows = sManager.moveToStaging(c, table, shards, target, key, watermark, next);
+                if (rows >= 0) {
+                    watermark = next;
+                    if (last) {
+                        complete = sManager.completeResharding(c, table, shards, target);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            long end = System.nanoTime();
+            if (rows < 0) {
+                System.err.println("Resharding stopped at " + key + " " + watermark + ", the remaining rows stay in the current shards.");
+                return false;
+            }
+            if (last && !complete) {
+                System.err.println("Resharding could not put the new shards in place, queries keep going to both layouts.");
+                return false;
+            }
+            batches++;
+            rowsMoved += rows;
+            lockedTime += end - locked;
+            maxLockedTime = Math.max(maxLockedTime, end - locked);
+
+            // hold the layout for at most the budget share of the time
+            long pause = (long) ((end - start) * (1 - budget) / budget);
+            if (!last && pause > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        total.stop();
+        System.out.println("Resharding finished - " + getSummary() + ", duration (s): " + total.getDurationInS());
+        return true;
+    }
+
+    public String getSummary() {
+        return String.format("batches %d, rows moved %d, layout locked %.3f s (longest batch %.3f ms)", batches, rowsMoved, lockedTime * 0.000000001,
+                maxLockedTime * 0.000001);
+    }
+}
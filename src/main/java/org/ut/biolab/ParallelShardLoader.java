@@ -0,0 +1,204 @@
+package org.ut.biolab;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader filling shards via files using pooled connections. Every shard has its
+ * own staging file and loading is pipelined: as soon as the export of a shard
+ * finishes, its load is handed over to a separate set of threads, so exporting
+ * the next shards overlaps with loading the previous ones.
+ * 
+ * Like fillShardsViaFile, this needs the staging files to be reachable both by
+ * the database server and this process.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ParallelShardLoader {
+    private int parallelism = 1;
+
+    /**
+     * Statistics of filling a single shard.
+     */
+    public static class ShardLoadStats {
+        private int shard = 0;
+        private long rows = 0;
+        private long bytes = 0;
+        private long exportTime = 0;
+        private long loadTime = 0;
+
+        public int getShard() {
+            return shard;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getExportTime() {
+            return exportTime;
+        }
+
+        public long getLoadTime() {
+            return loadTime;
+        }
+
+        private static double perSecond(double amount, long nanos) {
+            return nanos > 0 ? amount / (nanos * 0.000000001) : 0;
+        }
+
+        @Override
+        public String toString() {
+            double mb = bytes / (1024.0 * 1024.0);
+            return String.format("shard %d: %d rows, %.2f MB, export %.3f s (%.0f rows/s, %.2f MB/s), load %.3f s (%.0f rows/s, %.2f MB/s)", shard, rows, mb,
+                    exportTime * 0.000000001, perSecond(rows, exportTime), perSecond(mb, exportTime), loadTime * 0.000000001, perSecond(rows, loadTime),
+                    perSecond(mb, loadTime));
+        }
+    }
+
+    /**
+     * @param parallelism
+     *            number of shards exported (and loaded) at the same time
+     */
+    public ParallelShardLoader(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Constructs the staging file for a shard.
+     * 
+     * @param file
+     *            base file name
+     * @param index
+     * @return
+     */
+    public static String getStagingFile(String file, int index) {
+        return file + "." + index;
+    }
+
+    /**
+     * Fills the shards of a table.
+     * 
+     * @param table
+     *            original table
+     * @param selections
+     *            clauses selecting the rows of each shard, see
+     *            ShardingStrategy.getSelection
+     * @param file
+     *            base name of the staging files
+     * @return statistics of the individual shards
+     */
+    public List<ShardLoadStats> fill(final String table, String[] selections, String file) {
+        ExecutorService exporters = Executors.newFixedThreadPool(parallelism);
+        final ExecutorService loaders = Executors.newFixedThreadPool(parallelism);
+        List<Future<Future<ShardLoadStats>>> exports = new ArrayList<Future<Future<ShardLoadStats>>>();
+
+        QueryTimer totalTimer = new QueryTimer();
+        totalTimer.start();
+        for (int i = 0; i < selections.length; i++) {
+            final ShardLoadStats stats = new ShardLoadStats();
+            stats.shard = i;
+            final String selection = selections[i];
+            final String staging = getStagingFile(file, i);
+            exports.add(exporters.submit(new Callable<Future<ShardLoadStats>>() {
+                public Future<ShardLoadStats> call() throws SQLException {
+                    export(table, selection, staging, stats);
+                    return loaders.submit(new Callable<ShardLoadStats>() {
+                        public ShardLoadStats call() throws SQLException {
+                            load(ShardManager.getShardName(table, stats.shard), staging, stats);
+                            System.out.println(stats);
+                            return stats;
+                        }
+                    });
+                }
+            }));
+        }
+
+        List<ShardLoadStats> res = new ArrayList<ShardLoadStats>();
+        long rows = 0;
+        long bytes = 0;
+        for (Future<Future<ShardLoadStats>> f : exports) {
+            try {
+                ShardLoadStats stats = f.get().get();
+                rows += stats.rows;
+                bytes += stats.bytes;
+                res.add(stats);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        totalTimer.stop();
+        exporters.shutdown();
+        loaders.shutdown();
+
+        System.out.println(String.format("Filled %d shards with %d rows (%.2f MB) in %.3f s using %d threads per stage", selections.length, rows,
+                bytes / (1024.0 * 1024.0), totalTimer.getDurationInS(), parallelism));
+        return res;
+    }
+
+    private void export(String table, String selection, String staging, ShardLoadStats stats) throws SQLException {
+        File f = new File(staging);
+        if (f.exists()) {
+            f.delete();
+        }
+
+        QueryTimer qt = new QueryTimer();
+        qt.start();
+        stats.rows = update("SELECT * FROM " + table + selection + " INTO OUTFILE '" + staging + "' fields terminated by '\\t'");
+        qt.stop();
+        stats.exportTime = qt.getDuration();
+        stats.bytes = f.length();
+    }
+
+    private void load(String shard, String staging, ShardLoadStats stats) throws SQLException {
+        QueryTimer qt = new QueryTimer();
+        qt.start();
+        update("LOAD DATA INFILE '" + staging + "' INTO TABLE " + shard + " fields terminated by '\\t'");
+        qt.stop();
+        stats.loadTime = qt.getDuration();
+
+        // remove temp file
+        File f = new File(staging);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    private int update(String sql) throws SQLException {
+        Connection c = ConnectionManager.getInstance().getConnection();
+        PreparedStatement p = null;
+        try {
+            p = c.prepareStatement(sql);
+            return p.executeUpdate();
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            try {
+                c.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close database connection.");
+            }
+        }
+    }
+}
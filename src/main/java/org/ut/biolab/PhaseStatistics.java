@@ -0,0 +1,164 @@
+package org.ut.biolab;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregated durations of the phases of shard queries, per query template and
+ * per shard. Can be printed or exported as JSON.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class PhaseStatistics {
+    // template -> shard -> histogram per phase
+    private Map<String, Map<Integer, LatencyHistogram[]>> shards = new LinkedHashMap<String, Map<Integer, LatencyHistogram[]>>();
+    // template -> histogram per phase over all the shards
+    private Map<String, LatencyHistogram[]> templates = new LinkedHashMap<String, LatencyHistogram[]>();
+    private volatile boolean recording = true;
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] res = new LatencyHistogram[QueryPhase.values().length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = new LatencyHistogram();
+        }
+        return res;
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Records the phases of a query.
+     * 
+     * @param template
+     * @param shard
+     * @param trace
+     */
+    public void record(String template, int shard, QueryTrace trace) {
+        if (!recording) {
+            return;
+        }
+        LatencyHistogram[] perShard;
+        LatencyHistogram[] perTemplate;
+        synchronized (this) {
+            Map<Integer, LatencyHistogram[]> s = shards.get(template);
+            if (s == null) {
+                s = new TreeMap<Integer, LatencyHistogram[]>();
+                shards.put(template, s);
+                templates.put(template, newHistograms());
+            }
+            perShard = s.get(shard);
+            if (perShard == null) {
+                perShard = newHistograms();
+                s.put(shard, perShard);
+            }
+            perTemplate = templates.get(template);
+        }
+        for (QueryPhase p : QueryPhase.values()) {
+            perShard[p.ordinal()].record(trace.getDuration(p));
+            perTemplate[p.ordinal()].record(trace.getDuration(p));
+        }
+    }
+
+    /**
+     * Prints the median and tail of every phase per template.
+     */
+    public synchronized void report() {
+        for (Map.Entry<String, LatencyHistogram[]> t : templates.entrySet()) {
+            System.out.println("Query phases of: " + t.getKey());
+            for (QueryPhase p : QueryPhase.values()) {
+                System.out.println("  " + p.name().toLowerCase() + ": " + t.getValue()[p.ordinal()].getSummary());
+            }
+        }
+    }
+
+    private static void appendPhases(StringBuilder json, LatencyHistogram[] histograms) {
+        json.append("{");
+        for (QueryPhase p : QueryPhase.values()) {
+            LatencyHistogram h = histograms[p.ordinal()];
+            if (p.ordinal() > 0) {
+                json.append(", ");
+            }
+            json.append(String.format(Locale.ROOT, "\"%s\": {\"count\": %d, \"mean_ms\": %.6f, \"p50_ms\": %.6f, \"p90_ms\": %.6f, \"p99_ms\": %.6f, \"max_ms\": %.6f}",
+                    p.name().toLowerCase(), h.getTotalCount(), h.getMean() * 0.000001, h.getValueAtPercentile(50) * 0.000001,
+                    h.getValueAtPercentile(90) * 0.000001, h.getValueAtPercentile(99) * 0.000001, h.getMax() * 0.000001));
+        }
+        json.append("}");
+    }
+
+    private static String quote(String s) {
+        StringBuilder res = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                res.append('\\').append(c);
+            } else if (c < 0x20) {
+                res.append(String.format("\\u%04x", (int) c));
+            } else {
+                res.append(c);
+            }
+        }
+        return res.append('"').toString();
+    }
+
+    /**
+     * Serializes the statistics as JSON.
+     * 
+     * @return
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"templates\": [");
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram[]> t : templates.entrySet()) {
+            if (!first) {
+                json.append(", ");
+            }
+            first = false;
+            json.append("{\"template\": ").append(quote(t.getKey())).append(", \"phases\": ");
+            appendPhases(json, t.getValue());
+            json.append(", \"shards\": [");
+            boolean firstShard = true;
+            for (Map.Entry<Integer, LatencyHistogram[]> s : shards.get(t.getKey()).entrySet()) {
+                if (!firstShard) {
+                    json.append(", ");
+                }
+                firstShard = false;
+                json.append("{\"shard\": ").append(s.getKey()).append(", \"phases\": ");
+                appendPhases(json, s.getValue());
+                json.append("}");
+            }
+            json.append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Writes the statistics into a JSON file.
+     * 
+     * @param file
+     */
+    public void exportJson(String file) {
+        Writer w = null;
+        try {
+            w = new FileWriter(file);
+            w.write(toJson());
+            System.out.println("Query phases written to '" + file + "'.");
+        } catch (IOException e) {
+            System.err.println("Failed to write file '" + file + "'.");
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close file '" + file + "'.");
+                }
+            }
+        }
+    }
+}
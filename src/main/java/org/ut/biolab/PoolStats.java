@@ -0,0 +1,103 @@
+package org.ut.biolab;
+
+import java.sql.SQLException;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Live statistics of a connection pool, exposed as an MBean: the state of the
+ * pool as reported by c3p0 and the time spent waiting for its connections,
+ * which c3p0 does not measure.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class PoolStats implements PoolStatsMBean {
+    private String name = null;
+    private ComboPooledDataSource ds = null;
+    private long checkouts = 0;
+    private long waitTime = 0;
+    private long maxWaitTime = 0;
+
+    /**
+     * @param name
+     *            name of the pool, e.g. its node
+     * @param ds
+     */
+    public PoolStats(String name, ComboPooledDataSource ds) {
+        this.name = name;
+        this.ds = ds;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a connection taken from the pool.
+     * 
+     * @param nanos
+     *            time spent waiting for it
+     */
+    public synchronized void recordCheckout(long nanos) {
+        checkouts++;
+        waitTime += nanos;
+        maxWaitTime = Math.max(maxWaitTime, nanos);
+    }
+
+    public int getConnections() {
+        try {
+            return ds.getNumConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public int getBusyConnections() {
+        try {
+            return ds.getNumBusyConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public int getIdleConnections() {
+        try {
+            return ds.getNumIdleConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public int getMaxConnections() {
+        return ds.getMaxPoolSize();
+    }
+
+    /**
+     * Share of the largest number of connections busy.
+     */
+    public double getUtilization() {
+        int busy = getBusyConnections();
+        return busy >= 0 && getMaxConnections() > 0 ? (double) busy / getMaxConnections() : 0;
+    }
+
+    public int getThreadsAwaiting() {
+        try {
+            return ds.getNumThreadsAwaitingCheckoutDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public synchronized long getCheckoutCount() {
+        return checkouts;
+    }
+
+    public synchronized double getWaitMeanMs() {
+        return checkouts > 0 ? waitTime * 0.000001 / checkouts : 0;
+    }
+
+    public synchronized double getWaitMaxMs() {
+        return maxWaitTime * 0.000001;
+    }
+}
@@ -0,0 +1,28 @@
+package org.ut.biolab;
+
+/**
+ * Management interface of the statistics of a connection pool, see
+ * PoolStats.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public interface PoolStatsMBean {
+    public int getConnections();
+
+    public int getBusyConnections();
+
+    public int getIdleConnections();
+
+    public int getMaxConnections();
+
+    public double getUtilization();
+
+    public int getThreadsAwaiting();
+
+    public long getCheckoutCount();
+
+    public double getWaitMeanMs();
+
+    public double getWaitMaxMs();
+}
@@ -4,95 +4,332 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 /**
- * Thread executing a query on a shard. The value we want to pass back has to be
- * an integer for now.
+ * Thread executing a query on a shard. Rows are streamed from the server and
+ * handed over to a merger as they arrive, the value passed back is the number
+ * of rows read from the shard.
  * 
  * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
  * 
  */
 public class QueryExecutor implements Callable<Integer> {
-    // TODO: generalize to other types if needed (cannot use ResultSet due to
-    // connection closing or generics due to arbitrary ResultSet structure)
+    // MySQL Connector/J only streams rows one by one with this fetch size,
+    // otherwise the whole result is buffered in memory before returning
+    public static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+    // other databases (e.g. an embedded stand-in) may reject the value above
+    private static int fetchSize = STREAMING_FETCH_SIZE;
+
     private int shard = 0;
     private String query = "";
+    private ResultMerger merger = null;
     private QueryTimer qt = null;
-    private static Connection conn = null;
+    private Connection conn = null;
+    private LatencyRecorder recorder = null;
+    private String group = null;
+    private boolean verbose = true;
+    private ShardConnections connections = null;
+    private PhaseStatistics phases = null;
+    private ShardResultCache cache = null;
+    private String shardName = null;
+    private long generation = 0;
+    private ShardLoadStatistics load = null;
+    private ShardStats stats = null;
+    private long bytes = 0;
+    private boolean failed = false;
 
-    public QueryExecutor(int shard, String query) {
+    public QueryExecutor(int shard, String query, ResultMerger merger) {
         this.shard = shard;
         this.query = query;
+        this.merger = merger;
         qt = new QueryTimer();
     }
 
     /**
-     * Obtains a connection to the database and executes a query.
+     * Sets the recorder to report the latency of the query to.
      * 
-     * @return
+     * @param recorder
+     * @param group
+     *            group to record into, e.g. query template
+     */
+    public void setRecorder(LatencyRecorder recorder, String group) {
+        this.recorder = recorder;
+        this.group = group;
+    }
+
+    /**
+     * Sets the connections of the shards to reuse instead of taking a
+     * connection from the pool for every query.
+     * 
+     * @param connections
+     */
+    public void setConnections(ShardConnections connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Sets the statistics to record the phases of the query into.
+     * 
+     * @param phases
+     * @param group
+     *            query template
+     */
+    public void setPhaseStatistics(PhaseStatistics phases, String group) {
+        this.phases = phases;
+        this.group = group;
+    }
+
+    /**
+     * Sets the cache to serve the rows from if the shard has not changed
+     * since they were cached, and to cache the rows into otherwise.
+     * 
+     * @param cache
+     * @param shardName
+     *            name of the shard
+     * @param generation
+     *            current generation of the shard
+     */
+    public void setCache(ShardResultCache cache, String shardName, long generation) {
+        this.cache = cache;
+        this.shardName = shardName;
+        this.generation = generation;
+    }
+
+    /**
+     * Sets the statistics to record the work done by the shard into.
+     * 
+     * @param load
+     */
+    public void setLoadStatistics(ShardLoadStatistics load) {
+        this.load = load;
+    }
+
+    /**
+     * Sets the live statistics of the shard to record the query into.
+     * 
+     * @param stats
+     */
+    public void setStats(ShardStats stats) {
+        this.stats = stats;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Obtains a connection to the database, executes a query and merges the
+     * returned rows.
+     * 
+     * @return number of rows read
      * 
      */
     public Integer call() {
-        System.out.println("Querying started: shard " + shard);
-        connect();
+        if (verbose) {
+            System.out.println("Querying started: shard " + shard);
+        }
+        // the connection is obtained within the measured time so that waiting
+        // for the pool is not hidden
+        QueryTrace trace = phases == null ? null : new QueryTrace();
+        if (stats != null) {
+            stats.started();
+        }
         qt.start();
+        ShardResultCache.Entry cached = cache == null ? null : cache.get(query, shardName, generation);
+        Integer res;
+        if (cached != null) {
+            // served without a round trip to the shard
+            merger.setColumns(cached.getColumns());
+            res = 0;
+            for (Object[] row : cached.getRows()) {
+                merger.merge(shard, row);
+                res++;
+                if (merger.isSatisfied(shard)) {
+                    break;
+                }
+            }
+            qt.stop();
+        } else {
+            if (trace != null) {
+                trace.begin();
+            }
+            connect();
+            if (trace != null) {
+                trace.mark(QueryPhase.ACQUIRE);
+            }
 
-        Integer res = runQuery(query);
+            res = runQuery(query, trace);
 
-        qt.stop();
-        disconnect();
-        System.out.println("Querying finished - shard, duration (s): " + shard + ", " + qt.getDurationInS());
+            disconnect();
+            qt.stop();
+            if (load != null) {
+                load.record(shard, qt.getDuration(), res);
+            }
+            if (trace != null) {
+                trace.mark(QueryPhase.RELEASE);
+                phases.record(group, shard, trace);
+            }
+        }
+        if (recorder != null) {
+            qt.recordTo(recorder, group, LatencyRecorder.getShardLabel(shard));
+        }
+        if (stats != null) {
+            stats.finished(qt.getDuration(), res, bytes, failed);
+        }
+        if (verbose) {
+            System.out.println("Querying finished - shard, rows, duration (s): " + shard + ", " + res + ", " + qt.getDurationInS());
+        }
 
         return res;
     }
 
-    private int runQuery(String q) {
-        int res = 0;
-        PreparedStatement s = null;
-        try {
-            s = conn.prepareStatement(q);
-        } catch (SQLException e) {
-            System.err.println("Failed to create query.");
+    /**
+     * Sets the fetch size of the statements streaming results, by default
+     * STREAMING_FETCH_SIZE.
+     * 
+     * @param size
+     */
+    public static void setFetchSize(int size) {
+        fetchSize = size;
+    }
+
+    /**
+     * Prepares a statement streaming its results.
+     * 
+     * @param c
+     * @param q
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepareStreaming(Connection c, String q) throws SQLException {
+        PreparedStatement s = c.prepareStatement(q, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        s.setFetchSize(fetchSize);
+        return s;
+    }
+
+    /**
+     * Decodes the current row of a result.
+     * 
+     * @param r
+     * @param columns
+     *            number of columns of the result
+     * @return
+     * @throws SQLException
+     */
+    static Object[] decodeRow(ResultSet r, int columns) throws SQLException {
+        Object[] row = new Object[columns];
+        for (int i = 0; i < columns; i++) {
+            row[i] = r.getObject(i + 1);
         }
+        return row;
+    }
 
+    private int runQuery(String q, QueryTrace trace) {
+        int res = 0;
+        PreparedStatement s = null;
         ResultSet r = null;
+        boolean cachedStatement = connections != null && connections.isCachingStatements();
+        // rows are kept for the cache unless they grow too large
+        List<Object[]> rows = cache == null ? null : new ArrayList<Object[]>();
+        long size = 0;
+        boolean complete = false;
+        String[] labels = null;
         try {
+            s = cachedStatement ? connections.prepare(conn, q) : prepareStreaming(conn, q);
+            if (trace != null) {
+                trace.mark(QueryPhase.PREPARE);
+            }
             r = s.executeQuery();
-            // while (r.next()) {
-            // res += r.getInt(1);
-            // }
+            boolean more = r.next();
+            if (trace != null) {
+                trace.mark(QueryPhase.FIRST_ROW);
+            }
 
-            // just return 1 if the query succeeded, we only want to measure
-            // query execution time
-            res = 1;
+            int columns = r.getMetaData().getColumnCount();
+            labels = new String[columns];
+            for (int i = 0; i < columns; i++) {
+                labels[i] = r.getMetaData().getColumnLabel(i + 1);
+            }
+            merger.setColumns(labels);
+            while (more) {
+                Object[] row = decodeRow(r, columns);
+                if (trace != null) {
+                    long start = System.nanoTime();
+                    merger.merge(shard, row);
+                    trace.add(QueryPhase.MERGE, System.nanoTime() - start);
+                } else {
+                    merger.merge(shard, row);
+                }
+                if (stats != null) {
+                    bytes += ShardResultCache.estimateSize(row);
+                }
+                if (rows != null) {
+                    size += ShardResultCache.estimateSize(row);
+                    if (size > cache.getMaxEntrySize()) {
+                        rows = null;
+                    } else {
+                        rows.add(row);
+                    }
+                }
+                res++;
+                more = r.next();
+                if (more && merger.isSatisfied(shard)) {
+                    // the driver reads a streaming result to its end when it
+                    // is closed, so the rest of the rows still cross the wire;
+                    // they are only counted, and the result is not cached
+                    while (more) {
+                        res++;
+                        more = r.next();
+                    }
+                    rows = null;
+                }
+            }
+            complete = true;
         } catch (SQLException e) {
             System.err.println("Failed to execute query.");
+            failed = true;
         } finally {
-            if (s != null) {
+            if (r != null) {
                 try {
-                    s.close();
+                    r.close();
                 } catch (SQLException e) {
-                    System.err.println("Failed to close the statement.");
+                    System.err.println("Resultset could not be closed.");
                 }
             }
-            if (r != null) {
+            if (s != null && !cachedStatement) {
                 try {
-                    r.close();
+                    s.close();
                 } catch (SQLException e) {
-                    System.err.println("Resultset could not be closed.");
+                    System.err.println("Failed to close the statement.");
                 }
             }
         }
+        if (trace != null) {
+            trace.mark(QueryPhase.FETCH);
+        }
+        if (rows != null && complete) {
+            cache.put(q, shardName, generation, labels, rows, size);
+        }
 
         return res;
     }
 
     private void connect() {
-        conn = ConnectionManager.getInstance().getConnection();
+        if (connections != null) {
+            conn = connections.acquire(shard);
+        } else {
+            conn = ConnectionManager.getInstance().getConnection(shard);
+        }
     }
 
     private void disconnect() {
+        if (connections != null) {
+            connections.release(shard, conn);
+            return;
+        }
         try {
             conn.close();
         } catch (SQLException e) {
@@ -1,70 +1,415 @@
 package org.ut.biolab;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
- * Pool controller for threads executing queries.
+ * Pool controller for threads executing queries. The threads and the
+ * connections of the shards are kept for the whole run, call shutdown when
+ * done.
  * 
  * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
  * 
  */
 public class QueryExecutorManager {
 
+    /**
+     * Ways of running the queries on the shards.
+     */
+    public enum ExecutionMode {
+        // a pooled thread and a connection per shard query in flight
+        POOLED,
+        // threads created on demand (virtual threads where the runtime has
+        // them), shard queries in flight bounded independently of the number
+        // of shards
+        BOUNDED
+    }
+
     private int queryCount = 0;
     private ExecutorService executor = null;
+    private Semaphore inFlight = null;
+    private ShardConnections connections = null;
+    private ShardRouter router = null;
+    private LatencyRecorder recorder = null;
+    private PhaseStatistics phases = null;
+    private ShardResultCache cache = null;
+    private ShardLoadStatistics load = null;
+    private OnlineResharder resharder = null;
+    private NgramSearch ngrams = null;
+    private ShardMetrics metrics = null;
+    private boolean direct = false;
+    private boolean verbose = true;
 
     public QueryExecutorManager(int queryCount) {
+        this(queryCount, queryCount);
+    }
+
+    /**
+     * @param queryCount
+     *            number of shards
+     * @param threads
+     *            number of shard queries running at the same time, e.g. shards
+     *            times concurrent queries
+     */
+    public QueryExecutorManager(int queryCount, int threads) {
+        this(queryCount, threads, ExecutionMode.POOLED);
+    }
+
+    /**
+     * @param queryCount
+     *            number of shards
+     * @param threads
+     *            number of shard queries running at the same time
+     * @param mode
+     *            way of running the queries, in BOUNDED mode connections are
+     *            shared by all the shards
+     */
+    public QueryExecutorManager(int queryCount, int threads, ExecutionMode mode) {
         this.queryCount = queryCount;
+        if (mode == ExecutionMode.BOUNDED) {
+            executor = newOnDemandExecutor();
+            inFlight = new Semaphore(threads);
+            connections = new ShardConnections(queryCount, false);
+        } else {
+            executor = Executors.newFixedThreadPool(threads);
+            connections = new ShardConnections(queryCount);
+        }
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread per task if the
+     * runtime supports them (Java 21+), otherwise caching platform threads.
+     * 
+     * @return
+     */
+    private static ExecutorService newOnDemandExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Sets the router restricting queries to relevant shards. Without a
+     * router, every query goes to all the shards.
+     * 
+     * @param router
+     */
+    public void setRouter(ShardRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Sets the recorder collecting end-to-end and per-shard latencies, grouped
+     * by query template.
+     * 
+     * @param recorder
+     */
+    public void setRecorder(LatencyRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets the statistics collecting the phases of the shard queries.
+     * 
+     * @param phases
+     */
+    public void setPhaseStatistics(PhaseStatistics phases) {
+        this.phases = phases;
+    }
+
+    /**
+     * Sets the cache of the rows returned by the shards, null for none.
+     * 
+     * @param cache
+     */
+    public void setResultCache(ShardResultCache cache) {
+        this.cache = cache;
     }
 
-    private String instantiateQueryFromTemplate(String template, String param) {
+    /**
+     * Sets the statistics collecting the work done by every shard.
+     * 
+     * @param load
+     */
+    public void setLoadStatistics(ShardLoadStatistics load) {
+        this.load = load;
+    }
+
+    /**
+     * Sets the search restricting LIKE patterns to the candidate keys of the
+     * n-gram indexes of the shards, null to scan the shards. Not used while a
+     * resharder is attached, the indexes describe the original layout.
+     * 
+     * @param ngrams
+     */
+    public void setNgramSearch(NgramSearch ngrams) {
+        this.ngrams = ngrams;
+    }
+
+    /**
+     * Sets the live metrics to record the queries and the shard queries into.
+     * 
+     * @param metrics
+     */
+    public void setMetrics(ShardMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the migration of the table to a new layout to follow. While it is
+     * attached, queries go to the shards of the layout in place, or to the
+     * shards of both layouts while the rows are being moved, and are not
+     * routed. Call before the queries start.
+     * 
+     * @param resharder
+     */
+    public void setResharder(OnlineResharder resharder) {
+        this.resharder = resharder;
+        connections.resize(resharder.getMaxShardCount());
+    }
+
+    /**
+     * Switches querying the original table instead of its shards, e.g. to
+     * compare with an unsharded baseline. Use with a single shard.
+     * 
+     * @param direct
+     */
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Switches caching of prepared statements per shard connection.
+     * 
+     * @param caching
+     */
+    public void setCachingStatements(boolean caching) {
+        connections.setCachingStatements(caching);
+    }
+
+    /**
+     * Opens the connections of the shards in advance.
+     */
+    public void warmUp() {
+        connections.warmUp();
+    }
+
+    /**
+     * Switches printing of the progress of individual queries, e.g. off when
+     * generating sustained load.
+     * 
+     * @param verbose
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    static String instantiateQueryFromTemplate(String template, String param) {
         return String.format(template, param);
     }
 
-    public List<Integer> execute(String query, String table) {
-        executor = Executors.newFixedThreadPool(queryCount);
-        Set<Future<Integer>> tempResults = new HashSet<Future<Integer>>();
+    /**
+     * Instantiates a template taking parameters besides the shard.
+     * 
+     * @param template
+     * @param shard
+     * @param params
+     *            parameters following the shard, null for none
+     * @return
+     */
+    static String instantiateQueryFromTemplate(String template, String shard, Object[] params) {
+        if (params == null) {
+            return instantiateQueryFromTemplate(template, shard);
+        }
+        Object[] args = new Object[params.length + 1];
+        args[0] = shard;
+        System.arraycopy(params, 0, args, 1, params.length);
+        return String.format(template, args);
+    }
+
+    /**
+     * Runs a query on all the shards of a table, merging the rows with the
+     * given merger as they are streamed back. Can be called concurrently.
+     * 
+     * @param query
+     *            query template
+     * @param table
+     *            sharded table
+     * @param merger
+     *            merger of the results
+     * @return numbers of rows returned by the individual shards, in the order
+     *         the shards finished
+     */
+    public List<Integer> execute(String query, String table, ResultMerger merger) {
+        return execute(query, null, table, merger);
+    }
+
+    /**
+     * Runs an instance of a query template taking parameters on all the shards
+     * of a table, see execute(query, table, merger).
+     * 
+     * @param query
+     *            query template, the shard is its first argument
+     * @param params
+     *            parameters following the shard, null for none
+     * @param table
+     *            sharded table
+     * @param merger
+     *            merger of the results
+     * @return numbers of rows returned by the individual shards, in the order
+     *         the shards finished
+     */
+    public List<Integer> execute(String query, Object[] params, String table, ResultMerger merger) {
+        if (metrics != null) {
+            metrics.queryStarted();
+        }
+        try {
+            if (resharder == null) {
+                return execute(query, params, table, merger, queryCount);
+            }
+            // the layout must not change until all its shards have answered
+            Lock layout = resharder.getReadLock();
+            layout.lock();
+            try {
+                return execute(query, params, table, merger, resharder.getShardCount());
+            } finally {
+                layout.unlock();
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.queryFinished();
+            }
+        }
+    }
+
+    private List<Integer> execute(String query, Object[] params, String table, ResultMerger merger, int shardCount) {
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
 
         // spawn threads
         QueryTimer totalTimer = new QueryTimer();
         totalTimer.start();
-        for (int i = 0; i < queryCount; i++) {
-            String q = instantiateQueryFromTemplate(query, ShardManager.getShardName(table, i));
-            Callable<Integer> worker = new QueryExecutor(i, q);
-            Future<Integer> future = executor.submit(worker);
-            tempResults.add(future);
+        // predicates are only known once the parameters are filled in
+        String routed = params == null ? query : instantiateQueryFromTemplate(query, table, params);
+        Set<Integer> shards = new TreeSet<Integer>();
+        if (router != null && resharder == null) {
+            shards = router.route(routed);
+        } else {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(i);
+            }
+        }
+        if (verbose) {
+            System.out.println("Shards queried, pruned: " + shards.size() + ", " + (shardCount - shards.size()));
+        }
+        // e.g. partial aggregates instead of the aggregates themselves
+        String shardQuery = merger.rewrite(query);
+        int submitted = 0;
+        for (int i : shards) {
+            String shardName = direct ? table : resharder != null ? resharder.getShardName(i) : ShardManager.getShardName(table, i);
+            String q = instantiateQueryFromTemplate(shardQuery, shardName, params);
+            if (ngrams != null && resharder == null && !direct) {
+                q = ngrams.restrict(q, i);
+                if (q == null) {
+                    // no row of the shard contains the patterns
+                    continue;
+                }
+            }
+            QueryExecutor worker = new QueryExecutor(i, q, merger);
+            worker.setVerbose(verbose);
+            worker.setConnections(connections);
+            if (recorder != null) {
+                worker.setRecorder(recorder, query);
+            }
+            if (phases != null) {
+                worker.setPhaseStatistics(phases, query);
+            }
+            if (load != null) {
+                worker.setLoadStatistics(load);
+            }
+            if (metrics != null) {
+                worker.setStats(metrics.getStats(i));
+            }
+            if (cache != null) {
+                worker.setCache(cache, shardName, ShardManager.getInstance().getGeneration(shardName));
+            }
+            if (inFlight == null) {
+                completion.submit(worker);
+            } else {
+                // block until a slot is free, the slot is given back once the
+                // shard query finishes
+                inFlight.acquireUninterruptibly();
+                completion.submit(releasing(worker));
+            }
+            submitted++;
         }
 
-        // collect results
+        // collect results as they complete
         List<Integer> finalResults = new ArrayList<Integer>();
-        for (Future<Integer> f : tempResults) {
+        int empty = 0;
+        for (int i = 0; i < submitted; i++) {
             try {
-                finalResults.add(f.get());
+                int rows = completion.take().get();
+                if (rows == 0) {
+                    empty++;
+                }
+                finalResults.add(rows);
             } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                break;
             } catch (ExecutionException e) {
-                // TODO Auto-generated catch block
                 e.printStackTrace();
             }
         }
         totalTimer.stop();
-
-        // finish
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            // wait until everything is done
+        if (router != null && resharder == null && router.isFilteredLookup(routed)) {
+            router.recordFalsePositives(empty);
+        }
+        if (recorder != null) {
+            totalTimer.recordTo(recorder, query, LatencyRecorder.END_TO_END);
         }
 
-        System.out.println("Total query execution duration (s): " + totalTimer.getDurationInS());
+        if (verbose) {
+            System.out.println("Total query execution duration (s): " + totalTimer.getDurationInS());
+        }
         return finalResults;
     }
+
+    private Callable<Integer> releasing(final Callable<Integer> worker) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                try {
+                    return worker.call();
+                } finally {
+                    inFlight.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops the threads and returns the connections of the shards to the
+     * pool.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.close();
+    }
 }
@@ -0,0 +1,22 @@
+package org.ut.biolab;
+
+/**
+ * Phases of running a query on a shard.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public enum QueryPhase {
+    // obtaining a connection
+    ACQUIRE,
+    // preparing the statement
+    PREPARE,
+    // executing the query until the first row arrives
+    FIRST_ROW,
+    // reading the remaining rows
+    FETCH,
+    // merging the rows on the client
+    MERGE,
+    // giving the connection back
+    RELEASE
+}
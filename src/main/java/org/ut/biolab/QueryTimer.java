@@ -38,4 +38,25 @@ public class QueryTimer {
         return (end - start) * 0.000000001;
     }
 
+    /**
+     * Records the measured duration into a histogram.
+     * 
+     * @param histogram
+     */
+    public void recordTo(LatencyHistogram histogram) {
+        histogram.record(getDuration());
+    }
+
+    /**
+     * Records the measured duration unless the recorder is switched off, e.g.
+     * during warmup.
+     * 
+     * @param recorder
+     * @param group
+     * @param name
+     */
+    public void recordTo(LatencyRecorder recorder, String group, String name) {
+        recorder.record(group, name, getDuration());
+    }
+
 }
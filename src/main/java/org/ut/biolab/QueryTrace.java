@@ -0,0 +1,51 @@
+package org.ut.biolab;
+
+/**
+ * Durations (nanoseconds) of the phases of a single query on a shard. Phases
+ * are marked off one after another; time added to a phase explicitly (e.g.
+ * merging rows in the middle of fetching) is not counted again in the phase
+ * marked next.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class QueryTrace {
+    private long[] durations = new long[QueryPhase.values().length];
+    private long last = 0;
+    private long added = 0;
+
+    /**
+     * Starts tracing.
+     */
+    public void begin() {
+        last = System.nanoTime();
+        added = 0;
+    }
+
+    /**
+     * Ends a phase, attributing to it the time since the previous phase ended.
+     * 
+     * @param phase
+     */
+    public void mark(QueryPhase phase) {
+        long now = System.nanoTime();
+        durations[phase.ordinal()] += now - last - added;
+        last = now;
+        added = 0;
+    }
+
+    /**
+     * Adds time to a phase interleaved with another one.
+     * 
+     * @param phase
+     * @param nanos
+     */
+    public void add(QueryPhase phase, long nanos) {
+        durations[phase.ordinal()] += nanos;
+        added += nanos;
+    }
+
+    public long getDuration(QueryPhase phase) {
+        return durations[phase.ordinal()];
+    }
+}
@@ -0,0 +1,92 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Strategy splitting the table into contiguous ranges of an indexed key with
+ * (roughly) the same number of rows.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class RangeShardingStrategy extends AbstractShardingStrategy {
+    private String key = null;
+    private long[] splits = new long[0];
+
+    public RangeShardingStrategy(String key) {
+        this.key = key;
+    }
+
+    public void init(Connection c, String table, int shards) {
+        this.shards = shards;
+        splits = ShardManager.getInstance().computeSplitPoints(c, table, key, shards);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long[] getSplits() {
+        return splits;
+    }
+
+    /**
+     * Replaces the split points, e.g. once the shards have been rebalanced.
+     * 
+     * @param splits
+     *            shards - 1 split points
+     */
+    public void setSplits(long[] splits) {
+        if (splits.length != shards - 1) {
+            throw new IllegalArgumentException("Expected " + (shards - 1) + " split points, got " + splits.length + ".");
+        }
+        this.splits = splits;
+    }
+
+    public String getSelection(int shard) {
+        return " WHERE " + ShardManager.getRangePredicate(key, splits, shard);
+    }
+
+    /**
+     * Determines the shard holding a key value.
+     * 
+     * @param value
+     * @return
+     */
+    public int getShard(long value) {
+        // number of split points not greater than the value
+        int lo = 0;
+        int hi = splits.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (splits[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public int getShard(Object[] key) {
+        // rows with a NULL key live in the first shard
+        if (key[0] == null) {
+            return 0;
+        }
+        return getShard(((Number) key[0]).longValue());
+    }
+
+    public Set<Integer> getShards(String column, long lo, long hi) {
+        if (!key.equalsIgnoreCase(column)) {
+            return allShards();
+        }
+
+        Set<Integer> res = new TreeSet<Integer>();
+        for (int i = getShard(lo); i <= getShard(hi); i++) {
+            res.add(i);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,103 @@
+package org.ut.biolab;
+
+/**
+ * Merger of partial results coming from shards. Rows are handed over one by one
+ * as they are streamed from the shards, so merging runs while other shards are
+ * still returning data. Time spent merging is accumulated across all the
+ * threads feeding the merger.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public abstract class ResultMerger {
+    private long rowCount = 0;
+    private long mergeTime = 0;
+
+    /**
+     * Merges a single row returned by a shard.
+     * 
+     * @param shard
+     *            shard the row comes from
+     * @param row
+     *            decoded row
+     */
+    public synchronized void merge(int shard, Object[] row) {
+        long start = System.nanoTime();
+        consume(shard, row);
+        rowCount++;
+        mergeTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Passes the names of the columns of the rows, before the rows of a shard
+     * are merged. Mergers not depending on the columns ignore them.
+     * 
+     * @param columns
+     */
+    public void setColumns(String[] columns) {
+    }
+
+    /**
+     * Determines whether the merger needs no more rows from a shard, e.g.
+     * because the rest of them cannot make it into the result. The rest of the
+     * rows of the shard are not merged then.
+     * 
+     * @param shard
+     * @return
+     */
+    public boolean isSatisfied(int shard) {
+        return false;
+    }
+
+    /**
+     * Rewrites the query template before it is sent to the shards, e.g. into
+     * partial results the merger combines. The query is sent as it is by
+     * default.
+     * 
+     * @param query
+     *            query template
+     * @return template sent to every shard
+     */
+    public String rewrite(String query) {
+        return query;
+    }
+
+    /**
+     * Incorporates a row into the merged result. Called with the merger locked.
+     * 
+     * @param shard
+     * @param row
+     */
+    protected abstract void consume(int shard, Object[] row);
+
+    /**
+     * Obtains the merged result.
+     * 
+     * @return
+     */
+    public abstract Object getResult();
+
+    /**
+     * Short human-readable description of the merged result.
+     * 
+     * @return
+     */
+    public abstract String getSummary();
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Total time spent merging (nanoseconds).
+     * 
+     * @return
+     */
+    public synchronized long getMergeTime() {
+        return mergeTime;
+    }
+
+    public Double getMergeTimeInMs() {
+        return getMergeTime() * 0.000001;
+    }
+}
@@ -0,0 +1,304 @@
+package org.ut.biolab;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connections kept per shard for the whole run. A query on a shard reuses an
+ * idle connection of that shard, a new one is only taken from the pool when
+ * all the connections of the shard are busy. Connections are returned to the
+ * pool on close. Without shard affinity, idle connections are shared by all
+ * the shards of a node, which keeps the number of connections down for wide
+ * fan-outs.
+ * 
+ * Prepared statements can be cached per connection, so that a query repeated
+ * on a shard is not prepared again. The queries come with their parameters
+ * already in the text, so the literals are taken out and bound to the
+ * placeholders of a statement shared by all the instances of a template.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardConnections {
+    public static final int STATEMENT_CACHE_SIZE = 64;
+
+    private List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<ConcurrentLinkedQueue<Connection>>();
+    private List<Connection> all = new ArrayList<Connection>();
+
+    private boolean affine = true;
+    private boolean cachingStatements = false;
+    private Map<Connection, Map<String, PreparedStatement>> statements = new HashMap<Connection, Map<String, PreparedStatement>>();
+
+    public ShardConnections(int shards) {
+        this(shards, true);
+    }
+
+    /**
+     * @param shards
+     * @param affine
+     *            whether connections are kept separately for every shard
+     */
+    public ShardConnections(int shards, boolean affine) {
+        this.affine = affine;
+        for (int i = 0; i < shards; i++) {
+            idle.add(new ConcurrentLinkedQueue<Connection>());
+        }
+    }
+
+    /**
+     * Keeps connections for more shards, e.g. for the shards of a new layout.
+     * Call before the connections are used.
+     * 
+     * @param shards
+     */
+    public void resize(int shards) {
+        while (idle.size() < shards) {
+            idle.add(new ConcurrentLinkedQueue<Connection>());
+        }
+    }
+
+    private int getQueue(int shard) {
+        // without affinity, connections are only kept apart per node
+        return affine ? shard : ConnectionManager.getInstance().getNodeIndex(shard);
+    }
+
+    public void setCachingStatements(boolean cachingStatements) {
+        this.cachingStatements = cachingStatements;
+    }
+
+    public boolean isCachingStatements() {
+        return cachingStatements;
+    }
+
+    /**
+     * Obtains a streaming statement for a connection of a shard, reusing a
+     * cached one of the same template if possible, with the literals of the
+     * query bound to it. Cached statements must not be closed by the caller.
+     * 
+     * @param c
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(Connection c, String sql) throws SQLException {
+        Map<String, PreparedStatement> cache;
+        synchronized (statements) {
+            cache = statements.get(c);
+            if (cache == null) {
+                cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE) {
+                            closeStatement(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+                statements.put(c, cache);
+            }
+        }
+
+        List<Object> params = new ArrayList<Object>();
+        String template = parameterize(sql, params);
+        // a connection is only used by one thread at a time
+        PreparedStatement s = cache.get(template);
+        if (s == null) {
+            s = QueryExecutor.prepareStreaming(c, template);
+            cache.put(template, s);
+        }
+        for (int i = 0; i < params.size(); i++) {
+            Object param = params.get(i);
+            if (param instanceof Long) {
+                s.setLong(i + 1, (Long) param);
+            } else if (param instanceof BigDecimal) {
+                s.setBigDecimal(i + 1, (BigDecimal) param);
+            } else {
+                s.setString(i + 1, (String) param);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Replaces the numeric and string literals of a query by placeholders.
+     * Literals which cannot be bound as they are (escapes, charset
+     * introducers, hexadecimal or exponent notation) and quoted identifiers
+     * stay in the text. The driver prepares statements on the client and
+     * writes the values into the text, so e.g. ORDER BY 1 stays positional.
+     * 
+     * @param sql
+     * @param params
+     *            receives the values of the literals in order: Long,
+     *            BigDecimal or String
+     * @return query with placeholders
+     */
+    static String parameterize(String sql, List<Object> params) {
+        StringBuilder res = new StringBuilder(sql.length());
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            boolean afterWord = i > 0 && (Character.isLetterOrDigit(sql.charAt(i - 1)) || sql.charAt(i - 1) == '_' || sql.charAt(i - 1) == '.');
+            if (c == '\'' || c == '"' || c == '`') {
+                // quoted, a doubled quote stands for itself
+                StringBuilder value = new StringBuilder();
+                boolean escaped = false;
+                int j = i + 1;
+                while (j < n) {
+                    char d = sql.charAt(j);
+                    if (d == '\\') {
+                        escaped = true;
+                        value.append(d);
+                        if (j + 1 < n) {
+                            value.append(sql.charAt(j + 1));
+                        }
+                        j += 2;
+                    } else if (d == c && j + 1 < n && sql.charAt(j + 1) == c) {
+                        value.append(d);
+                        j += 2;
+                    } else if (d == c) {
+                        break;
+                    } else {
+                        value.append(d);
+                        j++;
+                    }
+                }
+                if (c == '\'' && j < n && !escaped && !afterWord) {
+                    res.append('?');
+                    params.add(value.toString());
+                } else {
+                    res.append(sql, i, Math.min(j + 1, n));
+                }
+                i = j + 1;
+            } else if (Character.isDigit(c) && !afterWord) {
+                int j = i;
+                while (j < n && Character.isDigit(sql.charAt(j))) {
+                    j++;
+                }
+                if (j + 1 < n && sql.charAt(j) == '.' && Character.isDigit(sql.charAt(j + 1))) {
+                    j++;
+                    while (j < n && Character.isDigit(sql.charAt(j))) {
+                        j++;
+                    }
+                }
+                int end = j;
+                while (end < n && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_' || sql.charAt(end) == '.')) {
+                    end++;
+                }
+                String literal = sql.substring(i, j);
+                if (end > j) {
+                    // part of a longer token, e.g. 0x1F or 1e5
+                    res.append(sql, i, end);
+                } else if (literal.indexOf('.') >= 0) {
+                    res.append('?');
+                    params.add(new BigDecimal(literal));
+                } else if (literal.length() < 19) {
+                    res.append('?');
+                    params.add(Long.valueOf(literal));
+                } else {
+                    res.append(literal);
+                }
+                i = end;
+            } else {
+                res.append(c);
+                i++;
+            }
+        }
+        return res.toString();
+    }
+
+    private static void closeStatement(PreparedStatement s) {
+        try {
+            s.close();
+        } catch (SQLException e) {
+            System.err.println("Failed to close the statement.");
+        }
+    }
+
+    /**
+     * Opens a connection for every shard in advance, so that the first
+     * queries do not pay for it.
+     */
+    public void warmUp() {
+        for (int i = 0; i < idle.size(); i++) {
+            if (idle.get(getQueue(i)).isEmpty()) {
+                release(i, acquire(i));
+            }
+        }
+    }
+
+    /**
+     * Obtains a connection for a shard.
+     * 
+     * @param shard
+     * @return
+     */
+    public Connection acquire(int shard) {
+        Connection c = idle.get(getQueue(shard)).poll();
+        if (c == null) {
+            c = ConnectionManager.getInstance().getConnection(shard);
+            synchronized (all) {
+                all.add(c);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Gives a connection back to a shard for reuse.
+     * 
+     * @param shard
+     * @param c
+     */
+    public void release(int shard, Connection c) {
+        if (c != null) {
+            idle.get(getQueue(shard)).offer(c);
+        }
+    }
+
+    public int size() {
+        synchronized (all) {
+            return all.size();
+        }
+    }
+
+    /**
+     * Returns all the connections to the pool.
+     */
+    public void close() {
+        synchronized (statements) {
+            for (Map<String, PreparedStatement> cache : statements.values()) {
+                for (PreparedStatement s : cache.values()) {
+                    closeStatement(s);
+                }
+            }
+            statements.clear();
+        }
+        synchronized (all) {
+            for (Connection c : all) {
+                try {
+                    if (c != null) {
+                        c.close();
+                    }
+                } catch (SQLException e) {
+                    System.err.println("Could not close database connection.");
+                }
+            }
+            all.clear();
+        }
+        for (ConcurrentLinkedQueue<Connection> q : idle) {
+            q.clear();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.ut.biolab;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter of the integer keys held by a shard. The bits are kept off the
+ * heap. A negative answer is definite, so point queries for keys the filter
+ * does not contain need not be sent to the shard at all.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardKeyFilter {
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    private LongBuffer bits = null;
+    private long bitCount = 0;
+    private int hashes = 0;
+    private long keys = 0;
+
+    /**
+     * @param expectedKeys
+     *            number of keys to be added
+     * @param bitsPerKey
+     *            size of the filter per key, 10 gives about 1% false positives
+     */
+    public ShardKeyFilter(long expectedKeys, int bitsPerKey) {
+        long words = Math.max(1, (Math.max(1, expectedKeys) * bitsPerKey + 63) / 64);
+        this.bits = ByteBuffer.allocateDirect((int) (words * 8)).asLongBuffer();
+        this.bitCount = words * 64;
+        this.hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    // finalizer of MurmurHash3, spreads consecutive keys over the whole range
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    public void add(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+        keys++;
+    }
+
+    /**
+     * Determines whether the shard may hold a key.
+     * 
+     * @param key
+     * @return false if the key is certainly not in the shard
+     */
+    public boolean mightContain(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getKeyCount() {
+        return keys;
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * Memory taken by the bits (bytes).
+     * 
+     * @return
+     */
+    public long getSize() {
+        return bitCount / 8;
+    }
+
+    /**
+     * Expected false positive rate for the keys added.
+     * 
+     * @return
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * keys / bitCount), hashes);
+    }
+}
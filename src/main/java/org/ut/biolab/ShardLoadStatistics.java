@@ -0,0 +1,102 @@
+package org.ut.biolab;
+
+/**
+ * Work done by every shard of a table during query runs: number of queries,
+ * time spent answering them and rows returned. Shards which take a
+ * disproportionate share of the time hold the latency of the fan-out back.
+ * Recording can be switched off to exclude warmup iterations.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardLoadStatistics {
+    private long[] queries = null;
+    private long[] busy = null;
+    private long[] rows = null;
+    private volatile boolean recording = true;
+
+    /**
+     * @param shards
+     *            number of shards
+     */
+    public ShardLoadStatistics(int shards) {
+        queries = new long[shards];
+        busy = new long[shards];
+        rows = new long[shards];
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Records a query answered by a shard unless recording is switched off.
+     * 
+     * @param shard
+     * @param nanos
+     *            duration of the query
+     * @param rowCount
+     *            rows returned
+     */
+    public synchronized void record(int shard, long nanos, long rowCount) {
+        if (recording) {
+            queries[shard]++;
+            busy[shard] += nanos;
+            rows[shard] += rowCount;
+        }
+    }
+
+    public int getShardCount() {
+        return queries.length;
+    }
+
+    public synchronized long getQueries(int shard) {
+        return queries[shard];
+    }
+
+    /**
+     * Total time the shard spent answering queries (ns).
+     * 
+     * @param shard
+     * @return
+     */
+    public synchronized long getBusyTime(int shard) {
+        return busy[shard];
+    }
+
+    public synchronized long getRows(int shard) {
+        return rows[shard];
+    }
+
+    /**
+     * Total time all the shards spent answering queries (ns).
+     * 
+     * @return
+     */
+    public synchronized long getTotalBusyTime() {
+        long res = 0;
+        for (long b : busy) {
+            res += b;
+        }
+        return res;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = 0;
+            busy[i] = 0;
+            rows[i] = 0;
+        }
+    }
+
+    /**
+     * Prints the work done by every shard.
+     */
+    public synchronized void report() {
+        long total = getTotalBusyTime();
+        for (int i = 0; i < queries.length; i++) {
+            System.out.println(String.format("Shard %d load - queries, rows returned, busy (s), share: %d, %d, %.3f, %.3f", i, queries[i], rows[i],
+                    busy[i] * 0.000000001, total > 0 ? (double) busy[i] / total : 0));
+        }
+    }
+}
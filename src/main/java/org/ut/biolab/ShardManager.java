@@ -5,6 +5,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class for controlling shards.
@@ -13,7 +19,14 @@ import java.sql.SQLException;
  * 
  */
 public class ShardManager {
+    public static final int INSERT_BATCH_SIZE = 1000;
+
     private static ShardManager instance = null;
+    private Map<String, ShardingStrategy> strategies = new HashMap<String, ShardingStrategy>();
+    private Map<String, ShardMetadata> metadata = new HashMap<String, ShardMetadata>();
+    // shard -> number of modifications
+    private Map<String, Long> generations = new HashMap<String, Long>();
+    private ShardResultCache cache = null;
 
     protected ShardManager() {
         // exists only to defeat instantiation.
@@ -27,69 +40,968 @@ public class ShardManager {
     }
 
     /**
-     * Generate a table name for a given shard.
+     * Generate a table name for a given shard.
+     * 
+     * @param table
+     * @param index
+     * @return
+     */
+    public static String getShardName(String table, int index) {
+        return table + "_shard_" + index;
+    }
+
+    /**
+     * Sets the cache of shard results to invalidate when shards change.
+     * 
+     * @param cache
+     */
+    public void setResultCache(ShardResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Obtains the generation of a shard, which changes whenever the shard is
+     * created, filled or dropped.
+     * 
+     * @param shard
+     *            name of the shard
+     * @return
+     */
+    public synchronized long getGeneration(String shard) {
+        Long res = generations.get(shard);
+        return res == null ? 0 : res;
+    }
+
+    /**
+     * Marks the shards of a table as modified.
+     * 
+     * @param table
+     * @param shards
+     */
+    private synchronized void modifyShards(String table, int shards) {
+        for (int i = 0; i < shards; i++) {
+            modifyShard(getShardName(table, i));
+        }
+    }
+
+    /**
+     * Marks a shard as modified.
+     * 
+     * @param shard
+     *            name of the shard
+     */
+    public synchronized void modifyShard(String shard) {
+        generations.put(shard, getGeneration(shard) + 1);
+        if (cache != null) {
+            cache.invalidate(shard);
+        }
+    }
+
+    /**
+     * Obtains the strategy the shards of a table were created with. Other
+     * components can use it to map keys to shards.
+     * 
+     * @param table
+     * @return strategy, null if the table has not been sharded
+     */
+    public ShardingStrategy getStrategy(String table) {
+        return strategies.get(table);
+    }
+
+    /**
+     * Obtains the metadata recorded for the shards of a table.
+     * 
+     * @param table
+     * @return metadata, null if not recorded
+     */
+    public ShardMetadata getMetadata(String table) {
+        return metadata.get(table);
+    }
+
+    /**
+     * Records the number of rows and the range of a key column in every shard
+     * of a table. Call after the shards are filled. The metadata are kept in
+     * memory only, the shards do not outlive the run.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     * @param key
+     *            integer column to record the range of
+     * @return
+     */
+    public ShardMetadata recordMetadata(Connection c, String table, int shards, String key) {
+        ShardMetadata meta = new ShardMetadata(key, shards);
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            for (int i = 0; i < shards; i++) {
+                Connection sc = getShardConnection(c, i);
+                try {
+                    p = sc.prepareStatement("SELECT COUNT(*), MIN(" + key + "), MAX(" + key + ") FROM " + getShardName(table, i));
+                    r = p.executeQuery();
+                    r.next();
+                    meta.set(i, r.getLong(1), r.getLong(2), r.getLong(3));
+                    r.close();
+                    p.close();
+                } finally {
+                    releaseShardConnection(c, sc);
+                }
+                System.out.println("Shard " + i + " rows, min, max " + key + ": " + meta.getRows(i) + ", " + meta.getMin(i) + ", " + meta.getMax(i));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        metadata.put(table, meta);
+        return meta;
+    }
+
+    /**
+     * Builds a Bloom filter of the values of the key column in every shard of
+     * a table. Call after the metadata are recorded, the filters are attached
+     * to them and kept in memory.
+     * 
+     * @param c
+     * @param table
+     * @param bitsPerKey
+     *            size of the filters per key
+     * @return metadata with the filters, null if the metadata are missing
+     */
+    public ShardMetadata buildKeyFilters(Connection c, String table, int bitsPerKey) {
+        ShardMetadata meta = metadata.get(table);
+        if (meta == null) {
+            return null;
+        }
+        String key = meta.getColumn();
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            for (int i = 0; i < meta.getShardCount(); i++) {
+                QueryTimer qt = new QueryTimer();
+                qt.start();
+                ShardKeyFilter filter = new ShardKeyFilter(meta.getRows(i), bitsPerKey);
+                Connection sc = getShardConnection(c, i);
+                try {
+                    p = QueryExecutor.prepareStreaming(sc, "SELECT " + key + " FROM " + getShardName(table, i) + " WHERE " + key + " IS NOT NULL");
+                    r = p.executeQuery();
+                    while (r.next()) {
+                        filter.add(r.getLong(1));
+                    }
+                    r.close();
+                    p.close();
+                } finally {
+                    releaseShardConnection(c, sc);
+                }
+                qt.stop();
+                meta.setFilter(i, filter);
+                System.out.println(String.format("Shard %d key filter - keys, size (KB), hashes, expected false positives, duration (s): %d, %.1f, %d, %.4f, %.3f",
+                        i, filter.getKeyCount(), filter.getSize() / 1024.0, filter.getHashCount(), filter.getExpectedFalsePositiveRate(), qt.getDurationInS()));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        System.out.println("Key filters built - total size (KB): " + meta.getFilterSize() / 1024);
+        return meta;
+    }
+
+    /**
+     * Builds a trigram index of a string column in every shard of a table,
+     * keyed by the key column of the metadata. Call after the metadata are
+     * recorded, the indexes are attached to them and kept in memory. The key
+     * has to be an integer column without negative values, the candidates are
+     * looked up by it.
+     * 
+     * @param c
+     * @param table
+     * @param column
+     *            string column to index
+     * @return metadata with the indexes, null if the metadata are missing or
+     *         the key cannot be indexed by
+     */
+    public ShardMetadata buildNgramIndexes(Connection c, String table, String column) {
+        ShardMetadata meta = metadata.get(table);
+        if (meta == null) {
+            return null;
+        }
+        String key = meta.getColumn();
+        if (!isIndexKey(c, table, key)) {
+            System.out.println("N-gram indexes of " + column + " not built, key " + key + " has to be an integer column without negative values.");
+            return null;
+        }
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            for (int i = 0; i < meta.getShardCount(); i++) {
+                QueryTimer qt = new QueryTimer();
+                qt.start();
+                ShardNgramIndex index = new ShardNgramIndex();
+                Connection sc = getShardConnection(c, i);
+                try {
+                    // keys in order, so that the lists are encoded as they grow
+                    p = QueryExecutor.prepareStreaming(sc, "SELECT " + key + ", " + column + " FROM " + getShardName(table, i) + " WHERE " + key
+                            + " IS NOT NULL ORDER BY " + key);
+                    r = p.executeQuery();
+                    while (r.next()) {
+                        index.add(r.getLong(1), r.getString(2));
+                    }
+                    r.close();
+                    p.close();
+                } finally {
+                    releaseShardConnection(c, sc);
+                }
+                index.seal();
+                qt.stop();
+                meta.setNgramIndex(column, i, index);
+                System.out.println(String.format("Shard %d n-gram index - rows, trigrams, postings, size (KB), duration (s): %d, %d, %d, %.1f, %.3f", i,
+                        index.getRowCount(), index.getGramCount(), index.getPostingCount(), index.getSize() / 1024.0, qt.getDurationInS()));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        System.out.println("N-gram indexes of " + column + " built - total size (KB): " + meta.getNgramIndexSize() / 1024);
+        return meta;
+    }
+
+    /**
+     * Determines whether a column can key an n-gram index: the column is of an
+     * integer type and has no negative values.
+     * 
+     * @param c
+     * @param table
+     * @param key
+     * @return
+     */
+    private boolean isIndexKey(Connection c, String table, String key) {
+        boolean res = false;
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            p = c.prepareStatement("SELECT MIN(" + key + ") FROM " + table);
+            r = p.executeQuery();
+            switch (r.getMetaData().getColumnType(1)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                res = r.next() && r.getLong(1) >= 0;
+                break;
+            default:
+                res = false;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Creates a strategy slicing the table by LIMIT/OFFSET, as used by the
+     * methods not taking a strategy.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     * @param orderBy
+     *            column to order by, null for none
+     * @return
+     */
+    private ShardingStrategy offsetStrategy(Connection c, String table, int shards, String orderBy) {
+        ShardingStrategy strategy = new OffsetShardingStrategy(orderBy);
+        strategy.init(c, table, shards);
+        return strategy;
+    }
+
+    /**
+     * Creates tables for shards based on the schema of the parent table.
+     * 
+     * @param c
+     * @param table
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
+     */
+    public void createShards(Connection c, String table, ShardingStrategy strategy) {
+        strategies.put(table, strategy);
+        createShards(c, table, strategy.getShardCount());
+    }
+
+    /**
+     * Obtains a connection to the node holding a shard. Without a topology,
+     * shards live next to the original table and the given connection is
+     * used.
+     * 
+     * @param c
+     *            connection to the database with the original table
+     * @param shard
+     * @return
+     */
+    private Connection getShardConnection(Connection c, int shard) {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        return cm.hasTopology() ? cm.getConnection(shard) : c;
+    }
+
+    /**
+     * Returns a connection obtained by getShardConnection.
+     * 
+     * @param c
+     * @param shardConnection
+     */
+    private void releaseShardConnection(Connection c, Connection shardConnection) {
+        if (shardConnection != null && shardConnection != c) {
+            try {
+                shardConnection.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close database connection.");
+            }
+        }
+    }
+
+    /**
+     * Obtains the statement creating a shard with the schema of the original
+     * table, so that it can be created on another node.
+     * 
+     * @param c
+     * @param table
+     * @param shard
+     *            name of the shard table
+     * @return
+     * @throws SQLException
+     */
+    private String getCreateStatement(Connection c, String table, String shard) throws SQLException {
+        PreparedStatement p = c.prepareStatement("SHOW CREATE TABLE " + table);
+        try {
+            ResultSet r = p.executeQuery();
+            r.next();
+            String ddl = r.getString(2);
+            r.close();
+            return ddl.replaceFirst("^CREATE TABLE `?" + table + "`?", "CREATE TABLE IF NOT EXISTS " + shard);
+        } finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Creates tables for shards based on the schema of the parent table. With
+     * a topology, the shards are created on their nodes.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     */
+    public void createShards(Connection c, String table, int shards) {
+        PreparedStatement p = null;
+        for (int i = 0; i < shards; i++) {
+            // create table for a shard
+            Connection sc = getShardConnection(c, i);
+            try {
+                if (sc == c) {
+                    p = c.prepareStatement("CREATE TABLE IF NOT EXISTS " + getShardName(table, i) + " LIKE " + table);
+                } else {
+                    p = sc.prepareStatement(getCreateStatement(c, table, getShardName(table, i)));
+                }
+                System.out.println("Creating shard: " + i);
+                p.execute();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                if (p != null) {
+                    try {
+                        p.close();
+                    } catch (SQLException e) {
+                        System.err.println("Failed to close the statement.");
+                    }
+                }
+                releaseShardConnection(c, sc);
+            }
+        }
+
+        modifyShards(table, shards);
+    }
+
+    /**
+     * Determines the number of records in a table.
+     * 
+     * @param c
+     * @param table
+     * @return
+     */
+    public int countRecords(Connection c, String table) {
+        return countRecords(c, table, null);
+    }
+
+    /**
+     * Determines the number of records in a table satisfying a condition.
+     * 
+     * @param c
+     * @param table
+     * @param condition
+     *            condition of the WHERE clause, null for all the records
+     * @return
+     */
+    public int countRecords(Connection c, String table, String condition) {
+        int count = 1;
+        PreparedStatement s = null;
+        ResultSet co = null;
+        try {
+            s = c.prepareStatement("SELECT count(*) FROM " + table + (condition == null ? "" : " WHERE " + condition));
+            co = s.executeQuery();
+            co.next();
+            count = co.getInt(1);
+        } catch (SQLException e1) {
+            // TODO Auto-generated catch block
+            e1.printStackTrace();
+        } finally {
+            if (co != null) {
+                try {
+                    co.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Computes the values of an indexed key splitting a table into ranges of
+     * (roughly) equal size. Reads the key in a single ordered pass over the
+     * index. Shard i covers the keys in [splits[i-1], splits[i]), the first and
+     * the last shard are unbounded from below and above respectively. Rows
+     * with a NULL key are not counted and go to the first shard.
+     * 
+     * @param c
+     * @param table
+     * @param key
+     *            indexed column to split on
+     * @param shards
+     * @return shards - 1 split points
+     */
+    public long[] computeSplitPoints(Connection c, String table, String key, int shards) {
+        long[] splits = new long[shards - 1];
+        // shards beyond the end of the table stay empty
+        Arrays.fill(splits, Long.MAX_VALUE);
+
+        int totalRecords = countRecords(c, table, key + " IS NOT NULL");
+        long piece = (totalRecords + 1) / shards;
+        PreparedStatement s = null;
+        ResultSet r = null;
+        try {
+            s = QueryExecutor.prepareStreaming(c, "SELECT " + key + " FROM " + table + " WHERE " + key + " IS NOT NULL ORDER BY " + key);
+            r = s.executeQuery();
+            long row = 0;
+            int next = 0;
+            while (next < splits.length && r.next()) {
+                if (row == piece * (next + 1)) {
+                    splits[next++] = r.getLong(1);
+                }
+                row++;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+
+        System.out.println("Split points on " + key + ": " + Arrays.toString(splits));
+        return splits;
+    }
+
+    /**
+     * Generates a condition selecting the key range of a shard. The first
+     * shard selects the rows with a NULL key as well.
+     * 
+     * @param key
+     * @param splits
+     *            split points as computed by computeSplitPoints
+     * @param index
+     * @return
+     */
+    public static String getRangePredicate(String key, long[] splits, int index) {
+        String res = getRangePredicate(key, getLowerBound(splits, index), getUpperBound(splits, index));
+        if (index == 0 && splits.length > 0) {
+            return "(" + res + " OR " + key + " IS NULL)";
+        }
+        return res;
+    }
+
+    /**
+     * Generates a condition selecting a key range.
+     * 
+     * @param key
+     * @param lo
+     *            lower bound (inclusive), null for none
+     * @param hi
+     *            upper bound (exclusive), null for none
+     * @return
+     */
+    public static String getRangePredicate(String key, Long lo, Long hi) {
+        List<String> bounds = new ArrayList<String>();
+        if (lo != null) {
+            bounds.add(key + " >= " + lo);
+        }
+        if (hi != null) {
+            bounds.add(key + " < " + hi);
+        }
+        if (bounds.isEmpty()) {
+            return "1=1";
+        }
+
+        StringBuilder res = new StringBuilder(bounds.get(0));
+        for (int i = 1; i < bounds.size(); i++) {
+            res.append(" AND ").append(bounds.get(i));
+        }
+        return res.toString();
+    }
+
+    private static Long getLowerBound(long[] splits, int index) {
+        return index > 0 ? (Long) splits[index - 1] : null;
+    }
+
+    private static Long getUpperBound(long[] splits, int index) {
+        return index < splits.length ? (Long) splits[index] : null;
+    }
+
+    /**
+     * Obtains the value of the key at a given position in the key order of a
+     * shard, e.g. to split the shard there.
+     * 
+     * @param c
+     * @param table
+     * @param shard
+     * @param key
+     * @param offset
+     *            number of smaller keys
+     * @return key, null if the shard holds fewer keys
+     */
+    public Long getKeyAt(Connection c, String table, int shard, String key, long offset) {
+        Long res = null;
+        Connection sc = getShardConnection(c, shard);
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            p = sc.prepareStatement("SELECT " + key + " FROM " + getShardName(table, shard) + " WHERE " + key + " IS NOT NULL ORDER BY " + key
+                    + " LIMIT 1 OFFSET " + offset);
+            r = p.executeQuery();
+            if (r.next()) {
+                res = r.getLong(1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            releaseShardConnection(c, sc);
+        }
+        return res;
+    }
+
+    /**
+     * Moves rows between the shards of a table split into key ranges so that
+     * they follow new split points. Only the rows whose shard changes are
+     * moved, every key range straight from its old shard to its new one. The
+     * rows are copied before they are deleted from the old shard, queries
+     * running meanwhile may see them twice.
+     * 
+     * @param c
+     * @param table
+     * @param strategy
+     *            strategy the shards were filled by, updated to the new split
+     *            points
+     * @param splits
+     *            new split points
+     * @return number of rows moved
+     */
+    public long resplit(Connection c, String table, RangeShardingStrategy strategy, long[] splits) {
+        long[] old = strategy.getSplits();
+        String key = strategy.getKey();
+        long res = 0;
+        for (int i = 0; i <= old.length; i++) {
+            for (int j = 0; j <= splits.length; j++) {
+                if (i == j) {
+                    continue;
+                }
+                // intersection of the old range of i and the new range of j
+                Long lo = getLowerBound(old, i);
+                Long newLo = getLowerBound(splits, j);
+                if (lo == null || (newLo != null && newLo > lo)) {
+                    lo = newLo;
+                }
+                Long hi = getUpperBound(old, i);
+                Long newHi = getUpperBound(splits, j);
+                if (hi == null || (newHi != null && newHi < hi)) {
+                    hi = newHi;
+                }
+                if (lo != null && hi != null && lo >= hi) {
+                    continue;
+                }
+
+                QueryTimer qt = new QueryTimer();
+                qt.start();
+                long rows = moveRows(c, table, i, j, getRangePredicate(key, lo, hi));
+                qt.stop();
+                if (rows > 0) {
+                    System.out.println("Rows moved - from shard, to shard, range, rows, duration (s): " + i + ", " + j + ", ["
+                            + (lo == null ? "-inf" : lo) + ", " + (hi == null ? "inf" : hi) + "), " + rows + ", " + qt.getDurationInS());
+                }
+                res += rows;
+            }
+        }
+
+        strategy.setSplits(splits);
+        modifyShards(table, splits.length + 1);
+        System.out.println("Split points on " + key + ": " + Arrays.toString(splits));
+        return res;
+    }
+
+    /**
+     * Moves the rows matching a condition from one shard to another. Shards
+     * in the same database are copied by the database in a transaction, shards
+     * on other nodes through this client.
+     * 
+     * @param c
+     * @param table
+     * @param from
+     * @param to
+     * @param predicate
+     * @return number of rows moved
+     */
+    private long moveRows(Connection c, String table, int from, int to, String predicate) {
+        String select = "SELECT * FROM " + getShardName(table, from) + " WHERE " + predicate;
+        Connection source = getShardConnection(c, from);
+        Connection target = getShardConnection(c, to);
+        PreparedStatement p = null;
+        long res = 0;
+        boolean local = source == c && target == c;
+        try {
+            if (local) {
+                c.setAutoCommit(false);
+                p = c.prepareStatement("INSERT INTO " + getShardName(table, to) + " " + select);
+                res = p.executeUpdate();
+                p.close();
+            } else {
+                res = copyRows(source, select, target, getShardName(table, to));
+            }
+            p = source.prepareStatement("DELETE FROM " + getShardName(table, from) + " WHERE " + predicate);
+            p.execute();
+            if (local) {
+                c.commit();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (local) {
+                try {
+                    c.rollback();
+                } catch (SQLException e1) {
+                    System.err.println("Failed to roll back the move.");
+                }
+            }
+            res = 0;
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            if (local) {
+                try {
+                    c.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.err.println("Failed to restore autocommit.");
+                }
+            }
+            releaseShardConnection(c, source);
+            releaseShardConnection(c, target);
+        }
+        return res;
+    }
+
+    /**
+     * Fill shards with data from the original table.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     */
+    public void fillShards(Connection c, String table, int shards) {
+        fillShards(c, table, offsetStrategy(c, table, shards, null));
+    }
+
+    /**
+     * Fill shards with data from the original table placed by a strategy.
+     * 
+     * @param c
+     * @param table
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
+     */
+    public void fillShards(Connection c, String table, ShardingStrategy strategy) {
+        // do everything in a transaction to ensure consistency
+        PreparedStatement p = null;
+        int shards = strategy.getShardCount();
+        System.out.println("Total number of shards: " + shards);
+        try {
+            c.setAutoCommit(false);
+            for (int i = 0; i < shards; i++) {
+                // distribute the original table's data to shards
+                p = c.prepareStatement("INSERT INTO " + getShardName(table, i) + " SELECT * FROM " + table + strategy.getSelection(i));
+                System.out.println("Creating shard: " + i);
+                p.execute();
+            }
+            c.commit();
+            c.setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+        modifyShards(table, shards);
+    }
+
+    /**
+     * Fill shards with data from the original table. If your storage does not
+     * support direct insert (like ICE), use this instead of fillShards.
+     * 
+     * Be careful with this, ideally run with database running on localhost as
+     * it can transfer huge amounts of data.
+     * 
+     * Currently recycles a single file and performs operations in a serial
+     * manner. There is potential speedup if this part is parallellized,
+     * especially if you are testing on a machine with multiple hard disks.
+     * Howver, since sharding is usually only performed once and we are only
+     * interested in the time it takes to run the queries, we do not mind if
+     * this operation takes slightly more time than optimum. For large numbers
+     * of shards, use fillShardsInParallel.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     * @param buffer
+     */
+    public void fillShardsViaFile(Connection c, String table, int shards, String file) {
+        fillShardsViaFile(c, table, file, offsetStrategy(c, table, shards, null));
+    }
+
+    /**
+     * Fill shards with data from the original table via a file, placing rows
+     * by a strategy.
      * 
+     * @param c
      * @param table
-     * @param index
-     * @return
+     * @param file
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
      */
-    public static String getShardName(String table, int index) {
-        return table + "_shard_" + index;
+    public void fillShardsViaFile(Connection c, String table, String file, ShardingStrategy strategy) {
+        PreparedStatement p = null;
+        File f = new File(file);
+        int shards = strategy.getShardCount();
+        System.out.println("Total number of shards: " + shards);
+        try {
+            for (int i = 0; i < shards; i++) {
+                // distribute the original table's data to shards
+                System.out.println("Filling in shard: " + i);
+                p = c.prepareStatement("SELECT * FROM " + table + strategy.getSelection(i) + " INTO OUTFILE '" + file + "' fields terminated by '\\t'");
+                p.execute();
+                p = c.prepareStatement("LOAD DATA INFILE '" + file + "' INTO TABLE " + getShardName(table, i) + " fields terminated by '\\t'");
+                p.execute();
+
+                // remove temp file
+                if (f.exists())
+                    f.delete();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+        modifyShards(table, shards);
     }
 
     /**
-     * Creates tables for shards based on the schema of the parent table.
+     * Fill shards with data from the original table by reading the rows of
+     * every shard and inserting them in batches through this client. Works
+     * across nodes of a topology, where the database cannot copy the rows
+     * itself.
      * 
      * @param c
+     *            connection to the database with the original table
      * @param table
-     * @param shards
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
      */
-    public void createShards(Connection c, String table, int shards) {
-        PreparedStatement p = null;
+    public void fillShardsViaClient(Connection c, String table, ShardingStrategy strategy) {
+        int shards = strategy.getShardCount();
+        System.out.println("Total number of shards: " + shards);
         for (int i = 0; i < shards; i++) {
-            // create table for a shard
+            System.out.println("Filling in shard: " + i);
+            QueryTimer qt = new QueryTimer();
+            qt.start();
+            Connection sc = getShardConnection(c, i);
+            long rows = 0;
             try {
-                p = c.prepareStatement("CREATE TABLE IF NOT EXISTS " + getShardName(table, i) + " LIKE " + table);
-                System.out.println("Creating shard: " + i);
-                p.execute();
+                rows = copyRows(c, "SELECT * FROM " + table + strategy.getSelection(i), sc, getShardName(table, i));
             } catch (SQLException e) {
                 e.printStackTrace();
             } finally {
-                if (p != null) {
-                    try {
-                        p.close();
-                    } catch (SQLException e) {
-                        System.err.println("Failed to close the statement.");
-                    }
-                }
+                releaseShardConnection(c, sc);
             }
+            qt.stop();
+            System.out.println("Shard filled - shard, rows, duration (s): " + i + ", " + rows + ", " + qt.getDurationInS());
         }
-
+        modifyShards(table, shards);
     }
 
     /**
-     * Determines the number of records in a table.
+     * Streams the rows selected by a query and inserts them into a table in
+     * batches through this client.
      * 
-     * @param c
+     * @param source
+     *            connection to run the query on
+     * @param query
+     * @param target
+     *            connection to insert the rows through
      * @param table
-     * @return
+     *            table to insert the rows into
+     * @return number of rows copied
+     * @throws SQLException
      */
-    public int countRecords(Connection c, String table) {
-        int count = 1;
+    long copyRows(Connection source, String query, Connection target, String table) throws SQLException {
         PreparedStatement s = null;
-        ResultSet co = null;
+        PreparedStatement p = null;
+        ResultSet r = null;
+        long rows = 0;
         try {
-            s = c.prepareStatement("SELECT count(*) FROM " + table);
-            co = s.executeQuery();
-            co.next();
-            count = co.getInt(1);
-        } catch (SQLException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            s = QueryExecutor.prepareStreaming(source, query);
+            r = s.executeQuery();
+            int columns = r.getMetaData().getColumnCount();
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int j = 1; j < columns; j++) {
+                placeholders.append(", ?");
+            }
+            p = target.prepareStatement("INSERT INTO " + table + " VALUES (" + placeholders + ")");
+            while (r.next()) {
+                for (int j = 1; j <= columns; j++) {
+                    p.setObject(j, r.getObject(j));
+                }
+                p.addBatch();
+                if (++rows % INSERT_BATCH_SIZE == 0) {
+                    p.executeBatch();
+                }
+            }
+            p.executeBatch();
         } finally {
-            if (co != null) {
+            if (r != null) {
                 try {
-                    co.close();
+                    r.close();
                 } catch (SQLException e) {
                     System.err.println("Resultset could not be closed.");
                 }
@@ -101,38 +1013,93 @@ public class ShardManager {
                     System.err.println("Failed to close the statement.");
                 }
             }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
         }
+        return rows;
+    }
 
-        return count;
+    /**
+     * Fill shards with data from the original table via a separate staging
+     * file per shard, exporting and loading several shards at once over pooled
+     * connections.
+     * 
+     * @param table
+     * @param file
+     *            base name of the staging files
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
+     * @param parallelism
+     *            number of shards exported and loaded at the same time
+     */
+    public void fillShardsInParallel(String table, String file, ShardingStrategy strategy, int parallelism) {
+        String[] selections = new String[strategy.getShardCount()];
+        for (int i = 0; i < selections.length; i++) {
+            selections[i] = strategy.getSelection(i);
+        }
+        new ParallelShardLoader(parallelism).fill(table, selections, file);
+        modifyShards(table, selections.length);
     }
 
     /**
-     * Fill shards with data from the original table.
+     * Fill shards with data from the original table by streaming the rows
+     * through this client, without files. Works across nodes of a topology.
+     * 
+     * @param table
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
+     * @param method
+     *            LOAD DATA LOCAL INFILE from memory or batched INSERTs
+     * @param parallelism
+     *            number of shards filled at the same time
+     */
+    public void fillShardsViaStream(String table, ShardingStrategy strategy, StreamingShardLoader.Method method, int parallelism) {
+        String[] selections = new String[strategy.getShardCount()];
+        for (int i = 0; i < selections.length; i++) {
+            selections[i] = strategy.getSelection(i);
+        }
+        new StreamingShardLoader(method, parallelism, StreamingShardLoader.DEFAULT_BUFFER_SIZE).fill(table, selections);
+        modifyShards(table, selections.length);
+    }
+
+    /**
+     * Generate a table name for a shard of the layout a table is being
+     * resharded into.
+     * 
+     * @param table
+     * @param index
+     * @return
+     */
+    public static String getStagingShardName(String table, int index) {
+        return table + "_reshard_" + index;
+    }
+
+    private static String getRetiredShardName(String table, int index) {
+        return table + "_retired_" + index;
+    }
+
+    /**
+     * Creates the shards of the layout a table is being resharded into, next
+     * to the original table.
      * 
      * @param c
      * @param table
      * @param shards
      */
-    public void fillShards(Connection c, String table, int shards) {
-        // do everything in a transaction to ensure consistency
+    public void createStagingShards(Connection c, String table, int shards) {
         PreparedStatement p = null;
         try {
-            c.setAutoCommit(false);
-            int totalRecords = countRecords(c, table);
-            int piece = (totalRecords + 1) / shards;
-            System.out.println("Total number of shards: " + shards);
-            System.out.println("Total number of records: " + totalRecords);
-            System.out.println("Shard size: " + piece);
-            c.commit();
             for (int i = 0; i < shards; i++) {
-                // distribute the original table's data to shards round-robin
-                // (different strategy is also possible)
-                p = c.prepareStatement("INSERT INTO " + getShardName(table, i) + " SELECT * FROM " + table + " LIMIT " + piece + " OFFSET " + piece * i);
-                System.out.println("Creating shard: " + i);
+                p = c.prepareStatement("CREATE TABLE IF NOT EXISTS " + getStagingShardName(table, i) + " LIKE " + table);
                 p.execute();
+                p.close();
+                modifyShard(getStagingShardName(table, i));
             }
-            c.commit();
-            c.setAutoCommit(true);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -147,47 +1114,263 @@ public class ShardManager {
     }
 
     /**
-     * Fill shards with data from the original table. If your storage does not
-     * support direct insert (like ICE), use this instead of fillShards.
+     * Finds the end of the next batch of keys of a table in key order. The
+     * rows sharing a key are never split between batches: if more than the
+     * given number of rows share the first key of the batch, the batch takes
+     * all of them.
      * 
-     * Be careful with this, ideally run with database running on localhost as
-     * it can transfer huge amounts of data.
+     * @param c
+     * @param table
+     * @param key
+     * @param from
+     *            first key of the batch, null for the smallest one
+     * @param rows
+     *            number of rows in the batch
+     * @return first key after the batch, null if the batch reaches the end of
+     *         the table
+     */
+    public Long getKeyAfter(Connection c, String table, String key, Long from, long rows) {
+        Long res = getKey(c, "SELECT " + key + " FROM " + table + " WHERE " + (from == null ? key + " IS NOT NULL" : key + " >= " + from)
+                + " ORDER BY " + key + " LIMIT 1 OFFSET " + rows);
+        if (res != null && from != null && res <= from) {
+            res = getKey(c, "SELECT MIN(" + key + ") FROM " + table + " WHERE " + key + " > " + from);
+        }
+        return res;
+    }
+
+    /**
+     * Runs a query for a single key.
      * 
-     * Currently recycles a single file and performs operations in a serial
-     * manner. There is potential speedup if this part is parallellized,
-     * especially if you are testing on a machine with multiple hard disks.
-     * Howver, since sharding is usually only performed once and we are only
-     * interested in the time it takes to run the queries, we do not mind if
-     * this operation takes slightly more time than optimum.
+     * @param c
+     * @param query
+     * @return the key, null if there is none
+     */
+    private Long getKey(Connection c, String query) {
+        Long res = null;
+        PreparedStatement p = null;
+        ResultSet r = null;
+        try {
+            p = c.prepareStatement(query);
+            r = p.executeQuery();
+            if (r.next()) {
+                res = r.getLong(1);
+                if (r.wasNull()) {
+                    res = null;
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Moves the rows in a key range from the shards of a table into the
+     * shards of the layout it is being resharded into, placing them by the
+     * strategy of the new layout. The rows are inserted and deleted in a
+     * single transaction, so a failed batch leaves both layouts as they were.
+     * The last batch, unbounded from above, takes the rows with a NULL key as
+     * well.
      * 
      * @param c
      * @param table
      * @param shards
-     * @param buffer
+     *            number of current shards
+     * @param target
+     *            initialized strategy of the new layout, placing rows by the
+     *            key alone
+     * @param key
+     * @param lo
+     *            lower bound (inclusive), null for none
+     * @param hi
+     *            upper bound (exclusive), null for none
+     * @return number of rows moved, -1 if the batch failed
      */
-    public void fillShardsViaFile(Connection c, String table, int shards, String file) {
+    public long moveToStaging(Connection c, String table, int shards, ShardingStrategy target, String key, Long lo, Long hi) {
+        String predicate = getRangePredicate(key, lo, hi);
+        if (lo != null && hi == null) {
+            predicate = "(" + predicate + " OR " + key + " IS NULL)";
+        }
+        PreparedStatement s = null;
+        ResultSet r = null;
+        PreparedStatement[] inserts = new PreparedStatement[target.getShardCount()];
+        int[] pending = new int[inserts.length];
+        long res = 0;
+        try {
+            c.setAutoCommit(false);
+            for (int i = 0; i < shards; i++) {
+                // not streamed, the inserts go over the same connection; a
+                // batch is small enough to be buffered
+                s = c.prepareStatement("SELECT * FROM " + getShardName(table, i) + " WHERE " + predicate);
+                r = s.executeQuery();
+                int columns = r.getMetaData().getColumnCount();
+                int keyColumn = r.findColumn(key);
+                while (r.next()) {
+                    int shard = target.getShard(new Object[] { r.getObject(keyColumn) });
+                    if (inserts[shard] == null) {
+                        StringBuilder placeholders = new StringBuilder("?");
+                        for (int j = 1; j < columns; j++) {
+                            placeholders.append(", ?");
+                        }
+                        inserts[shard] = c.prepareStatement("INSERT INTO " + getStagingShardName(table, shard) + " VALUES (" + placeholders + ")");
+                    }
+                    for (int j = 1; j <= columns; j++) {
+                        inserts[shard].setObject(j, r.getObject(j));
+                    }
+                    inserts[shard].addBatch();
+                    res++;
+                    if (++pending[shard] % INSERT_BATCH_SIZE == 0) {
+                        inserts[shard].executeBatch();
+                    }
+                }
+                r.close();
+                s.close();
+                for (PreparedStatement p : inserts) {
+                    if (p != null) {
+                        p.executeBatch();
+                    }
+                }
+                s = c.prepareStatement("DELETE FROM " + getShardName(table, i) + " WHERE " + predicate);
+                s.execute();
+                s.close();
+            }
+            c.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                c.rollback();
+            } catch (SQLException e1) {
+                System.err.println("Failed to roll back the move.");
+            }
+            res = -1;
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+            for (PreparedStatement p : inserts) {
+                if (p != null) {
+                    try {
+                        p.close();
+                    } catch (SQLException e) {
+                        System.err.println("Failed to close the statement.");
+                    }
+                }
+            }
+            try {
+                c.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.err.println("Failed to restore autocommit.");
+            }
+        }
+
+        if (res > 0) {
+            modifyShards(table, shards);
+            for (int i = 0; i < inserts.length; i++) {
+                modifyShard(getStagingShardName(table, i));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Replaces the shards of a table by the shards of the layout it has been
+     * resharded into. The emptied shards are swapped for the new ones in a
+     * single RENAME, so either both layouts stay as they were or the new one
+     * is in place; the emptied shards are dropped afterwards.
+     * 
+     * @param c
+     * @param table
+     * @param shards
+     *            number of current shards
+     * @param target
+     *            strategy of the new layout
+     * @return whether the new layout is in place
+     */
+    public boolean completeResharding(Connection c, String table, int shards, ShardingStrategy target) {
         PreparedStatement p = null;
-        File f = new File(file);
+        boolean res = false;
         try {
-            int totalRecords = countRecords(c, table);
-            int piece = (totalRecords + 1) / shards;
-            System.out.println("Total number of shards: " + shards);
-            System.out.println("Total number of records: " + totalRecords);
-            System.out.println("Shard size: " + piece);
+            StringBuilder renames = new StringBuilder();
+            for (int i = 0; i < shards; i++) {
+                renames.append(i > 0 ? ", " : "").append(getShardName(table, i)).append(" TO ").append(getRetiredShardName(table, i));
+            }
+            for (int i = 0; i < target.getShardCount(); i++) {
+                renames.append(", ").append(getStagingShardName(table, i)).append(" TO ").append(getShardName(table, i));
+            }
+            p = c.prepareStatement("RENAME TABLE " + renames);
+            p.execute();
+            p.close();
+            res = true;
 
             for (int i = 0; i < shards; i++) {
-                // distribute the original table's data to shards round-robin
-                // (different strategy is also possible)
-                System.out.println("Filling in shard: " + i);
-                p = c.prepareStatement("SELECT * FROM " + table + " LIMIT " + piece + " OFFSET " + piece * i + " INTO OUTFILE '" + file + "' fields terminated by '\\t'");
+                p = c.prepareStatement("DROP TABLE IF EXISTS " + getRetiredShardName(table, i));
                 p.execute();
-                p = c.prepareStatement("LOAD DATA INFILE '" + file + "' INTO TABLE " + getShardName(table, i) + " fields terminated by '\\t'");
-                p.execute();
-
-                // remove temp file
-                if (f.exists())
-                    f.delete();
+                p.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (res) {
+                System.err.println("Failed to drop the emptied shards of " + table + ".");
+            }
+        } finally {
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
             }
+        }
+        if (!res) {
+            return false;
+        }
+
+        strategies.put(table, target);
+        metadata.remove(table);
+        modifyShards(table, Math.max(shards, target.getShardCount()));
+        for (int i = 0; i < target.getShardCount(); i++) {
+            modifyShard(getStagingShardName(table, i));
+        }
+        return true;
+    }
+
+    /**
+     * Drops a table if it exists.
+     * 
+     * @param c
+     * @param table
+     */
+    public void dropTable(Connection c, String table) {
+        PreparedStatement p = null;
+        try {
+            p = c.prepareStatement("DROP TABLE IF EXISTS " + table);
+            p.execute();
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -199,6 +1382,7 @@ public class ShardManager {
                 }
             }
         }
+        modifyShard(table);
     }
 
     /**
@@ -212,14 +1396,25 @@ public class ShardManager {
      *            number of shards
      */
     public void exportByShardsToCSV(Connection c, String table, int shards) {
-        int totalRecords = countRecords(c, table);
-        int piece = (totalRecords + 1) / shards;
+        exportByShardsToCSV(c, table, offsetStrategy(c, table, shards, "position"));
+    }
 
+    /**
+     * Export by shards to CSV, placing rows by a strategy.
+     * 
+     * @param connection
+     *            connection
+     * @param table
+     *            table to save
+     * @param strategy
+     *            initialized strategy of placing rows into the shards
+     */
+    public void exportByShardsToCSV(Connection c, String table, ShardingStrategy strategy) {
         PreparedStatement p;
         try {
-            for (int i = 0; i < shards; i++) {
+            for (int i = 0; i < strategy.getShardCount(); i++) {
                 System.out.println("Exporting table '" + table + "' into file '" + DatabaseManager.getFileForTable(table) + "_shard" + i + "'.");
-                p = c.prepareStatement("SELECT * FROM " + table + " order by position limit " + piece + " offset " + (i * piece) + " INTO OUTFILE '"
+                p = c.prepareStatement("SELECT * FROM " + table + strategy.getSelection(i) + " INTO OUTFILE '"
                         + DatabaseManager.getFileForTable(table) + "_shard" + i + "' fields terminated by ',' ENCLOSED BY '" + "\"" + "' lines terminated by '\\n'");
                 p.execute();
             }
@@ -238,16 +1433,22 @@ public class ShardManager {
      * @param shards
      */
     public void cleanUp(Connection c, String table, int shards) {
-        if (shards > 1) {
+        strategies.remove(table);
+        metadata.remove(table);
+        if (shards >= 1) {
             PreparedStatement p = null;
             for (int i = 0; i < shards; i++) {
                 // drop table
+                Connection sc = getShardConnection(c, i);
                 try {
-                    p = c.prepareStatement("DROP TABLE IF EXISTS " + getShardName(table, i));
+                    p = sc.prepareStatement("DROP TABLE IF EXISTS " + getShardName(table, i));
                     System.out.println("Deleting shard: " + i);
                     p.execute();
+                    p.close();
                 } catch (SQLException e) {
                     e.printStackTrace();
+                } finally {
+                    releaseShardConnection(c, sc);
                 }
             }
             if (p != null) {
@@ -258,5 +1459,6 @@ public class ShardManager {
                 }
             }
         }
+        modifyShards(table, shards);
     }
 }
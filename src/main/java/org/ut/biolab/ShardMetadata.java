@@ -0,0 +1,180 @@
+package org.ut.biolab;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Statistics of the shards of a table recorded when the shards are filled:
+ * number of rows and the range of a key column in every shard, optionally with
+ * a filter of the keys held by every shard and an index of the substrings of
+ * a string column.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardMetadata {
+    private String column = null;
+    private long[] rows = null;
+    private long[] min = null;
+    private long[] max = null;
+    private ShardKeyFilter[] filters = null;
+    private String ngramColumn = null;
+    private ShardNgramIndex[] ngramIndexes = null;
+
+    public ShardMetadata(String column, int shards) {
+        this.column = column;
+        rows = new long[shards];
+        min = new long[shards];
+        max = new long[shards];
+        filters = new ShardKeyFilter[shards];
+        ngramIndexes = new ShardNgramIndex[shards];
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public int getShardCount() {
+        return rows.length;
+    }
+
+    public void set(int shard, long rowCount, long minKey, long maxKey) {
+        rows[shard] = rowCount;
+        min[shard] = minKey;
+        max[shard] = maxKey;
+    }
+
+    public long getRows(int shard) {
+        return rows[shard];
+    }
+
+    public long getMin(int shard) {
+        return min[shard];
+    }
+
+    public long getMax(int shard) {
+        return max[shard];
+    }
+
+    public void setFilter(int shard, ShardKeyFilter filter) {
+        filters[shard] = filter;
+    }
+
+    /**
+     * @param shard
+     * @return filter of the keys of the shard, null if none was built
+     */
+    public ShardKeyFilter getFilter(int shard) {
+        return filters[shard];
+    }
+
+    public boolean hasFilters() {
+        for (ShardKeyFilter f : filters) {
+            if (f == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Memory taken by the filters of all the shards (bytes).
+     * 
+     * @return
+     */
+    public long getFilterSize() {
+        long res = 0;
+        for (ShardKeyFilter f : filters) {
+            if (f != null) {
+                res += f.getSize();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param column
+     *            string column indexed
+     * @param shard
+     * @param index
+     *            index of the column keyed by the recorded column
+     */
+    public void setNgramIndex(String column, int shard, ShardNgramIndex index) {
+        ngramColumn = column;
+        ngramIndexes[shard] = index;
+    }
+
+    /**
+     * @return string column indexed, null if none
+     */
+    public String getNgramColumn() {
+        return ngramColumn;
+    }
+
+    /**
+     * @param shard
+     * @return index of the string column of the shard, null if none was built
+     */
+    public ShardNgramIndex getNgramIndex(int shard) {
+        return ngramIndexes[shard];
+    }
+
+    public boolean hasNgramIndexes() {
+        for (ShardNgramIndex i : ngramIndexes) {
+            if (i == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Memory taken by the n-gram indexes of all the shards (bytes).
+     * 
+     * @return
+     */
+    public long getNgramIndexSize() {
+        long res = 0;
+        for (ShardNgramIndex i : ngramIndexes) {
+            if (i != null) {
+                res += i.getSize();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Determines whether a shard may hold a value of a column. Columns other
+     * than the recorded one and shards without a filter may hold any value.
+     * 
+     * @param column
+     * @param shard
+     * @param value
+     * @return
+     */
+    public boolean mightContain(String column, int shard, long value) {
+        return !this.column.equalsIgnoreCase(column) || filters[shard] == null || filters[shard].mightContain(value);
+    }
+
+    /**
+     * Determines the shards whose key range overlaps the given range. Columns
+     * other than the recorded one map to all the shards.
+     * 
+     * @param column
+     * @param lo
+     *            lower bound (inclusive)
+     * @param hi
+     *            upper bound (inclusive)
+     * @return
+     */
+    public Set<Integer> getShards(String column, long lo, long hi) {
+        Set<Integer> res = new TreeSet<Integer>();
+        boolean filter = this.column.equalsIgnoreCase(column);
+        for (int i = 0; i < rows.length; i++) {
+            if (!filter || (rows[i] > 0 && min[i] <= hi && max[i] >= lo)) {
+                res.add(i);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,169 @@
+package org.ut.biolab;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live statistics of the queries run by this client: queries in flight and
+ * the statistics of every shard queried (see ShardStats). Shards are added as
+ * they are first queried, so the shard count may change during the run, e.g.
+ * when resharding. Once registered, the statistics are exposed as MBeans
+ * under org.ut.biolab.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardMetrics implements ShardMetricsMBean {
+    public static final String DOMAIN = "org.ut.biolab";
+
+    private Map<Integer, ShardStats> shards = new TreeMap<Integer, ShardStats>();
+    private MBeanServer server = null;
+    private int inFlight = 0;
+    private long queries = 0;
+
+    /**
+     * Obtains the statistics of a shard, registering them if the metrics are
+     * registered.
+     * 
+     * @param shard
+     * @return
+     */
+    public synchronized ShardStats getStats(int shard) {
+        ShardStats res = shards.get(shard);
+        if (res == null) {
+            res = new ShardStats(shard);
+            shards.put(shard, res);
+            if (server != null) {
+                register(res, "type=Shard,shard=" + shard);
+            }
+        }
+        return res;
+    }
+
+    public synchronized List<ShardStats> getAllStats() {
+        return new ArrayList<ShardStats>(shards.values());
+    }
+
+    /**
+     * Exposes the metrics as MBeans in the platform MBean server.
+     */
+    public synchronized void register() {
+        server = ManagementFactory.getPlatformMBeanServer();
+        register(this, "type=Queries");
+        for (ShardStats s : shards.values()) {
+            register(s, "type=Shard,shard=" + s.getShard());
+        }
+    }
+
+    /**
+     * Registers an MBean, replacing one of the same name, e.g. from a
+     * previous run.
+     * 
+     * @param bean
+     * @param name
+     *            properties of the name in the domain
+     */
+    void register(Object bean, String name) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName(DOMAIN + ":" + name);
+            if (mbs.isRegistered(on)) {
+                mbs.unregisterMBean(on);
+            }
+            mbs.registerMBean(bean, on);
+        } catch (JMException e) {
+            System.err.println("Unable to register MBean " + name + ".");
+        }
+    }
+
+    /**
+     * Removes all the MBeans of the domain.
+     */
+    public synchronized void unregister() {
+        if (server == null) {
+            return;
+        }
+        try {
+            for (ObjectName on : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+                server.unregisterMBean(on);
+            }
+        } catch (JMException e) {
+            System.err.println("Unable to unregister MBeans.");
+        }
+        server = null;
+    }
+
+    /**
+     * Ends the current reporting period of all the shards.
+     * 
+     * @param nanos
+     *            length of the period
+     */
+    public void roll(long nanos) {
+        for (ShardStats s : getAllStats()) {
+            s.roll(nanos);
+        }
+    }
+
+    public synchronized void queryStarted() {
+        inFlight++;
+        queries++;
+    }
+
+    public synchronized void queryFinished() {
+        inFlight--;
+    }
+
+    /**
+     * Number of queries in flight, each fanned out to shards.
+     */
+    public synchronized int getQueriesInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getQueryCount() {
+        return queries;
+    }
+
+    public int getShardQueriesInFlight() {
+        int res = 0;
+        for (ShardStats s : getAllStats()) {
+            res += s.getQueriesInFlight();
+        }
+        return res;
+    }
+
+    public long getShardQueryCount() {
+        long res = 0;
+        for (ShardStats s : getAllStats()) {
+            res += s.getQueryCount();
+        }
+        return res;
+    }
+
+    public long getErrorCount() {
+        long res = 0;
+        for (ShardStats s : getAllStats()) {
+            res += s.getErrorCount();
+        }
+        return res;
+    }
+
+    /**
+     * Shard queries per second over the last period.
+     */
+    public double getShardQueryRate() {
+        double res = 0;
+        for (ShardStats s : getAllStats()) {
+            res += s.getQueryRate();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,22 @@
+package org.ut.biolab;
+
+/**
+ * Management interface of the statistics of all the queries, see
+ * ShardMetrics.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public interface ShardMetricsMBean {
+    public int getQueriesInFlight();
+
+    public int getShardQueriesInFlight();
+
+    public long getQueryCount();
+
+    public long getShardQueryCount();
+
+    public long getErrorCount();
+
+    public double getShardQueryRate();
+}
@@ -0,0 +1,294 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trigram index of a string column of a shard: for every three consecutive
+ * characters occurring in the column, the list of the keys of the rows
+ * containing them. A row matching LIKE '%GGGA%' contains both GGG and GGA, so
+ * intersecting their lists gives a superset of the matching keys without
+ * scanning the shard. Characters are compared case-insensitively, as LIKE does
+ * by default.
+ * 
+ * The keys are added in ascending order and every list is stored as varint
+ * encoded gaps between consecutive keys, all the lists in a single byte array.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardNgramIndex {
+    public static final int N = 3;
+
+    // while adding: trigram -> encoded keys
+    private Map<Long, Postings> building = new HashMap<Long, Postings>();
+    private long lastKey = Long.MIN_VALUE;
+    private long rows = 0;
+
+    // once sealed: sorted trigrams, their lists in data
+    private long[] grams = null;
+    private int[] offsets = null;
+    private int[] counts = null;
+    private byte[] data = null;
+
+    /**
+     * List of keys being built, as gaps from the previous key.
+     */
+    private static class Postings {
+        private byte[] bytes = new byte[16];
+        private int length = 0;
+        private int count = 0;
+        private long last = 0;
+
+        public void add(long key) {
+            if (count > 0 && key == last) {
+                return;
+            }
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            length = writeVarint(bytes, length, count == 0 ? key : key - last);
+            last = key;
+            count++;
+        }
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Encodes the trigram starting at a position of an upper-cased string.
+     * 
+     * @param s
+     * @param start
+     * @return
+     */
+    private static long gram(String s, int start) {
+        long res = 0;
+        for (int i = start; i < start + N; i++) {
+            res = (res << 16) | s.charAt(i);
+        }
+        return res;
+    }
+
+    /**
+     * Indexes the value of a row. Keys have to be added in ascending order.
+     * 
+     * @param key
+     *            non-negative key of the row
+     * @param value
+     *            value of the indexed column, may be null
+     */
+    public void add(long key, String value) {
+        if (building == null) {
+            throw new IllegalStateException("Index is sealed.");
+        }
+        if (key < lastKey || key < 0) {
+            throw new IllegalArgumentException("Keys have to be non-negative and added in ascending order: " + key);
+        }
+        lastKey = key;
+        rows++;
+        if (value == null) {
+            return;
+        }
+        String s = value.toUpperCase();
+        for (int i = 0; i + N <= s.length(); i++) {
+            Long g = gram(s, i);
+            Postings p = building.get(g);
+            if (p == null) {
+                p = new Postings();
+                building.put(g, p);
+            }
+            p.add(key);
+        }
+    }
+
+    /**
+     * Packs the lists into a single array. No keys can be added afterwards,
+     * the index can be searched concurrently.
+     */
+    public synchronized void seal() {
+        if (building == null) {
+            return;
+        }
+        grams = new long[building.size()];
+        int i = 0;
+        int size = 0;
+        for (Map.Entry<Long, Postings> e : building.entrySet()) {
+            grams[i++] = e.getKey();
+            size += e.getValue().length;
+        }
+        Arrays.sort(grams);
+        offsets = new int[grams.length + 1];
+        counts = new int[grams.length];
+        data = new byte[size];
+        for (i = 0; i < grams.length; i++) {
+            Postings p = building.get(grams[i]);
+            System.arraycopy(p.bytes, 0, data, offsets[i], p.length);
+            offsets[i + 1] = offsets[i] + p.length;
+            counts[i] = p.count;
+        }
+        building = null;
+    }
+
+    /**
+     * Splits a LIKE pattern into the trigrams every match has to contain.
+     * 
+     * @param pattern
+     * @return trigrams, null if the pattern has no literal run of at least N
+     *         characters or uses escapes
+     */
+    static long[] getGrams(String pattern) {
+        if (pattern.indexOf('\\') >= 0) {
+            return null;
+        }
+        List<Long> res = new ArrayList<Long>();
+        for (String run : pattern.toUpperCase().split("[%_]")) {
+            for (int i = 0; i + N <= run.length(); i++) {
+                res.add(gram(run, i));
+            }
+        }
+        if (res.isEmpty()) {
+            return null;
+        }
+        long[] grams = new long[res.size()];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = res.get(i);
+        }
+        return grams;
+    }
+
+    /**
+     * Finds the keys of the rows which may match a LIKE pattern, by
+     * intersecting the lists of its trigrams from the shortest one.
+     * 
+     * @param pattern
+     * @return ascending keys, null if the index cannot restrict the pattern
+     */
+    public long[] getCandidates(String pattern) {
+        seal();
+        long[] patternGrams = getGrams(pattern);
+        if (patternGrams == null) {
+            return null;
+        }
+        Integer[] lists = new Integer[patternGrams.length];
+        for (int i = 0; i < patternGrams.length; i++) {
+            int index = Arrays.binarySearch(grams, patternGrams[i]);
+            if (index < 0) {
+                return new long[0];
+            }
+            lists[i] = index;
+        }
+        Arrays.sort(lists, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return counts[a] - counts[b];
+            }
+        });
+
+        long[] res = decode(lists[0]);
+        for (int i = 1; i < lists.length && res.length > 0; i++) {
+            if (lists[i].equals(lists[i - 1])) {
+                continue;
+            }
+            res = intersect(res, lists[i]);
+        }
+        return res;
+    }
+
+    private long[] decode(int list) {
+        long[] res = new long[counts[list]];
+        int position = offsets[list];
+        long key = 0;
+        for (int i = 0; i < res.length; i++) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            key += gap;
+            res[i] = key;
+        }
+        return res;
+    }
+
+    /**
+     * Keeps the keys also present in a list, walking the encoded list once.
+     * 
+     * @param keys
+     *            ascending keys
+     * @param list
+     * @return
+     */
+    private long[] intersect(long[] keys, int list) {
+        long[] res = new long[keys.length];
+        int found = 0;
+        int next = 0;
+        int position = offsets[list];
+        long key = 0;
+        for (int i = 0; i < counts[list] && next < keys.length; i++) {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            key += gap;
+            while (next < keys.length && keys[next] < key) {
+                next++;
+            }
+            if (next < keys.length && keys[next] == key) {
+                res[found++] = key;
+                next++;
+            }
+        }
+        return Arrays.copyOf(res, found);
+    }
+
+    public long getRowCount() {
+        return rows;
+    }
+
+    public int getGramCount() {
+        seal();
+        return grams.length;
+    }
+
+    /**
+     * Total number of keys in all the lists.
+     * 
+     * @return
+     */
+    public long getPostingCount() {
+        seal();
+        long res = 0;
+        for (int c : counts) {
+            res += c;
+        }
+        return res;
+    }
+
+    /**
+     * Memory taken by the sealed index (bytes).
+     * 
+     * @return
+     */
+    public long getSize() {
+        seal();
+        return data.length + 8L * grams.length + 4L * offsets.length + 4L * counts.length;
+    }
+}
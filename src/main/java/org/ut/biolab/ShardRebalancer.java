@@ -0,0 +1,114 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.util.Arrays;
+
+/**
+ * Rebalancer of a table split into key ranges by the work its shards do
+ * rather than by their row counts. Equal row counts do not mean equal work:
+ * intervals and patterns of a workload can hit some ranges far more often than
+ * others, and the slowest shard decides the latency of every query sent to it.
+ * 
+ * Shards taking more than threshold times their fair share of the time spent
+ * answering queries are hot, shards taking less than a threshold-th of it are
+ * cold. Once any shard is hot or cold, new split points are placed so that
+ * every shard gets the same share of the measured time, assuming the time of a
+ * shard is spread evenly over its rows: hot ranges are split among more shards,
+ * adjacent cold ranges are merged into one. The shard count stays the same.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardRebalancer {
+    public static final double DEFAULT_THRESHOLD = 1.5;
+
+    private double threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * @param threshold
+     *            factor of the fair share of time above which a shard is hot
+     *            and below whose inverse it is cold
+     */
+    public ShardRebalancer(double threshold) {
+        if (threshold <= 1) {
+            throw new IllegalArgumentException("Rebalancing threshold must be greater than 1.");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Determines whether any shard is hot or cold.
+     * 
+     * @param load
+     * @return
+     */
+    public boolean isSkewed(ShardLoadStatistics load) {
+        double fair = (double) load.getTotalBusyTime() / load.getShardCount();
+        if (fair == 0) {
+            return false;
+        }
+        for (int i = 0; i < load.getShardCount(); i++) {
+            double share = load.getBusyTime(i) / fair;
+            if (share > threshold || share < 1 / threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plans split points giving every shard the same share of the measured
+     * time.
+     * 
+     * @param c
+     * @param table
+     * @param strategy
+     *            strategy the shards were filled by
+     * @param metadata
+     *            current row counts of the shards
+     * @param load
+     *            work done by the shards
+     * @return new split points, null if the shards are balanced
+     */
+    public long[] plan(Connection c, String table, RangeShardingStrategy strategy, ShardMetadata metadata, ShardLoadStatistics load) {
+        int shards = strategy.getShardCount();
+        double fair = (double) load.getTotalBusyTime() / shards;
+        for (int i = 0; i < shards; i++) {
+            double share = fair > 0 ? load.getBusyTime(i) / fair : 1;
+            System.out.println(String.format("Shard %d - rows, share of time, state: %d, %.2f, %s", i, metadata.getRows(i), share,
+                    share > threshold ? "hot" : share < 1 / threshold ? "cold" : "balanced"));
+        }
+        if (!isSkewed(load)) {
+            return null;
+        }
+
+        // walk the shards in key order and cut whenever the time accumulated
+        // reaches the next multiple of the fair share
+        long[] old = strategy.getSplits();
+        long[] res = new long[shards - 1];
+        double total = load.getTotalBusyTime();
+        double before = 0;
+        int next = 0;
+        for (int i = 0; i < shards && next < res.length; i++) {
+            long busy = load.getBusyTime(i);
+            while (next < res.length && total * (next + 1) / shards < before + busy) {
+                double fraction = (total * (next + 1) / shards - before) / busy;
+                long offset = (long) (fraction * metadata.getRows(i));
+                Long split = ShardManager.getInstance().getKeyAt(c, table, i, strategy.getKey(), offset);
+                // keep the old boundary if the shard has no keys to cut at
+                res[next] = split != null ? split : i < old.length ? old[i] : Long.MAX_VALUE;
+                if (next > 0 && res[next] < res[next - 1]) {
+                    res[next] = res[next - 1];
+                }
+                next++;
+            }
+            before += busy;
+        }
+        for (; next < res.length; next++) {
+            res[next] = next > 0 ? Math.max(old[next], res[next - 1]) : old[next];
+        }
+
+        System.out.println("Planned split points on " + strategy.getKey() + ": " + Arrays.toString(res));
+        return res;
+    }
+}
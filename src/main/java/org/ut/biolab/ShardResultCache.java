@@ -0,0 +1,207 @@
+package org.ut.biolab;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the rows returned by shards, keyed by the instantiated query, the
+ * shard and the generation of the shard. The generation changes whenever the
+ * shard is created, filled or dropped, so entries of modified shards are never
+ * served; ShardManager also invalidates them right away to free the memory.
+ * 
+ * The cache is bounded by the estimated size of the rows held, the least
+ * recently used entries are evicted first. Results larger than a fraction of
+ * the capacity are not cached at all.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardResultCache {
+    // the largest result cached is this fraction of the capacity
+    public static final int MAX_ENTRY_FRACTION = 8;
+
+    private long capacity = 0;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    private LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private static class Key {
+        private String query;
+        private String shard;
+        private long generation;
+
+        public Key(String query, String shard, long generation) {
+            this.query = query;
+            this.shard = shard;
+            this.generation = generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return (query.hashCode() * 31 + shard.hashCode()) * 31 + (int) (generation ^ (generation >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return generation == k.generation && shard.equals(k.shard) && query.equals(k.query);
+        }
+    }
+
+    /**
+     * Rows returned by a query on a shard with the names of their columns.
+     */
+    public static class Entry {
+        private String[] columns;
+        private List<Object[]> rows;
+        private long size;
+
+        private Entry(String[] columns, List<Object[]> rows, long size) {
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        public List<Object[]> getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * @param capacity
+     *            maximum estimated size of the cached rows (bytes)
+     */
+    public ShardResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Largest result accepted by put (bytes).
+     * 
+     * @return
+     */
+    public long getMaxEntrySize() {
+        return capacity / MAX_ENTRY_FRACTION;
+    }
+
+    /**
+     * Looks up the rows returned by a query on a shard.
+     * 
+     * @param query
+     *            query instantiated for the shard
+     * @param shard
+     *            name of the shard
+     * @param generation
+     *            current generation of the shard
+     * @return rows with their columns, null if not cached
+     */
+    public synchronized Entry get(String query, String shard, long generation) {
+        Entry e = entries.get(new Key(query, shard, generation));
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * Caches the rows returned by a query on a shard.
+     * 
+     * @param query
+     * @param shard
+     *            name of the shard
+     * @param generation
+     *            generation of the shard the rows were read from
+     * @param columns
+     *            names of the columns of the rows
+     * @param rows
+     * @param size
+     *            estimated size of the rows, see estimateSize
+     */
+    public synchronized void put(String query, String shard, long generation, String[] columns, List<Object[]> rows, long size) {
+        if (size > getMaxEntrySize()) {
+            return;
+        }
+        Entry old = entries.put(new Key(query, shard, generation), new Entry(columns, rows, size));
+        if (old != null) {
+            this.size -= old.size;
+        }
+        this.size += size;
+
+        Iterator<Entry> i = entries.values().iterator();
+        while (this.size > capacity && i.hasNext()) {
+            this.size -= i.next().size;
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops all the entries of a shard, e.g. when the shard changes.
+     * 
+     * @param shard
+     *            name of the shard
+     */
+    public synchronized void invalidate(String shard) {
+        Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Entry> e = i.next();
+            if (e.getKey().shard.equals(shard)) {
+                size -= e.getValue().size;
+                i.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory taken by a decoded row (bytes).
+     * 
+     * @param row
+     * @return
+     */
+    public static long estimateSize(Object[] row) {
+        long res = 16 + 8 * row.length;
+        for (Object o : row) {
+            if (o instanceof String) {
+                res += 40 + 2 * ((String) o).length();
+            } else if (o instanceof byte[]) {
+                res += 16 + ((byte[]) o).length;
+            } else if (o != null) {
+                res += 24;
+            }
+        }
+        return res;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String getSummary() {
+        long lookups = hits + misses;
+        return String.format("hits %d, misses %d (hit rate %.2f), evictions %d, invalidations %d, entries %d, size %.2f of %.2f MB", hits, misses,
+                lookups > 0 ? (double) hits / lookups : 0, evictions, invalidations, entries.size(), size / (1024.0 * 1024.0), capacity / (1024.0 * 1024.0));
+    }
+}
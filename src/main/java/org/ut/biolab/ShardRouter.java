@@ -0,0 +1,203 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Router sending queries only to the shards which may hold matching rows.
+ * Simple equality and BETWEEN predicates on integer columns are extracted from
+ * the WHERE clause and checked against the placement of the sharding strategy
+ * and the key ranges recorded in the shard metadata. Queries with disjunctions
+ * or negations go to all the shards. Point queries on the key column are also
+ * checked against the key filters of the shards, if built.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardRouter {
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern UNSAFE = Pattern.compile("\\b(OR|NOT)\\b|\\|\\|", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EQUALITY = Pattern.compile("(\\w+)\\s*=\\s*(-?\\d+)(?![\\w.])");
+    private static final Pattern BETWEEN = Pattern.compile("(\\w+)\\s+BETWEEN\\s+(-?\\d+)\\s+AND\\s+(-?\\d+)(?![\\w.])", Pattern.CASE_INSENSITIVE);
+
+    private int shards = 0;
+    private ShardingStrategy strategy = null;
+    private ShardMetadata metadata = null;
+    private long queries = 0;
+    private long pruned = 0;
+    private long filtered = 0;
+    private long falsePositives = 0;
+
+    /**
+     * Predicate restricting a column to a range of values.
+     */
+    public static class RangePredicate {
+        private String column;
+        private long lo;
+        private long hi;
+
+        public RangePredicate(String column, long lo, long hi) {
+            this.column = column;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public long getLo() {
+            return lo;
+        }
+
+        public long getHi() {
+            return hi;
+        }
+    }
+
+    /**
+     * @param shards
+     *            number of shards
+     * @param strategy
+     *            placement of the rows, null if unknown
+     * @param metadata
+     *            recorded key ranges, null if unknown
+     */
+    public ShardRouter(int shards, ShardingStrategy strategy, ShardMetadata metadata) {
+        this.shards = shards;
+        this.strategy = strategy;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Extracts the range predicates a query is restricted by.
+     * 
+     * @param query
+     * @return predicates, empty if the query cannot be restricted safely
+     */
+    public static List<RangePredicate> extractPredicates(String query) {
+        List<RangePredicate> res = new ArrayList<RangePredicate>();
+        Matcher w = WHERE.matcher(query);
+        if (!w.find() || UNSAFE.matcher(w.group(1)).find()) {
+            return res;
+        }
+
+        String where = w.group(1);
+        Matcher m = BETWEEN.matcher(where);
+        while (m.find()) {
+            res.add(new RangePredicate(m.group(1), Long.parseLong(m.group(2)), Long.parseLong(m.group(3))));
+        }
+        m = EQUALITY.matcher(where);
+        while (m.find()) {
+            long value = Long.parseLong(m.group(2));
+            res.add(new RangePredicate(m.group(1), value, value));
+        }
+        return res;
+    }
+
+    /**
+     * Determines the shards a query has to be sent to.
+     * 
+     * @param query
+     * @return
+     */
+    public Set<Integer> route(String query) {
+        Set<Integer> res = new TreeSet<Integer>();
+        for (int i = 0; i < shards; i++) {
+            res.add(i);
+        }
+
+        // shards ruled out by the key filters over all the point predicates
+        int byFilters = 0;
+        for (RangePredicate p : extractPredicates(query)) {
+            if (strategy != null) {
+                res.retainAll(strategy.getShards(p.column, p.lo, p.hi));
+            }
+            if (metadata != null) {
+                res.retainAll(metadata.getShards(p.column, p.lo, p.hi));
+                if (p.lo == p.hi) {
+                    int beforeFilter = res.size();
+                    for (Iterator<Integer> i = res.iterator(); i.hasNext();) {
+                        if (!metadata.mightContain(p.column, i.next(), p.lo)) {
+                            i.remove();
+                        }
+                    }
+                    byFilters += beforeFilter - res.size();
+                }
+            }
+        }
+
+        synchronized (this) {
+            queries++;
+            pruned += shards - res.size();
+            filtered += byFilters;
+        }
+        return res;
+    }
+
+    /**
+     * Determines whether a query is a lookup of a single key value covered by
+     * the key filters, so shards returning no rows for it were false
+     * positives of the filters.
+     * 
+     * @param query
+     * @return
+     */
+    public boolean isFilteredLookup(String query) {
+        List<RangePredicate> predicates = extractPredicates(query);
+        return metadata != null && metadata.hasFilters() && predicates.size() == 1 && predicates.get(0).lo == predicates.get(0).hi
+                && metadata.getColumn().equalsIgnoreCase(predicates.get(0).column);
+    }
+
+    /**
+     * Records shards which passed the key filters for a lookup but did not
+     * hold the key.
+     * 
+     * @param count
+     */
+    public synchronized void recordFalsePositives(int count) {
+        falsePositives += count;
+    }
+
+    /**
+     * Number of shards skipped thanks to the key filters, i.e. round trips
+     * saved.
+     * 
+     * @return
+     */
+    public synchronized long getFilteredCount() {
+        return filtered;
+    }
+
+    /**
+     * Rate of shards without the key not excluded by the filters, over the
+     * lookups observed.
+     * 
+     * @return
+     */
+    public synchronized double getObservedFalsePositiveRate() {
+        return falsePositives + filtered > 0 ? (double) falsePositives / (falsePositives + filtered) : 0;
+    }
+
+    public int getShardCount() {
+        return shards;
+    }
+
+    public synchronized long getQueryCount() {
+        return queries;
+    }
+
+    /**
+     * Total number of shards skipped over all the routed queries.
+     * 
+     * @return
+     */
+    public synchronized long getPrunedCount() {
+        return pruned;
+    }
+}
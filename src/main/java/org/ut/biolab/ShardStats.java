@@ -0,0 +1,165 @@
+package org.ut.biolab;
+
+/**
+ * Live statistics of the queries sent to a shard, exposed as an MBean. Counts
+ * are kept in total and per reporting period; when a period ends, its counts
+ * and latencies become the recent ones reported until the next period ends,
+ * so a shard slowing down shows within a period.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardStats implements ShardStatsMBean {
+    private int shard = 0;
+    private long queries = 0;
+    private long errors = 0;
+    private long rows = 0;
+    private long bytes = 0;
+    private int inFlight = 0;
+
+    // current period
+    private long periodQueries = 0;
+    private long periodErrors = 0;
+    private long periodRows = 0;
+    private long periodBytes = 0;
+    private LatencyHistogram periodLatency = new LatencyHistogram();
+
+    // last completed period
+    private long recentQueries = 0;
+    private long recentErrors = 0;
+    private long recentRows = 0;
+    private long recentBytes = 0;
+    private double recentRate = 0;
+    private LatencyHistogram recentLatency = new LatencyHistogram();
+
+    public ShardStats(int shard) {
+        this.shard = shard;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public synchronized void started() {
+        inFlight++;
+    }
+
+    /**
+     * Records a finished query.
+     * 
+     * @param nanos
+     *            duration of the query
+     * @param rowCount
+     *            rows returned
+     * @param byteCount
+     *            estimated size of the rows returned
+     * @param failed
+     *            whether the query failed
+     */
+    public synchronized void finished(long nanos, long rowCount, long byteCount, boolean failed) {
+        inFlight--;
+        queries++;
+        rows += rowCount;
+        bytes += byteCount;
+        periodQueries++;
+        periodRows += rowCount;
+        periodBytes += byteCount;
+        if (failed) {
+            errors++;
+            periodErrors++;
+        }
+        periodLatency.record(nanos);
+    }
+
+    /**
+     * Ends the current period.
+     * 
+     * @param nanos
+     *            length of the period
+     */
+    public synchronized void roll(long nanos) {
+        recentQueries = periodQueries;
+        recentErrors = periodErrors;
+        recentRows = periodRows;
+        recentBytes = periodBytes;
+        recentRate = nanos > 0 ? periodQueries / (nanos * 0.000000001) : 0;
+        LatencyHistogram h = recentLatency;
+        recentLatency = periodLatency;
+        periodLatency = h;
+        periodLatency.reset();
+        periodQueries = 0;
+        periodErrors = 0;
+        periodRows = 0;
+        periodBytes = 0;
+    }
+
+    public synchronized long getQueryCount() {
+        return queries;
+    }
+
+    public synchronized long getErrorCount() {
+        return errors;
+    }
+
+    public synchronized long getRowCount() {
+        return rows;
+    }
+
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+
+    public synchronized int getQueriesInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Queries per second over the last period.
+     */
+    public synchronized double getQueryRate() {
+        return recentRate;
+    }
+
+    public synchronized long getRecentQueries() {
+        return recentQueries;
+    }
+
+    public synchronized long getRecentErrors() {
+        return recentErrors;
+    }
+
+    public synchronized long getRecentRows() {
+        return recentRows;
+    }
+
+    public synchronized long getRecentBytes() {
+        return recentBytes;
+    }
+
+    /**
+     * Latencies of the last period, e.g. to merge the shards.
+     * 
+     * @return
+     */
+    public synchronized LatencyHistogram getRecentLatency() {
+        LatencyHistogram res = new LatencyHistogram();
+        res.add(recentLatency);
+        return res;
+    }
+
+    public synchronized double getLatencyP50Ms() {
+        return recentLatency.getValueAtPercentile(50) * 0.000001;
+    }
+
+    public synchronized double getLatencyP95Ms() {
+        return recentLatency.getValueAtPercentile(95) * 0.000001;
+    }
+
+    public synchronized double getLatencyP99Ms() {
+        return recentLatency.getValueAtPercentile(99) * 0.000001;
+    }
+
+    public synchronized double getLatencyMaxMs() {
+        return recentLatency.getMax() * 0.000001;
+    }
+}
@@ -0,0 +1,31 @@
+package org.ut.biolab;
+
+/**
+ * Management interface of the statistics of a shard, see ShardStats. Counts
+ * are totals since the start, rates and latencies cover the last completed
+ * reporting period.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public interface ShardStatsMBean {
+    public long getQueryCount();
+
+    public long getErrorCount();
+
+    public long getRowCount();
+
+    public long getByteCount();
+
+    public int getQueriesInFlight();
+
+    public double getQueryRate();
+
+    public double getLatencyP50Ms();
+
+    public double getLatencyP95Ms();
+
+    public double getLatencyP99Ms();
+
+    public double getLatencyMaxMs();
+}
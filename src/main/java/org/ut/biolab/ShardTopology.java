@@ -0,0 +1,98 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Placement of shards onto database nodes. Every node is a database on a
+ * host/port, shards are assigned to the nodes round-robin. Several MySQL
+ * instances on different ports of one machine work as well.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardTopology {
+    private List<Node> nodes = new ArrayList<Node>();
+
+    /**
+     * Database holding shards.
+     */
+    public static class Node {
+        private String host;
+        private int port;
+        private String database;
+
+        public Node(String host, int port, String database) {
+            this.host = host;
+            this.port = port;
+            this.database = database;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getDatabase() {
+            return database;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + "/" + database;
+        }
+    }
+
+    /**
+     * Parses a topology from a list of nodes in the form
+     * host:port/database,host:port/database,...
+     * 
+     * @param nodes
+     * @return
+     */
+    public static ShardTopology parse(String nodes) {
+        ShardTopology res = new ShardTopology();
+        for (String n : nodes.split(",")) {
+            n = n.trim();
+            if (n.isEmpty()) {
+                continue;
+            }
+            int colon = n.indexOf(':');
+            int slash = n.indexOf('/', colon);
+            if (colon < 0 || slash < 0) {
+                throw new IllegalArgumentException("Invalid node '" + n + "', expected host:port/database.");
+            }
+            res.addNode(new Node(n.substring(0, colon), Integer.parseInt(n.substring(colon + 1, slash)), n.substring(slash + 1)));
+        }
+        return res;
+    }
+
+    public void addNode(Node node) {
+        nodes.add(node);
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Determines the index of the node holding a shard.
+     * 
+     * @param shard
+     * @return
+     */
+    public int getNodeIndex(int shard) {
+        return shard % nodes.size();
+    }
+
+    public Node getNode(int shard) {
+        return nodes.get(getNodeIndex(shard));
+    }
+}
@@ -6,8 +6,11 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main sharding class.
@@ -22,6 +25,8 @@ public class Sharder {
     public static final String SINGLE_MATCH_WHERE_TEMPLATE = "SELECT * FROM %s WHERE variant_id=200000";
     public static final String INTERVAL_TEMPLATE = "SELECT * FROM %s WHERE variant_id BETWEEN 500000 AND 600000";
     public static final String PATTERN_TEMPLATE = "SELECT * FROM %s WHERE ref LIKE '%%GGG%%'";
+    public static final String ORDERED_TEMPLATE = "SELECT * FROM %s WHERE variant_id BETWEEN 500000 AND 600000 ORDER BY position LIMIT 100";
+    public static final String AGGREGATE_TEMPLATE = "SELECT chrom, COUNT(*), AVG(position), MIN(position), MAX(position) FROM %s GROUP BY chrom";
 
     private static Properties config = new Properties();
     private static int shardCount = 0;
@@ -30,9 +35,52 @@ public class Sharder {
     private static ConnectionManager cManager = null;
     private static Connection conn = null;
     private static DatabaseManager dManager = null;
+    private static ShardingScheme scheme = ShardingScheme.OFFSET;
+    private static String shardKey = null;
+    private static int loadThreads = 1;
+    // null fills the shards via files on the database server
+    private static StreamingShardLoader.Method streamFill = null;
+    private static boolean routing = false;
+    private static int iterations = 1;
+    private static int warmup = 0;
+    private static LoadGenerator.Mode loadMode = LoadGenerator.Mode.OPEN;
+    private static int loadClients = 1;
+    private static double loadRate = 0;
+    private static long loadDuration = 60;
+    private static long loadWindow = 5;
+    private static QueryExecutorManager.ExecutionMode execMode = QueryExecutorManager.ExecutionMode.POOLED;
+    private static int maxInFlight = 64;
+    private static boolean phaseTrace = false;
+    private static String phaseFile = null;
+    private static boolean statementCache = false;
+    private static boolean clientExport = false;
+    private static int exportThreads = 1;
+    private static ClientExporter.Compression exportCompression = ClientExporter.Compression.NONE;
+    private static long exportChunk = 0;
+    private static String exportDir = null;
+    private static String columnarDir = null;
+    private static int scanThreads = 1;
+    private static int keyFilterBits = 0;
+    private static ShardResultCache resultCache = null;
+    private static int[] sweepShards = { 1 };
+    private static int[] sweepClients = { 1 };
+    private static long sweepDuration = 30;
+    private static String sweepFile = null;
+    private static Workload workload = null;
+    private static double rebalanceThreshold = ShardRebalancer.DEFAULT_THRESHOLD;
+    private static int reshardCount = 0;
+    private static long reshardBatch = 10000;
+    private static double reshardBudget = 1;
+    private static long reshardDelay = 0;
+    private static String ngramColumn = null;
+    private static int ngramMaxCandidates = 10000;
+    private static NgramSearch ngramSearch = null;
+    private static long metricsPeriod = 0;
+    private static String metricsFile = null;
+    private static ShardMetrics metrics = null;
 
     private enum Action {
-        EXPORTDB, SHARDTABLE, SHARDANDTESTTABLE, EXPORTTOCSVSHARD
+        EXPORTDB, SHARDTABLE, SHARDANDTESTTABLE, EXPORTTOCSVSHARD, LOADTEST, COLUMNAR, SWEEP, REBALANCE, RESHARD, NGRAM
     }
 
     private static void loadProperties(Properties prop, String file) throws FileNotFoundException, IOException {
@@ -68,13 +116,30 @@ public class Sharder {
         }
     }
 
+    /**
+     * Plans the placement of the rows of a table into shards using the
+     * configured strategy.
+     * 
+     * @param table
+     * @return
+     */
+    private static ShardingStrategy planShards(String table) {
+        ShardingStrategy strategy = scheme.newStrategy(shardKey);
+        strategy.init(conn, table, shardCount);
+        return strategy;
+    }
+
     /**
      * Saves all the tables in a database into files.
      */
     public static void exportDb() {
         System.out.println("Starting database export...");
 
-        dManager.exportDb(conn);
+        if (clientExport) {
+            dManager.exportDb(conn, new ClientExporter(exportThreads, exportCompression, exportChunk), exportDir);
+        } else {
+            dManager.exportDb(conn);
+        }
 
         System.out.println("Database export  finished.");
     }
@@ -90,8 +155,25 @@ public class Sharder {
     public static void shardTable(String table, String file) {
         if (shardCount > 0) {
             // create separate tables as shards
-            sManager.createShards(conn, table, shardCount);
-            sManager.fillShardsViaFile(conn, table, shardCount, file);
+            ShardingStrategy strategy = planShards(table);
+            sManager.createShards(conn, table, strategy);
+            if (streamFill != null) {
+                sManager.fillShardsViaStream(table, strategy, streamFill, loadThreads);
+            } else if (cManager.hasTopology()) {
+                // shards on other nodes can only be filled through the client
+                sManager.fillShardsViaClient(conn, table, strategy);
+            } else if (loadThreads > 1) {
+                sManager.fillShardsInParallel(table, file, strategy, loadThreads);
+            } else {
+                sManager.fillShardsViaFile(conn, table, file, strategy);
+            }
+            sManager.recordMetadata(conn, table, shardCount, shardKey);
+            if (keyFilterBits > 0) {
+                sManager.buildKeyFilters(conn, table, keyFilterBits);
+            }
+            if (!ngramColumn.isEmpty()) {
+                sManager.buildNgramIndexes(conn, table, ngramColumn);
+            }
         }
     }
 
@@ -104,8 +186,548 @@ public class Sharder {
     public static void exportShardsToCSV(String table) {
         if (shardCount > 0) {
             // create separate tables as shards
-            sManager.exportByShardsToCSV(conn, table, shardCount);
+            if (scheme == ShardingScheme.OFFSET) {
+                sManager.exportByShardsToCSV(conn, table, shardCount);
+            } else {
+                sManager.exportByShardsToCSV(conn, table, planShards(table));
+            }
+        }
+    }
+
+    /**
+     * Lists the query templates to test together with the way their results
+     * are merged.
+     * 
+     * @return
+     */
+    private static Map<String, MergeStrategy> getQueryBuffer() {
+        Map<String, MergeStrategy> queryBuffer = new LinkedHashMap<String, MergeStrategy>();
+        queryBuffer.put(SELECT_STAR_TEMPLATE, MergeStrategy.CONCATENATION);
+        queryBuffer.put(COUNT_STAR_TEMPLATE, MergeStrategy.COUNT_SUM);
+        queryBuffer.put(SINGLE_MATCH_WHERE_TEMPLATE, MergeStrategy.CONCATENATION);
+        queryBuffer.put(INTERVAL_TEMPLATE, MergeStrategy.CONCATENATION);
+        queryBuffer.put(PATTERN_TEMPLATE, MergeStrategy.CONCATENATION);
+        queryBuffer.put(ORDERED_TEMPLATE, MergeStrategy.TOP_K);
+        queryBuffer.put(AGGREGATE_TEMPLATE, MergeStrategy.AGGREGATE);
+        return queryBuffer;
+    }
+
+    /**
+     * Obtains the mix of queries to run: the configured workload file or the
+     * sample templates in turns.
+     * 
+     * @return
+     */
+    private static Workload getWorkload() {
+        return workload != null ? workload : Workload.fromTemplates(getQueryBuffer());
+    }
+
+    /**
+     * Creates the executor of queries on the shards of a table.
+     * 
+     * @param table
+     * @param concurrency
+     *            number of queries running at the same time
+     * @return router used by the executor, null if routing is off
+     */
+    private static ShardRouter createQueryExecutorManager(String table, int concurrency) {
+        return createQueryExecutorManager(table, concurrency, shardCount);
+    }
+
+    /**
+     * Creates the executor of queries on the shards of a table.
+     * 
+     * @param table
+     * @param concurrency
+     *            number of queries running at the same time
+     * @param fanOut
+     *            largest number of shards a query is sent to
+     * @return router used by the executor, null if routing is off
+     */
+    private static ShardRouter createQueryExecutorManager(String table, int concurrency, int fanOut) {
+        int threads = execMode == QueryExecutorManager.ExecutionMode.BOUNDED ? maxInFlight : fanOut * concurrency;
+        qeManager = new QueryExecutorManager(shardCount, threads, execMode);
+        qeManager.setCachingStatements(statementCache);
+        qeManager.setResultCache(resultCache);
+        qeManager.setMetrics(metrics);
+        // connect before measuring so that the first queries do not pay for it
+        cManager.warmUp(threads);
+        qeManager.warmUp();
+        ShardRouter router = null;
+        if (routing) {
+            router = new ShardRouter(shardCount, sManager.getStrategy(table), sManager.getMetadata(table));
+            qeManager.setRouter(router);
+        }
+        ngramSearch = null;
+        if (!ngramColumn.isEmpty()) {
+            ngramSearch = new NgramSearch(table, ngramMaxCandidates);
+            qeManager.setNgramSearch(ngramSearch);
         }
+        return router;
+    }
+
+    /**
+     * Shards a table and runs the sample queries against it continuously for
+     * the configured time, reporting throughput and latency per time window.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void loadTestTable(String table, String file) {
+        if (shardCount > 0) {
+            shardTable(table, file);
+            createQueryExecutorManager(table, loadClients);
+
+            LoadGenerator generator = new LoadGenerator(qeManager, table, getWorkload(), loadMode, loadClients, loadRate);
+            ClientResourceMonitor monitor = new ClientResourceMonitor();
+            monitor.start();
+            LatencyHistogram latencies = generator.run(loadDuration, loadWindow);
+            monitor.stop();
+            System.out.println("Client overhead: " + monitor.getSummary(latencies.getTotalCount()));
+            if (resultCache != null) {
+                System.out.println("Result cache: " + resultCache.getSummary());
+            }
+            qeManager.shutdown();
+        }
+
+        sManager.cleanUp(conn, table, shardCount);
+    }
+
+    private static int[] parseList(String values) {
+        String[] parts = values.split(",");
+        int[] res = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            res[i] = Integer.valueOf(parts[i].trim());
+        }
+        return res;
+    }
+
+    private static int max(int[] values) {
+        int res = 0;
+        for (int v : values) {
+            res = Math.max(res, v);
+        }
+        return res;
+    }
+
+    /**
+     * Runs the sample queries by closed-loop clients for the sweep duration.
+     * 
+     * @param table
+     * @param shards
+     *            number of shards, 0 for the unsharded table
+     * @param clients
+     * @param fillTime
+     * @param results
+     */
+    private static void sweepRun(String table, int shards, int clients, double fillTime, SweepResults results) {
+        LoadGenerator generator = new LoadGenerator(qeManager, table, getWorkload(), LoadGenerator.Mode.CLOSED, clients, 0);
+        LatencyHistogram latencies = generator.run(sweepDuration, sweepDuration);
+        results.add(shards, clients, fillTime, latencies, generator.getThroughput());
+    }
+
+    /**
+     * Measures the scaling curve of a table: the sample queries are run by
+     * every configured number of clients against the unsharded table and
+     * against the table resharded into every configured number of shards.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void sweepTable(String table, String file) {
+        SweepResults results = new SweepResults();
+
+        // baseline
+        if (cManager.hasTopology()) {
+            System.out.println("Unsharded baseline skipped, the shards live on other nodes.");
+        } else {
+            for (int clients : sweepClients) {
+                qeManager = new QueryExecutorManager(1, clients);
+                qeManager.setDirect(true);
+                qeManager.warmUp();
+                sweepRun(table, 0, clients, 0, results);
+                qeManager.shutdown();
+            }
+        }
+
+        for (int shards : sweepShards) {
+            shardCount = shards;
+            QueryTimer qt = new QueryTimer();
+            qt.start();
+            shardTable(table, file);
+            qt.stop();
+            for (int clients : sweepClients) {
+                createQueryExecutorManager(table, clients);
+                sweepRun(table, shards, clients, qt.getDurationInS(), results);
+                qeManager.shutdown();
+            }
+            sManager.cleanUp(conn, table, shards);
+        }
+
+        if (sweepFile != null && !sweepFile.isEmpty()) {
+            results.export(sweepFile);
+        }
+    }
+
+    /**
+     * Runs the queries of the workload on the shards of a table, the warmup
+     * runs are not recorded.
+     * 
+     * @param table
+     * @param load
+     *            statistics to record the work of the shards into
+     * @return recorder with the latencies of the measured runs
+     */
+    private static LatencyRecorder runWorkload(String table, ShardLoadStatistics load) {
+        createQueryExecutorManager(table, 1);
+        qeManager.setVerbose(false);
+        LatencyRecorder recorder = new LatencyRecorder();
+        qeManager.setRecorder(recorder);
+        qeManager.setLoadStatistics(load);
+        for (Workload.Template t : getWorkload().getTemplates()) {
+            for (int i = 0; i < warmup + iterations; i++) {
+                recorder.setRecording(i >= warmup);
+                load.setRecording(i >= warmup);
+                ResultMerger merger = t.getMerge().newMerger(t.getQuery());
+                qeManager.execute(t.getQuery(), t.getParams(i), table, merger);
+                merger.getResult();
+            }
+        }
+        qeManager.shutdown();
+        return recorder;
+    }
+
+    /**
+     * Shards a table by key ranges, runs the workload, moves key ranges
+     * between the shards so that they share the measured work evenly and runs
+     * the workload again, reporting the latencies before and after.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void rebalanceTable(String table, String file) {
+        if (shardCount > 0) {
+            shardTable(table, file);
+            ShardingStrategy strategy = sManager.getStrategy(table);
+            if (!(strategy instanceof RangeShardingStrategy)) {
+                System.out.println("Rebalancing needs the RANGE sharding scheme.");
+            } else {
+                ShardLoadStatistics load = new ShardLoadStatistics(shardCount);
+                LatencyRecorder before = runWorkload(table, load);
+                load.report();
+
+                ShardRebalancer rebalancer = new ShardRebalancer(rebalanceThreshold);
+                long[] splits = rebalancer.plan(conn, table, (RangeShardingStrategy) strategy, sManager.getMetadata(table), load);
+                if (splits == null) {
+                    System.out.println("Shards are balanced within a factor of " + rebalanceThreshold + ", nothing to move.");
+                } else {
+                    QueryTimer qt = new QueryTimer();
+                    qt.start();
+                    long moved = sManager.resplit(conn, table, (RangeShardingStrategy) strategy, splits);
+                    qt.stop();
+                    System.out.println("Shards rebalanced - rows moved, duration (s): " + moved + ", " + qt.getDurationInS());
+                    sManager.recordMetadata(conn, table, shardCount, shardKey);
+                    if (keyFilterBits > 0) {
+                        sManager.buildKeyFilters(conn, table, keyFilterBits);
+                    }
+                    if (!ngramColumn.isEmpty()) {
+                        sManager.buildNgramIndexes(conn, table, ngramColumn);
+                    }
+
+                    load.reset();
+                    LatencyRecorder after = runWorkload(table, load);
+                    load.report();
+                    reportRebalancing(before, after);
+                }
+            }
+        }
+
+        sManager.cleanUp(conn, table, shardCount);
+    }
+
+    /**
+     * Prints the tail latencies of every query template before and after
+     * rebalancing.
+     * 
+     * @param before
+     * @param after
+     */
+    private static void reportRebalancing(LatencyRecorder before, LatencyRecorder after) {
+        LatencyHistogram allBefore = new LatencyHistogram();
+        LatencyHistogram allAfter = new LatencyHistogram();
+        for (String q : before.getGroups().keySet()) {
+            LatencyHistogram b = before.getHistogram(q, LatencyRecorder.END_TO_END);
+            LatencyHistogram a = after.getHistogram(q, LatencyRecorder.END_TO_END);
+            allBefore.add(b);
+            allAfter.add(a);
+            printTailChange(q, b, a);
+        }
+        printTailChange("all queries", allBefore, allAfter);
+    }
+
+    private static void printTailChange(String label, LatencyHistogram before, LatencyHistogram after) {
+        System.out.println(String.format("%s - p50, p95, p99 before -> after (ms): %.3f, %.3f, %.3f -> %.3f, %.3f, %.3f (p99 %.2fx)", label,
+                before.getValueAtPercentile(50) * 0.000001, before.getValueAtPercentile(95) * 0.000001, before.getValueAtPercentile(99) * 0.000001,
+                after.getValueAtPercentile(50) * 0.000001, after.getValueAtPercentile(95) * 0.000001, after.getValueAtPercentile(99) * 0.000001,
+                after.getValueAtPercentile(99) > 0 ? (double) before.getValueAtPercentile(99) / after.getValueAtPercentile(99) : 0));
+    }
+
+    /**
+     * Shards a table and generates sustained load on it, resharding the table
+     * into a new number of shards while the load runs. Latencies are reported
+     * before, during and after the migration.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void reshardTable(String table, String file) {
+        if (shardCount > 0) {
+            if (cManager.hasTopology()) {
+                System.out.println("Online resharding needs the shards next to the original table.");
+                return;
+            }
+            if (scheme != ShardingScheme.RANGE && scheme != ShardingScheme.HASH) {
+                System.out.println("Online resharding needs the RANGE or HASH sharding scheme.");
+                return;
+            }
+            shardTable(table, file);
+            createQueryExecutorManager(table, loadClients, shardCount + reshardCount);
+            ShardingStrategy target = scheme.newStrategy(shardKey);
+            target.init(conn, table, reshardCount);
+            final OnlineResharder resharder = new OnlineResharder(table, shardKey, shardCount, target, reshardBatch, reshardBudget);
+            qeManager.setResharder(resharder);
+
+            final LoadGenerator generator = new LoadGenerator(qeManager, table, getWorkload(), loadMode, loadClients, loadRate);
+            LatencyRecorder stages = new LatencyRecorder();
+            generator.setRecorder(stages);
+            generator.setStage("before resharding");
+            Thread migration = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        TimeUnit.SECONDS.sleep(reshardDelay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    generator.setStage("during resharding");
+                    resharder.run(conn);
+                    generator.setStage("after resharding");
+                }
+            });
+            migration.start();
+            generator.run(loadDuration, loadWindow);
+            try {
+                migration.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            qeManager.shutdown();
+            stages.report();
+            System.out.println("Resharding: " + resharder.getSummary());
+            if (resharder.isComplete()) {
+                shardCount = reshardCount;
+            } else {
+                // the new layout is left behind half filled
+                for (int i = 0; i < reshardCount; i++) {
+                    sManager.dropTable(conn, ShardManager.getStagingShardName(table, i));
+                }
+            }
+        }
+
+        sManager.cleanUp(conn, table, shardCount);
+    }
+
+    /**
+     * Shards a table, writes columnar snapshots of the shards and runs the
+     * sample queries both on the shards via JDBC and on the snapshots in this
+     * process, reporting the two side by side. Without shards, the snapshot
+     * is taken of the whole table and compared with querying the table itself.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void columnarTestTable(String table, String file) {
+        List<String> sources = new ArrayList<String>();
+        if (shardCount > 0) {
+            shardTable(table, file);
+            for (int i = 0; i < shardCount; i++) {
+                sources.add(ShardManager.getShardName(table, i));
+            }
+        } else {
+            sources.add(table);
+        }
+
+        // write and map the snapshots
+        List<ColumnarSnapshot> snapshots = new ArrayList<ColumnarSnapshot>();
+        try {
+            QueryTimer qt = new QueryTimer();
+            qt.start();
+            long rows = 0;
+            long bytes = 0;
+            for (int i = 0; i < sources.size(); i++) {
+                // the unsharded table lives in the source database, not on a
+                // shard node
+                Connection c = shardCount > 0 ? cManager.getConnection(i) : cManager.getConnection();
+                try {
+                    rows += ColumnarSnapshot.write(c, sources.get(i), columnarDir);
+                } finally {
+                    c.close();
+                }
+                ColumnarSnapshot snapshot = ColumnarSnapshot.open(sources.get(i), columnarDir);
+                bytes += snapshot.getSize();
+                snapshots.add(snapshot);
+            }
+            qt.stop();
+            System.out.println(String.format("Columnar snapshots written - rows, size (MB), duration (s): %d, %.2f, %.3f", rows, bytes / (1024.0 * 1024.0),
+                    qt.getDurationInS()));
+        } catch (SQLException e) {
+            System.err.println("Failed to read the table.");
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("Failed to write the snapshots into '" + columnarDir + "'.");
+            e.printStackTrace();
+        }
+
+        if (snapshots.size() == sources.size()) {
+            ColumnarScanEngine engine = new ColumnarScanEngine(snapshots, scanThreads);
+            boolean viaJdbc = true;
+            if (shardCount > 0) {
+                createQueryExecutorManager(table, 1);
+                qeManager.setVerbose(false);
+            } else if (cManager.hasTopology()) {
+                System.out.println("Unsharded JDBC baseline skipped, the shards live on other nodes.");
+                viaJdbc = false;
+            } else {
+                // the unsharded baseline queries the original table
+                qeManager = new QueryExecutorManager(1, 1);
+                qeManager.setDirect(true);
+                qeManager.setVerbose(false);
+                qeManager.warmUp();
+            }
+            for (Map.Entry<String, MergeStrategy> e : getQueryBuffer().entrySet()) {
+                ColumnarScanEngine.ScanQuery scan = ColumnarScanEngine.parse(e.getKey());
+                if (scan == null) {
+                    System.out.println("Query not supported by the scan engine: " + e.getKey());
+                    continue;
+                }
+                LatencyHistogram jdbc = new LatencyHistogram();
+                LatencyHistogram columnar = new LatencyHistogram();
+                String jdbcResult = "-";
+                String columnarResult = null;
+                for (int i = 0; i < warmup + iterations; i++) {
+                    if (viaJdbc) {
+                        ResultMerger merger = e.getValue().newMerger(e.getKey());
+                        QueryTimer qt = new QueryTimer();
+                        qt.start();
+                        qeManager.execute(e.getKey(), table, merger);
+                        merger.getResult();
+                        qt.stop();
+                        if (i >= warmup) {
+                            qt.recordTo(jdbc);
+                        }
+                        jdbcResult = merger.getSummary();
+                    }
+
+                    ResultMerger merger = e.getValue().newMerger(e.getKey());
+                    QueryTimer qt = new QueryTimer();
+                    qt.start();
+                    engine.execute(scan, merger);
+                    merger.getResult();
+                    qt.stop();
+                    if (i >= warmup) {
+                        qt.recordTo(columnar);
+                    }
+                    columnarResult = merger.getSummary();
+                }
+                System.out.println("Query: " + e.getKey() + " (" + scan + ")");
+                System.out.println("  jdbc:     " + jdbcResult + "; " + (jdbc.getTotalCount() > 0 ? jdbc.getSummary() : "-"));
+                System.out.println("  columnar: " + columnarResult + "; " + columnar.getSummary());
+                if (jdbc.getTotalCount() > 0) {
+                    System.out.println(String.format("  median speedup of the snapshots over JDBC: %.2f",
+                            (double) jdbc.getValueAtPercentile(50) / Math.max(1, columnar.getValueAtPercentile(50))));
+                }
+            }
+            engine.shutdown();
+            if (viaJdbc) {
+                qeManager.shutdown();
+            }
+        }
+
+        if (shardCount > 0) {
+            sManager.cleanUp(conn, table, shardCount);
+        }
+    }
+
+    /**
+     * Shards a table with n-gram indexes and compares the queries matching
+     * LIKE patterns answered through the indexes with scanning the shards.
+     * Both runs have to return the same number of rows.
+     * 
+     * @param table
+     *            table to shard
+     * @param file
+     *            file to use as a buffer
+     */
+    public static void ngramTestTable(String table, String file) {
+        if (shardCount > 0) {
+            if (ngramColumn.isEmpty()) {
+                System.out.println("N-gram benchmark needs the column to index (ngramcolumn).");
+                return;
+            }
+            shardTable(table, file);
+            createQueryExecutorManager(table, 1);
+            qeManager.setVerbose(false);
+            NgramSearch search = ngramSearch;
+            Workload queries = getWorkload();
+            for (Workload.Template t : queries.getTemplates()) {
+                if (!search.isApplicable(QueryExecutorManager.instantiateQueryFromTemplate(t.getQuery(), table, t.getParams(0)))) {
+                    continue;
+                }
+                LatencyHistogram scan = new LatencyHistogram();
+                LatencyHistogram indexed = new LatencyHistogram();
+                long mismatches = 0;
+                for (int i = 0; i < warmup + iterations; i++) {
+                    long[] rows = new long[2];
+                    for (int run = 0; run < 2; run++) {
+                        qeManager.setNgramSearch(run == 0 ? null : search);
+                        ResultMerger merger = t.getMerge().newMerger(t.getQuery());
+                        QueryTimer qt = new QueryTimer();
+                        qt.start();
+                        qeManager.execute(t.getQuery(), t.getParams(i), table, merger);
+                        merger.getResult();
+                        qt.stop();
+                        if (i >= warmup) {
+                            qt.recordTo(run == 0 ? scan : indexed);
+                        }
+                        rows[run] = merger.getRowCount();
+                    }
+                    if (rows[0] != rows[1]) {
+                        mismatches++;
+                    }
+                }
+                System.out.println("Query: " + t.getQuery());
+                System.out.println("  scan:    " + scan.getSummary());
+                System.out.println("  indexed: " + indexed.getSummary());
+                System.out.println(String.format("  median speedup of the indexes over scanning: %.2f",
+                        (double) scan.getValueAtPercentile(50) / Math.max(1, indexed.getValueAtPercentile(50))));
+                if (mismatches > 0) {
+                    System.err.println("  runs returning different rows through the indexes: " + mismatches);
+                }
+            }
+            System.out.println("N-gram indexes: " + search.getSummary() + ", memory (KB): " + sManager.getMetadata(table).getNgramIndexSize() / 1024);
+            qeManager.shutdown();
+        }
+
+        sManager.cleanUp(conn, table, shardCount);
     }
 
     /**
@@ -122,30 +744,68 @@ public class Sharder {
             shardTable(table, file);
 
             // schedule queries
-            qeManager = new QueryExecutorManager(shardCount);
-            List<String> queryBuffer = new ArrayList<String>();
-            queryBuffer.add(SELECT_STAR_TEMPLATE);
-            queryBuffer.add(COUNT_STAR_TEMPLATE);
-            queryBuffer.add(SINGLE_MATCH_WHERE_TEMPLATE);
-            queryBuffer.add(INTERVAL_TEMPLATE);
-            queryBuffer.add(PATTERN_TEMPLATE);
-
-            // run queries
-            for (String q : queryBuffer) {
+            ShardRouter router = createQueryExecutorManager(table, 1);
+            LatencyRecorder recorder = new LatencyRecorder();
+            qeManager.setRecorder(recorder);
+            PhaseStatistics phases = null;
+            if (phaseTrace) {
+                phases = new PhaseStatistics();
+                qeManager.setPhaseStatistics(phases);
+            }
+            Workload queries = getWorkload();
+            ClientResourceMonitor monitor = new ClientResourceMonitor();
+            monitor.start();
+
+            // run queries, the warmup runs are not recorded; every run of a
+            // template takes the next generated parameters
+            for (Workload.Template t : queries.getTemplates()) {
+                String q = t.getQuery();
                 System.out.println("Query: " + q);
-                List<Integer> results = qeManager.execute(q, table);
-
-                // aggregate results and measure the time it takes to merge
-                // trivial merging in this case for the purpose of
-                // comparison
-                QueryTimer qt = new QueryTimer();
-                qt.start();
-                int totalCount = 0;
-                for (Integer r : results) {
-                    totalCount += r;
+                for (int i = 0; i < warmup + iterations; i++) {
+                    recorder.setRecording(i >= warmup);
+                    if (phases != null) {
+                        phases.setRecording(i >= warmup);
+                    }
+                    ResultMerger merger = t.getMerge().newMerger(t.getQuery());
+                    List<Integer> results = qeManager.execute(q, t.getParams(i), table, merger);
+
+                    // rows are merged while the shards stream them back, only
+                    // the final result is obtained here
+                    QueryTimer qt = new QueryTimer();
+                    qt.start();
+                    merger.getResult();
+                    qt.stop();
+                    long rows = 0;
+                    for (Integer r : results) {
+                        rows += r;
+                    }
+                    System.out.println("Rows transferred: " + rows);
+                    System.out.println("Result, merging time (ms): " + merger.getSummary() + ", " + (merger.getMergeTimeInMs() + qt.getDurationInMs()));
+                    recorder.record(q, "merge", merger.getMergeTime() + qt.getDuration());
                 }
-                qt.stop();
-                System.out.println("Result, merging time (ms): " + totalCount + ", " + qt.getDurationInMs());
+            }
+            monitor.stop();
+            recorder.report();
+            if (resultCache != null) {
+                System.out.println("Result cache: " + resultCache.getSummary());
+            }
+            if (phases != null) {
+                phases.report();
+                if (phaseFile != null && !phaseFile.isEmpty()) {
+                    phases.exportJson(phaseFile);
+                }
+            }
+            System.out.println("Client overhead: " + monitor.getSummary(queries.getTemplates().size() * (warmup + iterations)));
+            qeManager.shutdown();
+            if (router != null) {
+                System.out.println("Shards pruned in total: " + router.getPrunedCount() + " of " + router.getQueryCount() * shardCount);
+                if (keyFilterBits > 0) {
+                    System.out.println(String.format("Key filters - round trips saved, observed false positive rate, memory (KB): %d, %.4f, %d",
+                            router.getFilteredCount(), router.getObservedFalsePositiveRate(), sManager.getMetadata(table).getFilterSize() / 1024));
+                }
+            }
+            if (ngramSearch != null) {
+                System.out.println("N-gram indexes: " + ngramSearch.getSummary());
             }
         }
 
@@ -181,13 +841,93 @@ public class Sharder {
             String table = config.getProperty("dbtable");
             String file = config.getProperty("buffer");
             Action action = Action.valueOf(config.getProperty("action"));
+            scheme = ShardingScheme.valueOf(config.getProperty("sharding", ShardingScheme.OFFSET.name()));
+            shardKey = config.getProperty("shardkey", "variant_id");
+            loadThreads = Integer.valueOf(config.getProperty("loadthreads", "1"));
+            String fillMode = config.getProperty("fillmode", "FILE");
+            streamFill = "FILE".equals(fillMode) ? null : StreamingShardLoader.Method.valueOf(fillMode);
+            routing = Boolean.valueOf(config.getProperty("routing", "false"));
+            iterations = Integer.valueOf(config.getProperty("iterations", "1"));
+            warmup = Integer.valueOf(config.getProperty("warmup", "0"));
+            loadMode = LoadGenerator.Mode.valueOf(config.getProperty("loadmode", LoadGenerator.Mode.OPEN.name()));
+            loadClients = Integer.valueOf(config.getProperty("loadclients", "1"));
+            loadRate = Double.valueOf(config.getProperty("loadrate", "0"));
+            loadDuration = Long.valueOf(config.getProperty("loadduration", "60"));
+            loadWindow = Long.valueOf(config.getProperty("loadwindow", "5"));
+            execMode = QueryExecutorManager.ExecutionMode.valueOf(config.getProperty("execmode", QueryExecutorManager.ExecutionMode.POOLED.name()));
+            maxInFlight = Integer.valueOf(config.getProperty("maxinflight", "64"));
+            phaseTrace = Boolean.valueOf(config.getProperty("phasetrace", "false"));
+            phaseFile = config.getProperty("phasefile", "").trim();
+            statementCache = Boolean.valueOf(config.getProperty("stmtcache", "false"));
+            clientExport = "CLIENT".equals(config.getProperty("exportmode", "SERVER"));
+            exportThreads = Integer.valueOf(config.getProperty("exportthreads", "1"));
+            exportCompression = ClientExporter.Compression.valueOf(config.getProperty("exportcompression", ClientExporter.Compression.NONE.name()));
+            exportChunk = Long.valueOf(config.getProperty("exportchunk", "0"));
+            exportDir = config.getProperty("exportdir", "/tmp");
+            columnarDir = config.getProperty("columnardir", "/tmp/columnar");
+            scanThreads = Integer.valueOf(config.getProperty("scanthreads", "1"));
+            keyFilterBits = Integer.valueOf(config.getProperty("keyfilterbits", "0"));
+            sweepShards = parseList(config.getProperty("sweepshards", "1"));
+            sweepClients = parseList(config.getProperty("sweepclients", "1"));
+            sweepDuration = Long.valueOf(config.getProperty("sweepduration", "30"));
+            sweepFile = config.getProperty("sweepfile", "").trim();
+            rebalanceThreshold = Double.valueOf(config.getProperty("rebalancethreshold", String.valueOf(ShardRebalancer.DEFAULT_THRESHOLD)));
+            reshardCount = Integer.valueOf(config.getProperty("reshardno", String.valueOf(shardCount)));
+            reshardBatch = Long.valueOf(config.getProperty("reshardbatch", "10000"));
+            reshardBudget = Double.valueOf(config.getProperty("reshardbudget", "1"));
+            reshardDelay = Long.valueOf(config.getProperty("reshardafter", "0"));
+            ngramColumn = config.getProperty("ngramcolumn", "").trim();
+            ngramMaxCandidates = Integer.valueOf(config.getProperty("ngrammaxcandidates", "10000"));
+            metricsPeriod = Long.valueOf(config.getProperty("metricsperiod", "0"));
+            metricsFile = config.getProperty("metricsfile", "").trim();
+            String workloadFile = config.getProperty("workload", "").trim();
+            if (!workloadFile.isEmpty()) {
+                try {
+                    workload = Workload.load(workloadFile, Integer.valueOf(config.getProperty("workloadsize", "10000")),
+                            Long.valueOf(config.getProperty("workloadseed", "1")));
+                } catch (IOException e) {
+                    System.err.println("Workload file " + workloadFile + " could not be read, running the sample queries.");
+                }
+            }
+            long resultCacheSize = Long.valueOf(config.getProperty("resultcache", "0"));
+            if (resultCacheSize > 0) {
+                resultCache = new ShardResultCache(resultCacheSize * 1024 * 1024);
+                sManager.setResultCache(resultCache);
+            }
 
             // print config
             System.out.println("Host: " + host + ":" + port);
             System.out.println("DB: " + database);
 
             // connect
-            connect(host, port, database, user, password, shardCount + 1);
+            // exporting and loading threads each need a connection, so does
+            // every shard of every query in flight
+            int connections = Math.max(shardCount, 2 * loadThreads);
+            if (execMode == QueryExecutorManager.ExecutionMode.BOUNDED) {
+                connections = Math.max(2 * loadThreads, maxInFlight);
+            } else if (action == Action.LOADTEST) {
+                connections = Math.max(connections, shardCount * loadClients);
+            } else if (action == Action.RESHARD) {
+                // queries go to the shards of both layouts during the move
+                connections = Math.max(connections, (shardCount + reshardCount) * loadClients);
+            } else if (action == Action.SWEEP) {
+                connections = Math.max(2 * loadThreads, max(sweepShards) * max(sweepClients));
+            } else if (action == Action.EXPORTDB && clientExport) {
+                connections = Math.max(connections, exportThreads);
+            }
+            connect(host, port, database, user, password, connections + 1);
+            String topology = config.getProperty("topology", "").trim();
+            if (!topology.isEmpty()) {
+                cManager.initTopology(ShardTopology.parse(topology), user, password, connections + 1);
+            }
+
+            // live metrics of the queries, shards and pools
+            MetricsReporter reporter = null;
+            if (metricsPeriod > 0) {
+                metrics = new ShardMetrics();
+                reporter = new MetricsReporter(metrics, cManager.getPoolStats(), metricsPeriod, metricsFile);
+                reporter.start();
+            }
 
             // execute the goal
             switch (action) {
@@ -203,9 +943,30 @@ public class Sharder {
             case EXPORTTOCSVSHARD:
                 exportShardsToCSV(table);
                 break;
+            case LOADTEST:
+                loadTestTable(table, file);
+                break;
+            case COLUMNAR:
+                columnarTestTable(table, file);
+                break;
+            case SWEEP:
+                sweepTable(table, file);
+                break;
+            case REBALANCE:
+                rebalanceTable(table, file);
+                break;
+            case RESHARD:
+                reshardTable(table, file);
+                break;
+            case NGRAM:
+                ngramTestTable(table, file);
+                break;
             default:
                 System.out.println("No valid action specified");
             }
+            if (reporter != null) {
+                reporter.stop();
+            }
 
             // disconnect
             disconnect();
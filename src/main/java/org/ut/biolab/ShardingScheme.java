@@ -0,0 +1,43 @@
+package org.ut.biolab;
+
+/**
+ * Available sharding strategies, selectable by name from the configuration.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public enum ShardingScheme {
+    OFFSET {
+        @Override
+        public ShardingStrategy newStrategy(String key) {
+            return new OffsetShardingStrategy();
+        }
+    },
+    RANGE {
+        @Override
+        public ShardingStrategy newStrategy(String key) {
+            return new RangeShardingStrategy(key);
+        }
+    },
+    HASH {
+        @Override
+        public ShardingStrategy newStrategy(String key) {
+            return new HashShardingStrategy(key);
+        }
+    },
+    GENOMIC {
+        @Override
+        public ShardingStrategy newStrategy(String key) {
+            return new GenomicIntervalShardingStrategy("chrom", "position", GenomicIntervalShardingStrategy.DEFAULT_BIN_SIZE);
+        }
+    };
+
+    /**
+     * Creates a strategy for a table.
+     * 
+     * @param key
+     *            shard key, not used by strategies with a fixed key
+     * @return
+     */
+    public abstract ShardingStrategy newStrategy(String key);
+}
@@ -0,0 +1,62 @@
+package org.ut.biolab;
+
+import java.sql.Connection;
+import java.util.Set;
+
+/**
+ * Placement of the rows of a table into shards. A strategy decides which rows
+ * go to which shard and can tell which shards may hold rows with given key
+ * values, so that lookups do not need to touch all the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public interface ShardingStrategy {
+
+    /**
+     * Plans the placement of the rows of a table, e.g. by computing key ranges.
+     * Call before the shards are created.
+     * 
+     * @param c
+     *            connection
+     * @param table
+     *            original table
+     * @param shards
+     *            number of shards
+     */
+    void init(Connection c, String table, int shards);
+
+    int getShardCount();
+
+    /**
+     * Generates the clause selecting the rows of the original table belonging
+     * to a shard, e.g. " WHERE ..." or " LIMIT ... OFFSET ...".
+     * 
+     * @param shard
+     * @return
+     */
+    String getSelection(int shard);
+
+    /**
+     * Determines the shard a row with the given key belongs to.
+     * 
+     * @param key
+     *            values of the key columns of the strategy
+     * @return shard index, -1 if the placement does not depend on the key
+     */
+    int getShard(Object[] key);
+
+    /**
+     * Determines the shards which may hold rows with the value of a column in
+     * the given range. Columns the placement does not depend on map to all the
+     * shards.
+     * 
+     * @param column
+     * @param lo
+     *            lower bound (inclusive)
+     * @param hi
+     *            upper bound (inclusive)
+     * @return
+     */
+    Set<Integer> getShards(String column, long lo, long hi);
+}
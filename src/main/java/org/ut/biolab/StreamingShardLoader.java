@@ -0,0 +1,357 @@
+package org.ut.biolab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mchange.v2.c3p0.C3P0ProxyStatement;
+
+/**
+ * Loader filling shards by streaming the rows of the original table through
+ * this client, without files on either side. The rows of a shard are read
+ * from the source as they come and either fed to LOAD DATA LOCAL INFILE
+ * through an in-memory stream, or inserted in batches the driver rewrites
+ * into multi-row INSERTs (rewriteBatchedStatements).
+ * 
+ * With LOAD DATA, a thread encodes the rows in the tab-separated format of
+ * SELECT ... INTO OUTFILE into a pipe of a fixed size, which the driver reads
+ * while sending the file. A full pipe blocks the reading of the source until
+ * the shard catches up, so memory stays constant whatever the size of the
+ * shard. A shard is loaded in a single transaction and rolled back if either
+ * side fails.
+ * 
+ * Needs local_infile enabled on the servers holding the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class StreamingShardLoader {
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Ways of getting the rows into a shard.
+     */
+    public enum Method {
+        // LOAD DATA LOCAL INFILE fed from memory
+        LOCAL_INFILE,
+        // batched INSERTs rewritten into multi-row statements
+        INSERT
+    }
+
+    private Method method = Method.LOCAL_INFILE;
+    private int parallelism = 1;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Statistics of filling a single shard.
+     */
+    public static class StreamStats {
+        private int shard = 0;
+        private long rows = 0;
+        private long bytes = 0;
+        private long time = 0;
+
+        public int getShard() {
+            return shard;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Size of the rows streamed to LOAD DATA, 0 for INSERTs.
+         * 
+         * @return
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            double s = time * 0.000000001;
+            return String.format("shard %d: %d rows, %.2f MB, %.3f s (%.0f rows/s)", shard, rows, bytes / (1024.0 * 1024.0), s, s > 0 ? rows / s : 0);
+        }
+    }
+
+    /**
+     * Stream the rows are encoded into, failing the reader once the rows end
+     * if they could not be read in full, so that a partial shard is not
+     * committed.
+     */
+    private static class SourceStream extends PipedInputStream {
+        private volatile Throwable failure = null;
+
+        public SourceStream(int size) {
+            super(size);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return check(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return check(super.read(b, off, len));
+        }
+
+        private int check(int res) throws IOException {
+            if (res < 0 && failure != null) {
+                throw new IOException("Rows of the shard could not be read.", failure);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * @param method
+     *            way of getting the rows into the shards
+     * @param parallelism
+     *            number of shards filled at the same time
+     * @param bufferSize
+     *            size of the pipe between the source and a shard (bytes)
+     */
+    public StreamingShardLoader(Method method, int parallelism, int bufferSize) {
+        this.method = method;
+        this.parallelism = parallelism;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Fills the shards of a table, taking connections from the pools of the
+     * connection manager.
+     * 
+     * @param table
+     *            original table
+     * @param selections
+     *            clauses selecting the rows of each shard
+     * @return statistics of the individual shards
+     */
+    public List<StreamStats> fill(final String table, String[] selections) {
+        ExecutorService loaders = Executors.newFixedThreadPool(parallelism);
+        // encode the rows of the shards being loaded
+        final ExecutorService readers = Executors.newFixedThreadPool(parallelism);
+        List<Future<StreamStats>> loads = new ArrayList<Future<StreamStats>>();
+
+        QueryTimer totalTimer = new QueryTimer();
+        totalTimer.start();
+        for (int i = 0; i < selections.length; i++) {
+            final int shard = i;
+            final String query = "SELECT * FROM " + table + selections[i];
+            loads.add(loaders.submit(new Callable<StreamStats>() {
+                public StreamStats call() throws Exception {
+                    StreamStats stats = load(query, shard, ShardManager.getShardName(table, shard), readers);
+                    System.out.println(stats);
+                    return stats;
+                }
+            }));
+        }
+
+        List<StreamStats> res = new ArrayList<StreamStats>();
+        long rows = 0;
+        long bytes = 0;
+        for (Future<StreamStats> f : loads) {
+            try {
+                StreamStats stats = f.get();
+                rows += stats.rows;
+                bytes += stats.bytes;
+                res.add(stats);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        totalTimer.stop();
+        loaders.shutdown();
+        readers.shutdown();
+
+        System.out.println(String.format("Streamed %d shards with %d rows (%.2f MB) via %s in %.3f s using %d threads", selections.length, rows,
+                bytes / (1024.0 * 1024.0), method, totalTimer.getDurationInS(), parallelism));
+        return res;
+    }
+
+    private StreamStats load(String query, int shard, String table, ExecutorService readers) throws SQLException, IOException {
+        StreamStats stats = new StreamStats();
+        stats.shard = shard;
+        QueryTimer qt = new QueryTimer();
+        qt.start();
+        Connection source = ConnectionManager.getInstance().getConnection();
+        Connection target = ConnectionManager.getInstance().getConnection(shard);
+        try {
+            if (method == Method.INSERT) {
+                stats.rows = ShardManager.getInstance().copyRows(source, query, target, table);
+            } else {
+                loadLocal(source, query, target, table, stats, readers);
+            }
+        } finally {
+            try {
+                source.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close database connection.");
+            }
+            try {
+                target.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close database connection.");
+            }
+        }
+        qt.stop();
+        stats.time = qt.getDuration();
+        return stats;
+    }
+
+    private void loadLocal(final Connection source, final String query, Connection target, String table, final StreamStats stats, ExecutorService readers)
+            throws SQLException, IOException {
+        final SourceStream in = new SourceStream(bufferSize);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        Future<Long> reading = readers.submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                try {
+                    return encodeRows(source, query, out, stats);
+                } catch (Exception e) {
+                    in.failure = e;
+                    throw e;
+                } finally {
+                    out.close();
+                }
+            }
+        });
+
+        PreparedStatement p = null;
+        boolean autoCommit = target.getAutoCommit();
+        boolean done = false;
+        try {
+            target.setAutoCommit(false);
+            p = target.prepareStatement("LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table + " CHARACTER SET utf8 fields terminated by '\\t'");
+            setLocalInfileInputStream(p, in);
+            p.executeUpdate();
+            stats.rows = reading.get();
+            target.commit();
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + table + ".", e);
+        } catch (ExecutionException e) {
+            // fails the shard rather than leaving it empty
+            throw new IOException("Failed to read the rows of " + table + ".", e.getCause());
+        } finally {
+            // unblocks the reader if the load stopped early
+            in.close();
+            if (!done) {
+                try {
+                    target.rollback();
+                } catch (SQLException e) {
+                    System.err.println("Failed to roll back the load of " + table + ".");
+                }
+            }
+            try {
+                target.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                System.err.println("Failed to restore autocommit.");
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the rows selected by a query into a pipe in the format of
+     * SELECT ... INTO OUTFILE.
+     * 
+     * @return number of rows
+     */
+    private long encodeRows(Connection source, String query, OutputStream out, StreamStats stats) throws SQLException, IOException {
+        PreparedStatement p = null;
+        ResultSet r = null;
+        long rows = 0;
+        try {
+            p = QueryExecutor.prepareStreaming(source, query);
+            r = p.executeQuery();
+            int columns = r.getMetaData().getColumnCount();
+            StringBuilder line = new StringBuilder();
+            while (r.next()) {
+                line.setLength(0);
+                for (int i = 1; i <= columns; i++) {
+                    if (i > 1) {
+                        line.append('\t');
+                    }
+                    ClientExporter.appendField(line, r.getString(i));
+                }
+                line.append('\n');
+
+                // blocks while the pipe is full
+                byte[] bytes = line.toString().getBytes(UTF8);
+                out.write(bytes);
+                stats.bytes += bytes.length;
+                rows++;
+            }
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (SQLException e) {
+                    System.err.println("Resultset could not be closed.");
+                }
+            }
+            if (p != null) {
+                try {
+                    p.close();
+                } catch (SQLException e) {
+                    System.err.println("Failed to close the statement.");
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Hands a stream to LOAD DATA LOCAL INFILE instead of a file, reaching
+     * the statement of the driver behind the pool.
+     * 
+     * @param s
+     * @param in
+     * @throws SQLException
+     */
+    private static void setLocalInfileInputStream(Statement s, InputStream in) throws SQLException {
+        if (s instanceof com.mysql.jdbc.Statement) {
+            ((com.mysql.jdbc.Statement) s).setLocalInfileInputStream(in);
+        } else if (s instanceof C3P0ProxyStatement) {
+            try {
+                ((C3P0ProxyStatement) s).rawStatementOperation(com.mysql.jdbc.Statement.class.getMethod("setLocalInfileInputStream", InputStream.class),
+                        C3P0ProxyStatement.RAW_STATEMENT, new Object[] { in });
+            } catch (Exception e) {
+                throw new SQLException("LOAD DATA cannot be fed from a stream through the pool.", e);
+            }
+        } else {
+            throw new SQLException("LOAD DATA can only be fed from a stream by the MySQL driver.");
+        }
+    }
+}
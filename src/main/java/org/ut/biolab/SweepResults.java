@@ -0,0 +1,119 @@
+package org.ut.biolab;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Results of a sweep over shard counts and client concurrency levels. Speedup
+ * and efficiency of every configuration are relative to the unsharded table
+ * queried by the same number of clients. Can be exported as CSV and JSON.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class SweepResults {
+    private static final String[] COLUMNS = { "shards", "clients", "fill_s", "queries", "throughput_qps", "p50_ms", "p95_ms", "p99_ms", "max_ms",
+            "speedup", "efficiency" };
+
+    private List<double[]> rows = new ArrayList<double[]>();
+
+    /**
+     * Records the result of a configuration. Record the baseline (0 shards)
+     * first.
+     * 
+     * @param shards
+     *            number of shards, 0 for the unsharded table
+     * @param clients
+     * @param fillTime
+     *            time to create and fill the shards (s)
+     * @param latencies
+     * @param throughput
+     *            queries per second
+     */
+    public void add(int shards, int clients, double fillTime, LatencyHistogram latencies, double throughput) {
+        double baseline = 0;
+        for (double[] r : rows) {
+            if (r[0] == 0 && r[1] == clients) {
+                baseline = r[4];
+            }
+        }
+        double speedup = shards == 0 ? 1 : baseline > 0 ? throughput / baseline : 0;
+        double[] row = { shards, clients, fillTime, latencies.getTotalCount(), throughput, latencies.getValueAtPercentile(50) * 0.000001,
+                latencies.getValueAtPercentile(95) * 0.000001, latencies.getValueAtPercentile(99) * 0.000001, latencies.getMax() * 0.000001, speedup,
+                shards > 0 ? speedup / shards : 1 };
+        rows.add(row);
+        System.out.println(format(row));
+    }
+
+    private static String format(double[] row) {
+        return String.format("shards %d, clients %d: fill %.3f s, %d queries, %.2f q/s, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms, "
+                + "speedup %.2f, efficiency %.2f", (long) row[0], (long) row[1], row[2], (long) row[3], row[4], row[5], row[6], row[7], row[8], row[9],
+                row[10]);
+    }
+
+    private static String value(double[] row, int column) {
+        // counts are integers, decimal points must not depend on the locale
+        return column == 0 || column == 1 || column == 3 ? String.valueOf((long) row[column]) : String.format(Locale.ROOT, "%.4f", row[column]);
+    }
+
+    public String toCsv() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            res.append(i > 0 ? "," : "").append(COLUMNS[i]);
+        }
+        res.append('\n');
+        for (double[] r : rows) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                res.append(i > 0 ? "," : "").append(value(r, i));
+            }
+            res.append('\n');
+        }
+        return res.toString();
+    }
+
+    public String toJson() {
+        StringBuilder res = new StringBuilder("[");
+        for (int j = 0; j < rows.size(); j++) {
+            res.append(j > 0 ? ",\n " : "").append('{');
+            for (int i = 0; i < COLUMNS.length; i++) {
+                res.append(i > 0 ? ", " : "").append('"').append(COLUMNS[i]).append("\": ").append(value(rows.get(j), i));
+            }
+            res.append('}');
+        }
+        return res.append("]\n").toString();
+    }
+
+    /**
+     * Writes the results into &lt;base&gt;.csv and &lt;base&gt;.json.
+     * 
+     * @param base
+     *            file name without extension
+     */
+    public void export(String base) {
+        write(base + ".csv", toCsv());
+        write(base + ".json", toJson());
+    }
+
+    private static void write(String file, String content) {
+        Writer w = null;
+        try {
+            w = new FileWriter(file);
+            w.write(content);
+            System.out.println("Sweep results written to '" + file + "'.");
+        } catch (IOException e) {
+            System.err.println("Failed to write file '" + file + "'.");
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close file '" + file + "'.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.ut.biolab;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merger of queries ending with ORDER BY column [ASC|DESC] LIMIT k. The
+ * template is sent to every shard as it is, so every shard returns at most its
+ * own first k rows, already ordered. The merger keeps the best k rows seen so
+ * far in a heap with the worst of them on top. Since the rows of a shard come
+ * in order, once a row of a shard does not beat the worst row kept, no later
+ * row of that shard can, and the rest of the rows of that shard are skipped.
+ * They are still transferred, the LIMIT sent to every shard bounds them.
+ * 
+ * The column is looked up by name in the columns of the rows, NULLs come first
+ * as in MySQL. Both the column and the limit have to be literals in the
+ * template.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class TopKMerger extends ResultMerger {
+    private static final Pattern ORDER_LIMIT = Pattern.compile("\\bORDER\\s+BY\\s+(\\w+)(?:\\s+(ASC|DESC))?\\s+LIMIT\\s+(\\d+)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private String column = null;
+    private int index = -1;
+    private int k = 0;
+    private Comparator<Object[]> order = null;
+    // worst row kept on top
+    private PriorityQueue<Object[]> kept = null;
+    private Set<Integer> finished = new HashSet<Integer>();
+
+    /**
+     * @param column
+     *            column the rows are ordered by
+     * @param descending
+     * @param k
+     *            number of rows returned
+     */
+    public TopKMerger(String column, boolean descending, int k) {
+        this.column = column;
+        this.k = k;
+        final int sign = descending ? -1 : 1;
+        order = new Comparator<Object[]>() {
+            @SuppressWarnings("unchecked")
+            public int compare(Object[] a, Object[] b) {
+                Comparable<Object> x = (Comparable<Object>) a[index];
+                Object y = b[index];
+                if (x == null || y == null) {
+                    return sign * ((x == null ? 0 : 1) - (y == null ? 0 : 1));
+                }
+                return sign * x.compareTo(y);
+            }
+        };
+        kept = new PriorityQueue<Object[]>(Math.max(1, k), Collections.reverseOrder(order));
+    }
+
+    /**
+     * Creates a merger for a query ending with ORDER BY ... LIMIT.
+     * 
+     * @param query
+     *            query template
+     * @return
+     */
+    public static TopKMerger forQuery(String query) {
+        Matcher m = ORDER_LIMIT.matcher(query.trim());
+        if (!m.find()) {
+            throw new IllegalArgumentException("Query does not end with ORDER BY column LIMIT k: " + query);
+        }
+        return new TopKMerger(m.group(1), "DESC".equalsIgnoreCase(m.group(2)), Integer.parseInt(m.group(3)));
+    }
+
+    @Override
+    public synchronized void setColumns(String[] columns) {
+        if (index >= 0) {
+            return;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                index = i;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Rows have no column " + column + ".");
+    }
+
+    @Override
+    protected void consume(int shard, Object[] row) {
+        if (index < 0) {
+            throw new IllegalStateException("Columns of the rows are unknown.");
+        }
+        if (kept.size() < k) {
+            kept.add(row);
+        } else if (k > 0 && order.compare(row, kept.peek()) < 0) {
+            kept.poll();
+            kept.add(row);
+        } else {
+            finished.add(shard);
+        }
+    }
+
+    @Override
+    public synchronized boolean isSatisfied(int shard) {
+        return finished.contains(shard);
+    }
+
+    @Override
+    public synchronized Object getResult() {
+        List<Object[]> res = new ArrayList<Object[]>(kept);
+        Collections.sort(res, order);
+        return res;
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        return "rows merged " + getRowCount() + ", returned " + kept.size() + ", shards cut off " + finished.size();
+    }
+}
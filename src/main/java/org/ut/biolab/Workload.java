@@ -0,0 +1,305 @@
+package org.ut.biolab;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Mix of query templates with weights and generated parameters. The parameters
+ * of every template are generated up front into primitive buffers, so nothing
+ * is generated while queries are timed; instances are taken in turns.
+ * 
+ * A workload is defined in a properties file:
+ * 
+ * <pre>
+ * templates=point,interval
+ * point.query=SELECT * FROM %1$s WHERE variant_id=%2$d
+ * point.merge=CONCATENATION
+ * point.weight=3
+ * point.arg2=zipfian 0 1000000 0.99
+ * interval.query=SELECT * FROM %1$s WHERE variant_id BETWEEN %2$d AND %3$d
+ * interval.merge=CONCATENATION
+ * interval.arg2=uniform 0 1000000
+ * interval.arg3=width 2 100 100000
+ * </pre>
+ * 
+ * Templates are instantiated with String.format, the first argument is the
+ * shard and the generated parameters follow. Generators:
+ * <ul>
+ * <li>uniform LO HI - integer uniformly from [LO, HI]</li>
+ * <li>zipfian LO HI THETA - integer from [LO, HI] with Zipf-distributed
+ * popularity, the popular values scattered over the range</li>
+ * <li>width ARG LO HI - argument ARG plus an integer uniformly from [LO, HI],
+ * e.g. the end of an interval</li>
+ * <li>list A,B,C - one of the values uniformly</li>
+ * </ul>
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class Workload {
+    private List<Template> templates = new ArrayList<Template>();
+    // template of every query in turn, weighted
+    private int[] schedule = null;
+
+    /**
+     * Query template with its generated parameters.
+     */
+    public static class Template {
+        private String name;
+        private String query;
+        private MergeStrategy merge;
+        private int weight;
+        // generated values per argument (from the second on), indices into
+        // choices for list arguments
+        private long[][] values;
+        private String[][] choices;
+
+        private Template(String name, String query, MergeStrategy merge, int weight) {
+            this.name = name;
+            this.query = query;
+            this.merge = merge;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public MergeStrategy getMerge() {
+            return merge;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Obtains the parameters of an instance of the template.
+         * 
+         * @param instance
+         *            index of the instance, wraps around the generated ones
+         * @return parameters following the shard, null if there are none
+         */
+        public Object[] getParams(long instance) {
+            if (values.length == 0) {
+                return null;
+            }
+            Object[] res = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                long v = values[i][(int) (instance % values[i].length)];
+                res[i] = choices[i] == null ? (Object) v : choices[i][(int) v];
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Creates a workload of fixed templates without parameters, run in turns.
+     * 
+     * @param templates
+     *            query templates with the ways of merging their results
+     * @return
+     */
+    public static Workload fromTemplates(Map<String, MergeStrategy> templates) {
+        Workload res = new Workload();
+        for (Map.Entry<String, MergeStrategy> e : templates.entrySet()) {
+            Template t = new Template(e.getKey(), e.getKey(), e.getValue(), 1);
+            t.values = new long[0][];
+            t.choices = new String[0][];
+            res.templates.add(t);
+        }
+        res.buildSchedule();
+        return res;
+    }
+
+    /**
+     * Loads a workload from a file and generates its parameters.
+     * 
+     * @param file
+     * @param size
+     *            number of instances generated per template
+     * @param seed
+     *            seed of the generators, runs with the same seed replay the
+     *            same queries
+     * @return
+     * @throws IOException
+     */
+    public static Workload load(String file, int size, long seed) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+
+        Workload res = new Workload();
+        Random random = new Random(seed);
+        for (String name : p.getProperty("templates", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String query = p.getProperty(name + ".query");
+            if (query == null) {
+                throw new IllegalArgumentException("Template '" + name + "' has no query.");
+            }
+            Template t = new Template(name, query, MergeStrategy.valueOf(p.getProperty(name + ".merge", MergeStrategy.CONCATENATION.name())),
+                    Integer.valueOf(p.getProperty(name + ".weight", "1")));
+
+            int args = 0;
+            while (p.getProperty(name + ".arg" + (args + 2)) != null) {
+                args++;
+            }
+            t.values = new long[args][];
+            t.choices = new String[args][];
+            for (int i = 0; i < args; i++) {
+                generate(t, i, p.getProperty(name + ".arg" + (i + 2)).trim().split("\\s+"), size, random);
+            }
+            res.templates.add(t);
+            System.out.println("Workload template " + name + " (weight " + t.weight + ", " + args + " parameters): " + query);
+        }
+        if (res.templates.isEmpty()) {
+            throw new IllegalArgumentException("No templates in workload '" + file + "'.");
+        }
+        res.buildSchedule();
+        return res;
+    }
+
+    private static void generate(Template t, int arg, String[] spec, int size, Random random) {
+        long[] values = new long[size];
+        String generator = spec[0];
+        if ("uniform".equals(generator)) {
+            long lo = Long.parseLong(spec[1]);
+            long hi = Long.parseLong(spec[2]);
+            for (int i = 0; i < size; i++) {
+                values[i] = lo + nextLong(random, hi - lo + 1);
+            }
+        } else if ("zipfian".equals(generator)) {
+            long lo = Long.parseLong(spec[1]);
+            long hi = Long.parseLong(spec[2]);
+            ZipfianGenerator zipf = new ZipfianGenerator(hi - lo + 1, Double.parseDouble(spec[3]));
+            for (int i = 0; i < size; i++) {
+                values[i] = lo + zipf.next(random);
+            }
+        } else if ("width".equals(generator)) {
+            int base = Integer.parseInt(spec[1]) - 2;
+            if (base < 0 || base >= arg || t.choices[base] != null) {
+                throw new IllegalArgumentException("Template '" + t.name + "' widens an invalid argument: " + spec[1]);
+            }
+            long lo = Long.parseLong(spec[2]);
+            long hi = Long.parseLong(spec[3]);
+            for (int i = 0; i < size; i++) {
+                values[i] = t.values[base][i] + lo + nextLong(random, hi - lo + 1);
+            }
+        } else if ("list".equals(generator)) {
+            t.choices[arg] = spec[1].split(",");
+            for (int i = 0; i < size; i++) {
+                values[i] = random.nextInt(t.choices[arg].length);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown generator in template '" + t.name + "': " + generator);
+        }
+        t.values[arg] = values;
+    }
+
+    private static long nextLong(Random random, long bound) {
+        return (long) (random.nextDouble() * bound);
+    }
+
+    /**
+     * Interleaves the templates in proportion to their weights (smooth
+     * weighted round robin), equal weights take the templates in turns.
+     */
+    private void buildSchedule() {
+        int total = 0;
+        for (Template t : templates) {
+            total += t.weight;
+        }
+        schedule = new int[total];
+        int[] current = new int[templates.size()];
+        for (int i = 0; i < total; i++) {
+            int best = 0;
+            for (int j = 0; j < templates.size(); j++) {
+                current[j] += templates.get(j).weight;
+                if (current[j] > current[best]) {
+                    best = j;
+                }
+            }
+            current[best] -= total;
+            schedule[i] = best;
+        }
+    }
+
+    public List<Template> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Determines the template of the n-th query of the mix.
+     * 
+     * @param n
+     * @return
+     */
+    public Template getTemplate(long n) {
+        return templates.get(schedule[(int) (n % schedule.length)]);
+    }
+
+    /**
+     * Generator of Zipf-distributed ranks (Gray et al., Quickly Generating
+     * Billion-Record Synthetic Databases), scattered over the range so that
+     * the popular values are not adjacent.
+     */
+    private static class ZipfianGenerator {
+        private long items;
+        private double theta;
+        private double zetan;
+        private double alpha;
+        private double eta;
+
+        public ZipfianGenerator(long items, double theta) {
+            if (theta <= 0 || theta == 1) {
+                throw new IllegalArgumentException("Zipfian exponent must be positive and other than 1.");
+            }
+            this.items = items;
+            this.theta = theta;
+            for (long i = 1; i <= items; i++) {
+                zetan += 1 / Math.pow(i, theta);
+            }
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        public long next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return scatter(rank) % items;
+        }
+
+        private static long scatter(long x) {
+            x ^= x >>> 33;
+            x *= 0xff51afd7ed558ccdL;
+            x ^= x >>> 33;
+            return x & Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of combining the partial aggregates of the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class AggregateMergerTest {
+
+    @SuppressWarnings("unchecked")
+    private static List<Object[]> rows(ResultMerger merger) {
+        return (List<Object[]>) merger.getResult();
+    }
+
+    @Test
+    public void combinesUngroupedPartials() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT COUNT(*), SUM(a), AVG(b), MIN(c), MAX(c) FROM %s");
+        assertEquals("SELECT COUNT(*), SUM(a), SUM(b), COUNT(b), MIN(c), MAX(c) FROM %s", merger.rewrite("ignored"));
+        merger.merge(0, new Object[] { 2L, new BigDecimal(5), new BigDecimal(10), 2L, "b", "d" });
+        merger.merge(1, new Object[] { 3L, new BigDecimal(7), new BigDecimal(20), 3L, "a", "c" });
+        List<Object[]> rows = rows(merger);
+        assertEquals(1, rows.size());
+        assertArrayEquals(new Object[] { 5L, 12L, 6.0, "a", "d" }, rows.get(0));
+    }
+
+    @Test
+    public void emptyShardsGiveNullSumsAndZeroCounts() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT COUNT(a), SUM(a), AVG(a), MAX(a) FROM %s");
+        merger.merge(0, new Object[] { 0L, null, null, 0L, null });
+        merger.merge(1, new Object[] { 0L, null, null, 0L, null });
+        Object[] row = rows(merger).get(0);
+        assertEquals(0L, row[0]);
+        assertNull(row[1]);
+        assertNull(row[2]);
+        assertNull(row[3]);
+    }
+
+    @Test
+    public void prunedShardsStillGiveOneRow() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT COUNT(*), SUM(a), AVG(a), MIN(a) FROM %s");
+        List<Object[]> rows = rows(merger);
+        assertEquals(1, rows.size());
+        assertArrayEquals(new Object[] { 0L, null, null, null }, rows.get(0));
+        // grouped queries have no groups then
+        assertTrue(rows(MergeStrategy.AGGREGATE.newMerger("SELECT COUNT(*), bin FROM %s GROUP BY bin")).isEmpty());
+    }
+
+    @Test
+    public void keepsFloatingSums() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT SUM(a) FROM %s");
+        merger.merge(0, new Object[] { 1.5 });
+        merger.merge(1, new Object[] { 2L });
+        assertEquals(3.5, rows(merger).get(0)[0]);
+    }
+
+    @Test
+    public void groupsByIntegerKey() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT SUM(n), bin FROM %s GROUP BY bin");
+        // enough groups to grow the table of keys
+        for (int shard = 0; shard < 3; shard++) {
+            for (long bin = 0; bin < 1000; bin++) {
+                merger.merge(shard, new Object[] { bin, new BigDecimal(bin) });
+            }
+        }
+        merger.merge(0, new Object[] { null, new BigDecimal(1) });
+        List<Object[]> rows = rows(merger);
+        assertEquals(1001, rows.size());
+        for (Object[] row : rows) {
+            if (row[1] == null) {
+                assertEquals(1L, row[0]);
+            } else {
+                assertEquals(3 * (Long) row[1], row[0]);
+            }
+        }
+    }
+
+    @Test
+    public void groupsBySeveralKeys() {
+        ResultMerger merger = MergeStrategy.AGGREGATE.newMerger("SELECT chrom, strand, COUNT(*) FROM %s GROUP BY chrom, strand");
+        merger.merge(0, new Object[] { "chr1", "+", 1L });
+        merger.merge(0, new Object[] { "chr1", "-", 2L });
+        merger.merge(1, new Object[] { "chr1", "+", 3L });
+        merger.merge(1, new Object[] { "chr2", "+", 4L });
+        Map<String, Object> counts = new HashMap<String, Object>();
+        for (Object[] row : rows(merger)) {
+            counts.put(row[0] + "" + row[1], row[2]);
+        }
+        assertEquals(3, counts.size());
+        assertEquals(4L, counts.get("chr1+"));
+        assertEquals(2L, counts.get("chr1-"));
+        assertEquals(4L, counts.get("chr2+"));
+    }
+}
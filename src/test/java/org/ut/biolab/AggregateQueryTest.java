@@ -0,0 +1,66 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of splitting aggregate queries into partial aggregates.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class AggregateQueryTest {
+
+    @Test
+    public void sendsAverageAsSumAndCount() {
+        AggregateQuery q = AggregateQuery.parse("SELECT AVG(quality) FROM %s WHERE chrom = 'chr1'");
+        assertEquals("SELECT SUM(quality), COUNT(quality) FROM %s WHERE chrom = 'chr1'", q.getPartialQuery());
+        assertEquals(0, q.getGroupCount());
+        assertEquals(Arrays.asList(AggregateQuery.Function.AVG), q.getFunctions());
+    }
+
+    @Test
+    public void movesGroupsFirst() {
+        AggregateQuery q = AggregateQuery.parse("SELECT COUNT(*) AS n, chrom, MAX(position) top FROM %s GROUP BY chrom");
+        assertEquals("SELECT chrom, COUNT(*), MAX(position) FROM %s GROUP BY chrom", q.getPartialQuery());
+        assertEquals(3, q.getItemCount());
+        assertEquals(-1, q.getItem(0));
+        assertEquals(0, q.getItem(1));
+        assertEquals(-2, q.getItem(2));
+    }
+
+    @Test
+    public void keepsNestedParenthesesAndQuotes() {
+        AggregateQuery q = AggregateQuery.parse("SELECT SUM(IF(ref = ')', 1, (0))), MIN(CONCAT(a, ',', b)) FROM %s");
+        assertEquals("SELECT SUM(IF(ref = ')', 1, (0))), MIN(CONCAT(a, ',', b)) FROM %s", q.getPartialQuery());
+        assertEquals(2, q.getFunctions().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsExpressionsOverAggregates() {
+        AggregateQuery.parse("SELECT SUM(a) / COUNT(b) FROM %s");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAggregatesInsideExpressions() {
+        AggregateQuery.parse("SELECT chrom, 1 + MAX(position) FROM %s GROUP BY chrom");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDistinctAggregates() {
+        AggregateQuery.parse("SELECT COUNT(DISTINCT chrom) FROM %s");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHaving() {
+        AggregateQuery.parse("SELECT chrom, COUNT(*) FROM %s GROUP BY chrom HAVING COUNT(*) > 1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQueriesWithoutAggregates() {
+        AggregateQuery.parse("SELECT chrom FROM %s GROUP BY chrom");
+    }
+}
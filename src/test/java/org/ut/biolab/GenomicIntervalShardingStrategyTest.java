@@ -0,0 +1,95 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of placing variants by genomic locus.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class GenomicIntervalShardingStrategyTest {
+    // chromosome, bin and row count in genomic order
+    private static final Object[][] BINS = { { "chr1", 0L, 10L }, { "chr1", 1L, 10L }, { "chr2", 0L, 10L }, { "chr2", 5L, 10L } };
+
+    /**
+     * Connection answering the bin counts query of the strategy.
+     */
+    private static Connection connection() {
+        final ResultSet r = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+                new InvocationHandler() {
+                    private int row = -1;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("next")) {
+                            return ++row < BINS.length;
+                        } else if (name.equals("getString")) {
+                            return BINS[row][(Integer) args[0] - 1];
+                        } else if (name.equals("getLong")) {
+                            return BINS[row][(Integer) args[0] - 1];
+                        }
+                        return null;
+                    }
+                });
+        final PreparedStatement s = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("executeQuery") ? r : null;
+                    }
+                });
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("prepareStatement") ? s : null;
+            }
+        });
+    }
+
+    private static GenomicIntervalShardingStrategy strategy() {
+        GenomicIntervalShardingStrategy strategy = new GenomicIntervalShardingStrategy("chrom", "position", 100);
+        strategy.init(connection(), "t", 2);
+        return strategy;
+    }
+
+    @Test
+    public void assignsConsecutiveBinsToShards() {
+        GenomicIntervalShardingStrategy strategy = strategy();
+        assertEquals("[chr1:0-200]", strategy.getIntervals(0).toString());
+        // neighbouring bins of a shard merge over the empty bins between them
+        assertEquals("[chr2:0-600]", strategy.getIntervals(1).toString());
+        assertEquals(0, strategy.getShard(new Object[] { "chr1", 150L }));
+        assertEquals(1, strategy.getShard(new Object[] { "chr2", 550 }));
+        // outside of the planned intervals
+        assertEquals(1, strategy.getShard(new Object[] { "chr2", 700L }));
+        assertEquals(0, strategy.getShard(new Object[] { "chrX", 300L }));
+    }
+
+    @Test
+    public void firstShardSelectsRowsWithoutLocus() {
+        GenomicIntervalShardingStrategy strategy = strategy();
+        assertEquals(" WHERE (chrom = 'chr1' AND position >= 0 AND position < 200) OR (chrom IS NULL OR position IS NULL)", strategy.getSelection(0));
+        assertTrue(!strategy.getSelection(1).contains("IS NULL"));
+    }
+
+    @Test
+    public void placesRowsWithoutLocusIntoTheFirstShard() {
+        GenomicIntervalShardingStrategy strategy = strategy();
+        assertEquals(0, strategy.getShard(new Object[] { null, 550L }));
+        assertEquals(0, strategy.getShard(new Object[] { "chr2", null }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeysWithoutPosition() {
+        strategy().getShard(new Object[] { "chr1" });
+    }
+}
@@ -0,0 +1,50 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of placing rows by a hash of the key.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class HashShardingStrategyTest {
+
+    private static HashShardingStrategy strategy(int shards) {
+        HashShardingStrategy strategy = new HashShardingStrategy("k");
+        strategy.init(null, "t", shards);
+        return strategy;
+    }
+
+    @Test
+    public void firstShardSelectsNullKeys() {
+        HashShardingStrategy strategy = strategy(4);
+        assertEquals(" WHERE CRC32(k) % 4 = 0 OR k IS NULL", strategy.getSelection(0));
+        assertEquals(" WHERE CRC32(k) % 4 = 3", strategy.getSelection(3));
+    }
+
+    @Test
+    public void placesNullKeysIntoTheFirstShard() {
+        assertEquals(0, strategy(4).getShard(new Object[] { null }));
+    }
+
+    @Test
+    public void hashesTheTextualValue() {
+        HashShardingStrategy strategy = strategy(8);
+        // CRC32('42') = 841265288
+        assertEquals(841265288L % 8, strategy.getShard(new Object[] { 42L }));
+        assertEquals(strategy.getShard(new Object[] { 42L }), strategy.getShard(new Object[] { "42" }));
+    }
+
+    @Test
+    public void enumeratesShortRangesOnly() {
+        HashShardingStrategy strategy = strategy(8);
+        assertTrue(strategy.getShards("k", 5, 5).contains(strategy.getShard(new Object[] { 5L })));
+        assertEquals(1, strategy.getShards("k", 5, 5).size());
+        assertEquals(8, strategy.getShards("k", 0, HashShardingStrategy.MAX_ENUMERATED_RANGE).size());
+        assertEquals(8, strategy.getShards("other", 5, 5).size());
+    }
+}
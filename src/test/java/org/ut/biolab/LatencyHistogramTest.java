@@ -0,0 +1,101 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the bucketing and percentiles of latency histograms.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZeros() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getTotalCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getValueAtPercentile(99));
+        assertEquals(0, h.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        assertEquals(100, h.getTotalCount());
+        assertEquals(1, h.getMin());
+        assertEquals(100, h.getMax());
+        assertEquals(50, h.getValueAtPercentile(50));
+        assertEquals(99, h.getValueAtPercentile(99));
+        assertEquals(100, h.getValueAtPercentile(100));
+        assertEquals(50.5, h.getMean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesStayWithinRelativeError() {
+        long[] values = { 127, 128, 129, 255, 256, 1000, 123456, 9876543, 1234567890123L, Long.MAX_VALUE / 3 };
+        for (long value : values) {
+            LatencyHistogram h = new LatencyHistogram();
+            h.record(value);
+            h.record(Long.MAX_VALUE);
+            // the lower of the two values is reported by the top of its bucket
+            long reported = h.getValueAtPercentile(50);
+            assertTrue(value + " reported as " + reported, reported >= value);
+            assertTrue(value + " reported as " + reported, reported - value <= value / 64);
+        }
+    }
+
+    @Test
+    public void percentilesNeverExceedTheMaximum() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1000001);
+        assertEquals(1000001, h.getValueAtPercentile(50));
+        assertEquals(1000001, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(1, h.getTotalCount());
+    }
+
+    @Test
+    public void addMergesCountsAndExtremes() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            a.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            b.record(100);
+        }
+        a.add(b);
+        assertEquals(100, a.getTotalCount());
+        assertEquals(10, a.getMin());
+        assertEquals(100, a.getMax());
+        assertEquals(10, a.getValueAtPercentile(90));
+        assertEquals(100, a.getValueAtPercentile(91));
+        assertEquals(19, a.getMean(), 1e-9);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(42);
+        h.reset();
+        assertEquals(0, h.getTotalCount());
+        assertEquals(0, h.getMax());
+        h.record(7);
+        assertEquals(7, h.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,35 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of extracting the LIKE patterns answered by the n-gram indexes.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class NgramSearchTest {
+
+    @Test
+    public void extractsPatternsOfTheColumn() {
+        assertEquals(Arrays.asList("%GGG%", "A%T"),
+                NgramSearch.extractPatterns("SELECT * FROM t WHERE ref LIKE '%GGG%' AND alt LIKE '%C%' AND REF like 'A%T'", "ref"));
+    }
+
+    @Test
+    public void unescapesDoubledQuotes() {
+        assertEquals(Arrays.asList("%it's%"), NgramSearch.extractPatterns("SELECT * FROM t WHERE name LIKE '%it''s%'", "name"));
+    }
+
+    @Test
+    public void extractsNothingFromUnsafeQueries() {
+        assertTrue(NgramSearch.extractPatterns("SELECT * FROM t", "ref").isEmpty());
+        assertTrue(NgramSearch.extractPatterns("SELECT * FROM t WHERE ref LIKE '%GGG%' OR ref LIKE '%TTT%'", "ref").isEmpty());
+        assertTrue(NgramSearch.extractPatterns("SELECT * FROM t WHERE ref NOT LIKE '%GGG%'", "ref").isEmpty());
+    }
+}
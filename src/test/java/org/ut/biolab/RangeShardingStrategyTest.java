@@ -0,0 +1,33 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of the key ranges of range shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class RangeShardingStrategyTest {
+    private static final long[] SPLITS = { 10, 20 };
+
+    @Test
+    public void firstShardSelectsNullKeys() {
+        assertEquals("(k < 10 OR k IS NULL)", ShardManager.getRangePredicate("k", SPLITS, 0));
+        assertEquals("k >= 10 AND k < 20", ShardManager.getRangePredicate("k", SPLITS, 1));
+        assertEquals("k >= 20", ShardManager.getRangePredicate("k", SPLITS, 2));
+    }
+
+    @Test
+    public void singleShardSelectsEverything() {
+        assertEquals("1=1", ShardManager.getRangePredicate("k", new long[0], 0));
+    }
+
+    @Test
+    public void placesNullKeysIntoTheFirstShard() {
+        RangeShardingStrategy strategy = new RangeShardingStrategy("k");
+        assertEquals(0, strategy.getShard(new Object[] { null }));
+    }
+}
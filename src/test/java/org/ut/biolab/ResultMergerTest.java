@@ -0,0 +1,64 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests of the mergers not depending on the query.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ResultMergerTest {
+
+    @Test
+    public void countSumAddsUpTheShards() {
+        ResultMerger merger = MergeStrategy.COUNT_SUM.newMerger(null);
+        merger.merge(0, new Object[] { 3L });
+        merger.merge(1, new Object[] { 4 });
+        merger.merge(2, new Object[] { null });
+        assertEquals(7L, merger.getResult());
+        assertEquals(3, merger.getRowCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void concatenationKeepsRowsUpToTheLimit() {
+        ConcatenationMerger merger = new ConcatenationMerger(2);
+        merger.merge(0, new Object[] { 1 });
+        merger.merge(1, new Object[] { 2 });
+        merger.merge(0, new Object[] { 3 });
+        List<Object[]> rows = (List<Object[]>) merger.getResult();
+        assertEquals(2, rows.size());
+        assertEquals(3, merger.getRowCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void distinctRemovesDuplicatesAcrossShards() {
+        ResultMerger merger = MergeStrategy.DISTINCT.newMerger(null);
+        merger.merge(0, new Object[] { "a", 1 });
+        merger.merge(1, new Object[] { "a", 1 });
+        merger.merge(1, new Object[] { "a", 2 });
+        Set<Object> rows = (Set<Object>) merger.getResult();
+        assertEquals(2, rows.size());
+        assertTrue(rows.contains(Arrays.asList("a", 2)));
+    }
+
+    @Test
+    public void minMaxIgnoresNulls() {
+        ResultMerger merger = MergeStrategy.MIN_MAX.newMerger(null);
+        merger.merge(0, new Object[] { 5L });
+        merger.merge(1, new Object[] { null });
+        merger.merge(2, new Object[] { -2L });
+        merger.merge(3, new Object[] { 9L });
+        assertArrayEquals(new Object[] { -2L, 9L }, (Object[]) merger.getResult());
+    }
+}
@@ -0,0 +1,46 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of turning instantiated queries into statement templates.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardConnectionsTest {
+
+    @Test
+    public void instancesOfATemplateShareTheStatement() {
+        List<Object> a = new ArrayList<Object>();
+        List<Object> b = new ArrayList<Object>();
+        String template = ShardConnections.parameterize("SELECT * FROM variants_shard_3 WHERE variant_id BETWEEN 5 AND 100 LIMIT 10", a);
+        assertEquals("SELECT * FROM variants_shard_3 WHERE variant_id BETWEEN ? AND ? LIMIT ?", template);
+        assertEquals(template, ShardConnections.parameterize("SELECT * FROM variants_shard_3 WHERE variant_id BETWEEN 7 AND 9 LIMIT 10", b));
+        assertEquals(Arrays.<Object> asList(5L, 100L, 10L), a);
+        assertEquals(Arrays.<Object> asList(7L, 9L, 10L), b);
+    }
+
+    @Test
+    public void bindsStringsAndDecimals() {
+        List<Object> params = new ArrayList<Object>();
+        assertEquals("SELECT * FROM t WHERE ref LIKE ? AND name = ? AND score > ?",
+                ShardConnections.parameterize("SELECT * FROM t WHERE ref LIKE '%GGG%' AND name = 'it''s' AND score > 1.25", params));
+        assertEquals(Arrays.<Object> asList("%GGG%", "it's", new BigDecimal("1.25")), params);
+    }
+
+    @Test
+    public void keepsLiteralsThatCannotBeBound() {
+        String query = "SELECT * FROM t WHERE a = 'x\\'y' AND b = _utf8'z' AND c = 0x1F AND d = 1e5 AND `col 1` = \"7\" AND e = 12345678901234567890";
+        List<Object> params = new ArrayList<Object>();
+        assertEquals(query, ShardConnections.parameterize(query, params));
+        assertEquals(0, params.size());
+    }
+}
@@ -0,0 +1,90 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of the key filters of the shards and pruning lookups by them.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardKeyFilterTest {
+
+    @Test
+    public void containsEveryKeyAdded() {
+        ShardKeyFilter filter = new ShardKeyFilter(10000, 10);
+        for (long key = 0; key < 10000; key++) {
+            filter.add(key * 7);
+        }
+        for (long key = 0; key < 10000; key++) {
+            assertTrue(filter.mightContain(key * 7));
+        }
+        assertEquals(10000, filter.getKeyCount());
+    }
+
+    @Test
+    public void falsePositivesStayNearTheExpectedRate() {
+        ShardKeyFilter filter = new ShardKeyFilter(10000, 10);
+        for (long key = 0; key < 10000; key++) {
+            filter.add(key);
+        }
+        int falsePositives = 0;
+        for (long key = 10000; key < 110000; key++) {
+            if (filter.mightContain(key)) {
+                falsePositives++;
+            }
+        }
+        double expected = filter.getExpectedFalsePositiveRate();
+        assertTrue("expected rate " + expected, expected > 0 && expected < 0.02);
+        assertTrue("false positives " + falsePositives, falsePositives < 100000 * expected * 2);
+    }
+
+    @Test
+    public void sizesByKeysAndBitsPerKey() {
+        ShardKeyFilter filter = new ShardKeyFilter(1000, 10);
+        // 10000 bits rounded up to whole longs
+        assertEquals(157 * 8, filter.getSize());
+        assertEquals(7, filter.getHashCount());
+        // an empty shard still gets a usable filter
+        assertTrue(new ShardKeyFilter(0, 10).getSize() > 0);
+    }
+
+    @Test
+    public void routerSkipsShardsRuledOutByTheFilters() {
+        // all the shards cover the key range, only shard 2 holds key 42
+        ShardMetadata meta = new ShardMetadata("variant_id", 3);
+        for (int i = 0; i < 3; i++) {
+            meta.set(i, 100, 0, 1000);
+            ShardKeyFilter filter = new ShardKeyFilter(100, 10);
+            filter.add(i == 2 ? 42 : 43 + i);
+            meta.setFilter(i, filter);
+        }
+        ShardRouter router = new ShardRouter(3, null, meta);
+        assertEquals(new TreeSet<Integer>(Arrays.asList(2)), router.route("SELECT * FROM t WHERE variant_id = 42"));
+        assertEquals(2, router.getFilteredCount());
+        assertTrue(router.isFilteredLookup("SELECT * FROM t WHERE variant_id = 42"));
+    }
+
+    @Test
+    public void routerCountsFilteredShardsOfEveryPredicate() {
+        ShardMetadata meta = new ShardMetadata("variant_id", 4);
+        for (int i = 0; i < 4; i++) {
+            meta.set(i, 100, 0, 1000);
+            ShardKeyFilter filter = new ShardKeyFilter(100, 10);
+            filter.add(i);
+            meta.setFilter(i, filter);
+        }
+        ShardRouter router = new ShardRouter(4, null, meta);
+        // the first lookup leaves shard 1, the second one rules it out too
+        Set<Integer> shards = router.route("SELECT * FROM t WHERE variant_id = 1 AND variant_id = 2");
+        assertTrue(shards.isEmpty());
+        assertEquals(4, router.getFilteredCount());
+    }
+}
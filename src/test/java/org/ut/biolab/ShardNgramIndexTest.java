@@ -0,0 +1,106 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of building and searching the trigram indexes of the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardNgramIndexTest {
+
+    private static ShardNgramIndex index(String... values) {
+        ShardNgramIndex index = new ShardNgramIndex();
+        for (int i = 0; i < values.length; i++) {
+            index.add(i * 1000L, values[i]);
+        }
+        return index;
+    }
+
+    @Test
+    public void findsRowsContainingAllTrigrams() {
+        ShardNgramIndex index = index("ACGGGT", "TTT", "gggA", null, "AGGGAC", "GGTGG");
+        assertArrayEquals(new long[] { 0, 2000, 4000 }, index.getCandidates("%GGG%"));
+        assertArrayEquals(new long[] { 2000, 4000 }, index.getCandidates("%GGGA%"));
+        // candidates are a superset, only runs of three characters count
+        assertArrayEquals(new long[] { 0, 5000 }, index.getCandidates("AC%GGT"));
+        assertArrayEquals(new long[0], index.getCandidates("%CCC%"));
+    }
+
+    @Test
+    public void cannotRestrictShortOrEscapedPatterns() {
+        ShardNgramIndex index = index("ACGGGT");
+        assertNull(index.getCandidates("%GG%"));
+        assertNull(index.getCandidates("G_G_G"));
+        assertNull(index.getCandidates("%GG\\_G%"));
+        assertNull(ShardNgramIndex.getGrams("%%"));
+    }
+
+    @Test
+    public void encodesLargeGapsAndRepeatedKeys() {
+        ShardNgramIndex index = new ShardNgramIndex();
+        long[] keys = { 0, 1, 127, 128, 16384, 1L << 40, Long.MAX_VALUE };
+        for (long key : keys) {
+            index.add(key, "XYZ");
+            // a repeated key is listed once
+            index.add(key, "XYZXYZ");
+        }
+        assertArrayEquals(keys, index.getCandidates("%XYZ%"));
+        assertEquals(2L * keys.length, index.getRowCount());
+        assertEquals(3, index.getGramCount());
+    }
+
+    @Test
+    public void intersectsLongLists() {
+        Random random = new Random(7);
+        String[] values = new String[2000];
+        ShardNgramIndex index = new ShardNgramIndex();
+        for (int i = 0; i < values.length; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; j < 12; j++) {
+                value.append("ACGT".charAt(random.nextInt(4)));
+            }
+            values[i] = value.toString();
+            index.add(i * 3L, values[i]);
+        }
+        long[] candidates = index.getCandidates("%ACGTA%");
+        // every row containing the pattern is a candidate
+        int found = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].contains("ACGTA")) {
+                assertTrue(Arrays.binarySearch(candidates, i * 3L) >= 0);
+                found++;
+            }
+        }
+        assertTrue(found > 0);
+        assertTrue(candidates.length >= found);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeKeys() {
+        new ShardNgramIndex().add(-1, "ABC");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDescendingKeys() {
+        ShardNgramIndex index = new ShardNgramIndex();
+        index.add(5, "ABC");
+        index.add(4, "ABC");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsKeysOnceSealed() {
+        ShardNgramIndex index = index("ABC");
+        index.seal();
+        index.add(5000, "ABC");
+    }
+}
@@ -0,0 +1,83 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of extracting predicates from queries and routing them to shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class ShardRouterTest {
+
+    private static Set<Integer> shards(Integer... shards) {
+        return new TreeSet<Integer>(Arrays.asList(shards));
+    }
+
+    private static ShardMetadata metadata() {
+        // keys 0-99, 100-199, 200-299 and an empty shard
+        ShardMetadata meta = new ShardMetadata("variant_id", 4);
+        meta.set(0, 100, 0, 99);
+        meta.set(1, 100, 100, 199);
+        meta.set(2, 100, 200, 299);
+        meta.set(3, 0, 0, 0);
+        return meta;
+    }
+
+    @Test
+    public void extractsEqualityAndBetween() {
+        List<ShardRouter.RangePredicate> predicates = ShardRouter
+                .extractPredicates("SELECT * FROM t WHERE variant_id BETWEEN 5 AND 10 AND position = -3");
+        assertEquals(2, predicates.size());
+        assertEquals("variant_id", predicates.get(0).getColumn());
+        assertEquals(5, predicates.get(0).getLo());
+        assertEquals(10, predicates.get(0).getHi());
+        assertEquals("position", predicates.get(1).getColumn());
+        assertEquals(-3, predicates.get(1).getLo());
+        assertEquals(-3, predicates.get(1).getHi());
+    }
+
+    @Test
+    public void extractsNothingFromUnsafeQueries() {
+        assertTrue(ShardRouter.extractPredicates("SELECT COUNT(*) FROM t").isEmpty());
+        assertTrue(ShardRouter.extractPredicates("SELECT * FROM t WHERE variant_id = 1 OR variant_id = 500").isEmpty());
+        assertTrue(ShardRouter.extractPredicates("SELECT * FROM t WHERE NOT variant_id = 1").isEmpty());
+    }
+
+    @Test
+    public void ignoresNonIntegerValues() {
+        assertTrue(ShardRouter.extractPredicates("SELECT * FROM t WHERE score = 1.5").isEmpty());
+        assertTrue(ShardRouter.extractPredicates("SELECT * FROM t WHERE id = 12abc").isEmpty());
+    }
+
+    @Test
+    public void routesByRecordedKeyRanges() {
+        ShardRouter router = new ShardRouter(4, null, metadata());
+        assertEquals(shards(1), router.route("SELECT * FROM t WHERE variant_id = 150"));
+        assertEquals(shards(0, 1, 2), router.route("SELECT * FROM t WHERE variant_id BETWEEN 50 AND 250"));
+        assertEquals(shards(), router.route("SELECT * FROM t WHERE variant_id = 1000"));
+        // not the key column
+        assertEquals(shards(0, 1, 2, 3), router.route("SELECT * FROM t WHERE position = 150"));
+        assertEquals(shards(0, 1, 2, 3), router.route("SELECT * FROM t WHERE variant_id = 1 OR variant_id = 150"));
+        assertEquals(5, router.getQueryCount());
+        assertEquals(3 + 1 + 4, router.getPrunedCount());
+    }
+
+    @Test
+    public void routesByStrategy() {
+        HashShardingStrategy strategy = new HashShardingStrategy("variant_id");
+        strategy.init(null, "t", 8);
+        ShardRouter router = new ShardRouter(8, strategy, null);
+        int shard = strategy.getShard(new Object[] { 42L });
+        assertEquals(shards(shard), router.route("SELECT * FROM t WHERE variant_id = 42"));
+        assertEquals(8, router.route("SELECT * FROM t WHERE position = 42").size());
+    }
+}
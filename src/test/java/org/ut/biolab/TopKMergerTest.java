@@ -0,0 +1,100 @@
+package org.ut.biolab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of merging ordered and limited results of the shards.
+ * 
+ * @author <a href="mailto:mirocupak@gmail.com">Miroslav Cupak</a>
+ * 
+ */
+public class TopKMergerTest {
+    private static final String[] COLUMNS = { "variant_id", "position" };
+
+    /**
+     * Feeds the ordered rows of a shard until the merger is satisfied.
+     * 
+     * @return number of rows read
+     */
+    private static int feed(ResultMerger merger, int shard, long... positions) {
+        merger.setColumns(COLUMNS);
+        int res = 0;
+        for (long position : positions) {
+            merger.merge(shard, new Object[] { shard * 100L + res, position });
+            res++;
+            if (merger.isSatisfied(shard)) {
+                break;
+            }
+        }
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long[] positions(ResultMerger merger) {
+        List<Object[]> rows = (List<Object[]>) merger.getResult();
+        long[] res = new long[rows.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (Long) rows.get(i)[1];
+        }
+        return res;
+    }
+
+    @Test
+    public void keepsTheSmallestRowsInOrder() {
+        ResultMerger merger = MergeStrategy.TOP_K.newMerger("SELECT * FROM %s WHERE variant_id < 100 ORDER BY position LIMIT 3");
+        feed(merger, 0, 1, 5, 9);
+        feed(merger, 1, 2, 3, 4);
+        assertEquals("[1, 2, 3]", Arrays.toString(positions(merger)));
+    }
+
+    @Test
+    public void keepsTheLargestRowsWhenDescending() {
+        ResultMerger merger = MergeStrategy.TOP_K.newMerger("SELECT * FROM %s ORDER BY position DESC LIMIT 2");
+        feed(merger, 0, 9, 5, 1);
+        feed(merger, 1, 8, 7, 6);
+        assertEquals("[9, 8]", Arrays.toString(positions(merger)));
+    }
+
+    @Test
+    public void stopsReadingShardsThatCannotContribute() {
+        ResultMerger merger = MergeStrategy.TOP_K.newMerger("SELECT * FROM %s ORDER BY position LIMIT 2");
+        // the third row is the first one not making it
+        assertEquals(3, feed(merger, 0, 1, 2, 3, 4));
+        assertTrue(merger.isSatisfied(0));
+        assertFalse(merger.isSatisfied(1));
+        // the first row already loses to both rows kept
+        assertEquals(1, feed(merger, 1, 10, 11, 12));
+        assertTrue(merger.isSatisfied(1));
+        assertEquals("[1, 2]", Arrays.toString(positions(merger)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nullsComeFirst() {
+        ResultMerger merger = MergeStrategy.TOP_K.newMerger("SELECT * FROM %s ORDER BY position LIMIT 1");
+        merger.setColumns(COLUMNS);
+        merger.merge(0, new Object[] { 1L, 5L });
+        merger.merge(1, new Object[] { 2L, null });
+        List<Object[]> rows = (List<Object[]>) merger.getResult();
+        assertEquals(1, rows.size());
+        assertNull(rows.get(0)[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQueriesWithoutLimit() {
+        TopKMerger.forQuery("SELECT * FROM %s ORDER BY position");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColumns() {
+        TopKMerger.forQuery("SELECT * FROM %s ORDER BY score LIMIT 5").setColumns(COLUMNS);
+    }
+}